@@ -18,6 +18,12 @@ public interface Area<V extends Vector<V>> {
             .direction(Intersection.Direction.FORWARDS)
             .build(Intersection.Collector.ALL);
 
+    // This intersection option is used to count the intersections in the parity test of whether the area contains this
+    // point, without allocating
+    Intersection<Integer> COUNT_FORWARDS = Intersection.builder()
+            .direction(Intersection.Direction.FORWARDS)
+            .build(Intersection.Collector.COUNT);
+
     /**
      * Returns true if the specified point is inside this area
      * @param point the point
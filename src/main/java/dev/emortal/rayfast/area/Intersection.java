@@ -27,11 +27,15 @@ final public class Intersection<R> {
 
     private final Direction direction;
     private final Collector<R> collector;
+    private final double minT;
+    private final double maxT;
 
     @SuppressWarnings("unchecked")
-    private Intersection(Direction direction, Collector<?> collector) {
+    private Intersection(Direction direction, Collector<?> collector, double minT, double maxT) {
         this.direction = direction;
         this.collector = (Collector<R>) collector;
+        this.minT = minT;
+        this.maxT = maxT;
     }
 
     public Direction direction() {
@@ -42,6 +46,47 @@ final public class Intersection<R> {
         return collector;
     }
 
+    /**
+     * @return the minimum line parameter t of an intersection, negative infinity if unbounded
+     */
+    public double minT() {
+        return minT;
+    }
+
+    /**
+     * @return the maximum line parameter t of an intersection, positive infinity if unbounded
+     */
+    public double maxT() {
+        return maxT;
+    }
+
+    /**
+     * @return true if this intersection is limited to a segment of the line, false otherwise
+     */
+    public boolean isBounded() {
+        return minT != Double.NEGATIVE_INFINITY || maxT != Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Returns true if the intersection at the specified line parameter is within the segment of this intersection. The
+     * direction is not checked.
+     * @param t the line parameter of the intersection
+     * @return true if the intersection is within the segment, false otherwise
+     */
+    public boolean withinBounds(double t) {
+        return t >= minT && t <= maxT;
+    }
+
+    /**
+     * Returns an intersection with the direction and segment of this intersection, and the specified collector
+     * @param collector the collector
+     * @param <T> the intersection result type
+     * @return the intersection
+     */
+    public <T> @NotNull Intersection<T> withCollector(@NotNull Collector<?> collector) {
+        return new Intersection<>(direction, collector, minT, maxT);
+    }
+
     public enum Direction {
         ANY,
         FORWARDS,
@@ -61,10 +106,34 @@ final public class Intersection<R> {
         public static final Collector<? extends Vector> ANY = new Collector<>(Type.ANY);
         public static final Collector<Collection<? extends Vector>> ALL = new Collector<>(Type.ALL);
 
+        /**
+         * Collects the intersection closest to the line position. Areas that do not know this collector return any
+         * intersection instead, so combined areas and indices only find the nearest intersection among their areas.
+         */
+        public static final Collector<? extends Vector<?>> NEAREST = new Collector<>(Type.NEAREST);
+
+        /**
+         * Collects the intersection furthest from the line position. Areas that do not know this collector return any
+         * intersection instead, so combined areas and indices only find the farthest intersection among their areas.
+         */
+        public static final Collector<? extends Vector<?>> FARTHEST = new Collector<>(Type.FARTHEST);
+
+        /**
+         * Counts the intersections without collecting them, as an {@link Integer}. Small counts are boxed from the
+         * cache of {@link Integer#valueOf(int)}, so counting does not allocate.
+         * <br><br>
+         * Areas that do not know this collector may return another result, so callers check that the result is an
+         * {@link Integer}. Combined areas and indices collect every intersection of those areas to count them.
+         */
+        public static final Collector<Integer> COUNT = new Collector<>(Type.COUNT);
+
         // Enum used to switch on
         public enum Type {
             ANY,
-            ALL
+            ALL,
+            NEAREST,
+            FARTHEST,
+            COUNT
         }
     }
 
@@ -73,14 +142,41 @@ final public class Intersection<R> {
         }
 
         private Direction direction = Direction.ANY;
+        private double minT = Double.NEGATIVE_INFINITY;
+        private double maxT = Double.POSITIVE_INFINITY;
 
         public @NotNull Builder direction(@NotNull Direction direction) {
             this.direction = direction;
             return this;
         }
 
+        /**
+         * Limits the intersection to the line parameters t of at least the specified value, where the intersection is
+         * at pos + dir * t. Areas and indices reject intersections outside the segment before computing them.
+         * @param minT the minimum line parameter
+         * @return the builder
+         */
+        public @NotNull Builder minT(double minT) {
+            this.minT = minT;
+            return this;
+        }
+
+        /**
+         * Limits the intersection to the line parameters t of at most the specified value, where the intersection is
+         * at pos + dir * t. With a unit direction, this is the maximum distance of a forwards intersection.
+         * @param maxT the maximum line parameter
+         * @return the builder
+         */
+        public @NotNull Builder maxT(double maxT) {
+            this.maxT = maxT;
+            return this;
+        }
+
         public <R> @NotNull Intersection<R> build(@NotNull Collector<?> collector) {
-            return new Intersection<>(direction, collector);
+            if (!(minT <= maxT)) {
+                throw new IllegalArgumentException("Min t must not be greater than max t, got " + minT + " > " + maxT);
+            }
+            return new Intersection<>(direction, collector, minT, maxT);
         }
     }
 }
@@ -0,0 +1,186 @@
+package dev.emortal.rayfast.area;
+
+import dev.emortal.rayfast.vector.Vector3d;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * An immutable 3d line with precomputed per-line values, which is reused to test one line against many areas.
+ * <br><br>
+ * The inverse of the direction is computed once, so that the slab tests of the kernels and the indices only multiply.
+ * An axis the direction does not move along has an infinite inverse. The optional max length limits the line to the
+ * intersections within that distance of its position, in either direction.
+ */
+public final class Ray {
+
+    private final double posX;
+    private final double posY;
+    private final double posZ;
+    private final double dirX;
+    private final double dirY;
+    private final double dirZ;
+    private final double invDirX;
+    private final double invDirY;
+    private final double invDirZ;
+    private final int octant;
+    private final double maxLength;
+    private final double maxT;
+
+    private Ray(double posX, double posY, double posZ, double dirX, double dirY, double dirZ, double maxLength) {
+        if (!(maxLength > 0)) {
+            throw new IllegalArgumentException("Max length must be positive, got " + maxLength);
+        }
+        this.posX = posX;
+        this.posY = posY;
+        this.posZ = posZ;
+        this.dirX = dirX;
+        this.dirY = dirY;
+        this.dirZ = dirZ;
+        this.invDirX = 1.0 / dirX;
+        this.invDirY = 1.0 / dirY;
+        this.invDirZ = 1.0 / dirZ;
+        this.octant = (invDirX < 0 ? 1 : 0) | (invDirY < 0 ? 2 : 0) | (invDirZ < 0 ? 4 : 0);
+        this.maxLength = maxLength;
+        this.maxT = maxLength / Math.sqrt(dirX * dirX + dirY * dirY + dirZ * dirZ);
+    }
+
+    /**
+     * Creates a ray of unlimited length
+     * @param posX ray X position
+     * @param posY ray Y position
+     * @param posZ ray Z position
+     * @param dirX ray X direction
+     * @param dirY ray Y direction
+     * @param dirZ ray Z direction
+     * @return the ray
+     */
+    public static @NotNull Ray of(double posX, double posY, double posZ, double dirX, double dirY, double dirZ) {
+        return new Ray(posX, posY, posZ, dirX, dirY, dirZ, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Creates a ray limited to the specified length
+     * @param posX ray X position
+     * @param posY ray Y position
+     * @param posZ ray Z position
+     * @param dirX ray X direction
+     * @param dirY ray Y direction
+     * @param dirZ ray Z direction
+     * @param maxLength the maximum distance of an intersection from the ray position
+     * @return the ray
+     */
+    public static @NotNull Ray of(double posX, double posY, double posZ, double dirX, double dirY, double dirZ, double maxLength) {
+        return new Ray(posX, posY, posZ, dirX, dirY, dirZ, maxLength);
+    }
+
+    /**
+     * Creates a ray of unlimited length
+     * @param pos ray position
+     * @param dir ray direction
+     * @return the ray
+     */
+    public static @NotNull Ray of(@NotNull Vector3d pos, @NotNull Vector3d dir) {
+        return of(pos.x(), pos.y(), pos.z(), dir.x(), dir.y(), dir.z());
+    }
+
+    /**
+     * Creates a ray limited to the specified length
+     * @param pos ray position
+     * @param dir ray direction
+     * @param maxLength the maximum distance of an intersection from the ray position
+     * @return the ray
+     */
+    public static @NotNull Ray of(@NotNull Vector3d pos, @NotNull Vector3d dir, double maxLength) {
+        return of(pos.x(), pos.y(), pos.z(), dir.x(), dir.y(), dir.z(), maxLength);
+    }
+
+    /**
+     * Returns a copy of this ray limited to the specified length
+     * @param maxLength the maximum distance of an intersection from the ray position
+     * @return the new ray
+     */
+    public @NotNull Ray withMaxLength(double maxLength) {
+        return new Ray(posX, posY, posZ, dirX, dirY, dirZ, maxLength);
+    }
+
+    public double posX() {
+        return posX;
+    }
+
+    public double posY() {
+        return posY;
+    }
+
+    public double posZ() {
+        return posZ;
+    }
+
+    public double dirX() {
+        return dirX;
+    }
+
+    public double dirY() {
+        return dirY;
+    }
+
+    public double dirZ() {
+        return dirZ;
+    }
+
+    public double invDirX() {
+        return invDirX;
+    }
+
+    public double invDirY() {
+        return invDirY;
+    }
+
+    public double invDirZ() {
+        return invDirZ;
+    }
+
+    /**
+     * Returns the octant of the direction, where bit 0, 1 and 2 are set if the direction moves towards negative X, Y
+     * and Z respectively. The slab tests use it to pick the entry and exit planes of a box without branching on the
+     * sign of every axis.
+     * @return the octant of the direction, from 0 to 7
+     */
+    public int octant() {
+        return octant;
+    }
+
+    /**
+     * @return the maximum distance of an intersection from the ray position, infinite if unlimited
+     */
+    public double maxLength() {
+        return maxLength;
+    }
+
+    /**
+     * @return the maximum absolute line parameter t of an intersection, infinite if unlimited
+     */
+    public double maxT() {
+        return maxT;
+    }
+
+    /**
+     * @return true if this ray is limited to a length, false otherwise
+     */
+    public boolean hasMaxLength() {
+        return maxLength != Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Returns true if the intersection at the specified line parameter is within the max length of this ray
+     * @param t the line parameter of the intersection
+     * @return true if the intersection is within the max length, false otherwise
+     */
+    public boolean withinLength(double t) {
+        return Math.abs(t) <= maxT;
+    }
+
+    @Override
+    public String toString() {
+        return "Ray[pos=(" + posX + ", " + posY + ", " + posZ + "), dir=(" + dirX + ", " + dirY + ", " + dirZ +
+                "), maxLength=" + maxLength + "]";
+    }
+}
@@ -0,0 +1,189 @@
+package dev.emortal.rayfast.area;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+
+/**
+ * An immutable bundle of rays that are intersected together, such as the pellets of a shotgun blast or the rays of an
+ * explosion exposure check.
+ * <br><br>
+ * Areas and indices intersect a packet in a single pass, testing every box once for the whole packet before testing
+ * it for the individual rays. When every ray moves towards the same octant, the packet also keeps the bounds of the
+ * positions and inverse directions of its rays, which {@link #mayIntersect} uses to reject a box for every ray at
+ * once. Rays that spread in every direction are best split into one packet per {@link Ray#octant()}.
+ */
+public final class RayPacket {
+
+    private final Ray[] rays;
+    private final boolean coherent;
+    private final double maxT;
+
+    // Bounds of the positions and inverse directions of the rays, only if coherent
+    private final double posMinX, posMinY, posMinZ;
+    private final double posMaxX, posMaxY, posMaxZ;
+    private final double invDirMinX, invDirMinY, invDirMinZ;
+    private final double invDirMaxX, invDirMaxY, invDirMaxZ;
+
+    private RayPacket(Ray[] rays) {
+        if (rays.length == 0) {
+            throw new IllegalArgumentException("A ray packet must contain at least one ray");
+        }
+        this.rays = rays;
+
+        double posMinX = Double.POSITIVE_INFINITY, posMinY = Double.POSITIVE_INFINITY, posMinZ = Double.POSITIVE_INFINITY;
+        double posMaxX = Double.NEGATIVE_INFINITY, posMaxY = Double.NEGATIVE_INFINITY, posMaxZ = Double.NEGATIVE_INFINITY;
+        double invDirMinX = Double.POSITIVE_INFINITY, invDirMinY = Double.POSITIVE_INFINITY, invDirMinZ = Double.POSITIVE_INFINITY;
+        double invDirMaxX = Double.NEGATIVE_INFINITY, invDirMaxY = Double.NEGATIVE_INFINITY, invDirMaxZ = Double.NEGATIVE_INFINITY;
+        double maxT = 0;
+        boolean coherent = true;
+
+        for (Ray ray : rays) {
+            // A ray parallel to an axis has no finite inverse to bound
+            coherent &= ray.octant() == rays[0].octant() &&
+                    Double.isFinite(ray.invDirX()) && Double.isFinite(ray.invDirY()) && Double.isFinite(ray.invDirZ()) &&
+                    Double.isFinite(ray.posX()) && Double.isFinite(ray.posY()) && Double.isFinite(ray.posZ());
+
+            posMinX = Math.min(posMinX, ray.posX());
+            posMinY = Math.min(posMinY, ray.posY());
+            posMinZ = Math.min(posMinZ, ray.posZ());
+            posMaxX = Math.max(posMaxX, ray.posX());
+            posMaxY = Math.max(posMaxY, ray.posY());
+            posMaxZ = Math.max(posMaxZ, ray.posZ());
+            invDirMinX = Math.min(invDirMinX, ray.invDirX());
+            invDirMinY = Math.min(invDirMinY, ray.invDirY());
+            invDirMinZ = Math.min(invDirMinZ, ray.invDirZ());
+            invDirMaxX = Math.max(invDirMaxX, ray.invDirX());
+            invDirMaxY = Math.max(invDirMaxY, ray.invDirY());
+            invDirMaxZ = Math.max(invDirMaxZ, ray.invDirZ());
+            maxT = Math.max(maxT, ray.maxT());
+        }
+
+        this.coherent = coherent;
+        this.maxT = maxT;
+        this.posMinX = posMinX;
+        this.posMinY = posMinY;
+        this.posMinZ = posMinZ;
+        this.posMaxX = posMaxX;
+        this.posMaxY = posMaxY;
+        this.posMaxZ = posMaxZ;
+        this.invDirMinX = invDirMinX;
+        this.invDirMinY = invDirMinY;
+        this.invDirMinZ = invDirMinZ;
+        this.invDirMaxX = invDirMaxX;
+        this.invDirMaxY = invDirMaxY;
+        this.invDirMaxZ = invDirMaxZ;
+    }
+
+    /**
+     * Creates a packet of the specified rays
+     * @param rays the rays
+     * @return the packet
+     */
+    public static @NotNull RayPacket of(@NotNull Ray @NotNull ... rays) {
+        return new RayPacket(rays.clone());
+    }
+
+    /**
+     * Creates a packet of the specified rays
+     * @param rays the rays
+     * @return the packet
+     */
+    public static @NotNull RayPacket of(@NotNull Collection<Ray> rays) {
+        return new RayPacket(rays.toArray(Ray[]::new));
+    }
+
+    /**
+     * @return the number of rays in this packet
+     */
+    public int size() {
+        return rays.length;
+    }
+
+    /**
+     * Returns the ray at the specified index
+     * @param index the index
+     * @return the ray
+     */
+    public @NotNull Ray ray(int index) {
+        return rays[index];
+    }
+
+    /**
+     * @return true if every ray moves towards the same octant, so that boxes are rejected for the whole packet
+     */
+    public boolean coherent() {
+        return coherent;
+    }
+
+    /**
+     * @return the maximum absolute line parameter t of an intersection of any ray
+     */
+    public double maxT() {
+        return maxT;
+    }
+
+    /**
+     * Returns false if no ray of this packet intersects the specified box in the specified direction, within its max
+     * length. This is conservative: it may return true even if no ray intersects the box, and always does if this
+     * packet is not {@link #coherent()}.
+     *
+     * @param minX the min X of the box
+     * @param minY the min Y of the box
+     * @param minZ the min Z of the box
+     * @param maxX the max X of the box
+     * @param maxY the max Y of the box
+     * @param maxZ the max Z of the box
+     * @param direction the direction of the intersection
+     * @return false if no ray intersects the box, true if any ray may
+     */
+    public boolean mayIntersect(double minX, double minY, double minZ, double maxX, double maxY, double maxZ, @NotNull Intersection.Direction direction) {
+        if (!coherent) {
+            return true;
+        }
+
+        // Bound the line parameters where any ray enters the box from below, and leaves it from above
+        double tNear = Math.max(Math.max(
+                enterBound(minX, maxX, posMinX, posMaxX, invDirMinX, invDirMaxX),
+                enterBound(minY, maxY, posMinY, posMaxY, invDirMinY, invDirMaxY)),
+                enterBound(minZ, maxZ, posMinZ, posMaxZ, invDirMinZ, invDirMaxZ)
+        );
+        double tFar = Math.min(Math.min(
+                exitBound(minX, maxX, posMinX, posMaxX, invDirMinX, invDirMaxX),
+                exitBound(minY, maxY, posMinY, posMaxY, invDirMinY, invDirMaxY)),
+                exitBound(minZ, maxZ, posMinZ, posMaxZ, invDirMinZ, invDirMaxZ)
+        );
+
+        if (tNear > tFar || tNear > maxT || tFar < -maxT) {
+            return false;
+        }
+
+        // Written so that NaN bounds never reject a box
+        switch (direction) {
+            case FORWARDS:
+                return !(tFar <= 0);
+            case BACKWARDS:
+                return !(tNear >= 0);
+            default:
+            case ANY:
+                return true;
+        }
+    }
+
+    /**
+     * Returns the lowest line parameter where any ray enters the slab of an axis. Going towards the positive side, a ray
+     * enters through the min plane, and the parameter grows with the distance from the plane to the ray position.
+     */
+    private static double enterBound(double min, double max, double posMin, double posMax, double invDirMin, double invDirMax) {
+        double distance = invDirMin > 0 ? min - posMax : max - posMin;
+        return Math.min(distance * invDirMin, distance * invDirMax);
+    }
+
+    /**
+     * Returns the highest line parameter where any ray leaves the slab of an axis
+     */
+    private static double exitBound(double min, double max, double posMin, double posMax, double invDirMin, double invDirMax) {
+        double distance = invDirMin > 0 ? max - posMin : min - posMax;
+        return Math.max(distance * invDirMin, distance * invDirMax);
+    }
+}
@@ -3,6 +3,7 @@ package dev.emortal.rayfast.area.area2d;
 import dev.emortal.rayfast.area.Area;
 import dev.emortal.rayfast.area.Intersection;
 import dev.emortal.rayfast.util.Converter;
+import dev.emortal.rayfast.util.Intersection2dUtils;
 import dev.emortal.rayfast.vector.Vector;
 import dev.emortal.rayfast.vector.Vector2d;
 import org.jetbrains.annotations.NotNull;
@@ -22,12 +23,17 @@ public interface Area2d extends Area<Vector2d>, Area2dLike {
      * @return true if the point is inside this area, false otherwise
      */
     default boolean containsPoint(double x, double y) {
-        // Find all intersections
-        Collection<Vector2d> result = lineIntersection(x, y, 0.5, 0.5, ALL_FORWARDS);
+        // Count all intersections
+        Object count = lineIntersection(x, y, 0.5, 0.5, COUNT_FORWARDS);
 
         // If number is odd, then return true
-        assert result != null;
-        return result.size() % 2 != 0;
+        if (count instanceof Integer) {
+            return (Integer) count % 2 != 0;
+        }
+
+        // Areas that do not know the count collector return another result, so find all intersections instead
+        Collection<?> result = lineIntersection(x, y, 0.5, 0.5, ALL_FORWARDS);
+        return result != null && result.size() % 2 != 0;
     }
 
     @Override
@@ -35,6 +41,19 @@ public interface Area2d extends Area<Vector2d>, Area2dLike {
         return containsPoint(point.x(), point.y());
     }
 
+    /**
+     * Writes the axis-aligned bounding box of this area into the specified array, in the order minX, minY, maxX,
+     * maxY.
+     * <br><br>
+     * Areas that cannot describe their bounds return false, and are never culled by area trees.
+     *
+     * @param out the array to write the bounds to, of at least length 4
+     * @return true if the bounds were written, false if this area is unbounded
+     */
+    default boolean boundingBox(double @NotNull [] out) {
+        return false;
+    }
+
     /**
      * Returns the intersection between the specified line and this object.
      * <br><br>
@@ -57,6 +76,63 @@ public interface Area2d extends Area<Vector2d>, Area2dLike {
         return lineIntersection(pos.x(), pos.y(), dir.x(), dir.y(), intersection);
     }
 
+    /**
+     * Finds the intersection between the specified line and this area, without allocating.
+     * <br><br>
+     * The collector of the intersection selects which intersection is found: {@link Intersection.Collector#FARTHEST}
+     * finds the one furthest from the line position, {@link Intersection.Collector#ANY} finds any, and the other
+     * collectors find the nearest. The default implementation derives the intersection from
+     * {@link #lineIntersection(double, double, double, double, Intersection)}, so areas override this to avoid
+     * allocating.
+     *
+     * @param posX line X position
+     * @param posY line Y position
+     * @param dirX line X direction
+     * @param dirY line Y direction
+     * @param intersection the direction and collector of the intersection
+     * @param hit the record to write the intersection to, or null. It is left untouched on a miss.
+     * @return the line parameter t of the intersection, at the position pos + dir * t, or NaN if none
+     */
+    default double intersectT(double posX, double posY, double dirX, double dirY, @NotNull Intersection<?> intersection, @Nullable Area2dHit hit) {
+        boolean farthest = intersection.collector().type() == Intersection.Collector.Type.FARTHEST;
+
+        // Any intersection may be outside the segment, so every intersection is needed. A count has no intersection to
+        // select, so find the nearest like the other collectors.
+        if (intersection.isBounded()) {
+            intersection = intersection.withCollector(Intersection.Collector.ALL);
+        } else if (intersection.collector().type() == Intersection.Collector.Type.COUNT) {
+            intersection = intersection.withCollector(Intersection.Collector.NEAREST);
+        }
+
+        Object result = lineIntersection(posX, posY, dirX, dirY, intersection);
+        double dirLengthSquared = dirX * dirX + dirY * dirY;
+        double best = Double.NaN;
+
+        if (result instanceof Vector2d) {
+            Vector2d vector = (Vector2d) result;
+            double t = ((vector.x() - posX) * dirX + (vector.y() - posY) * dirY) / dirLengthSquared;
+            best = intersection.withinBounds(t) ? t : Double.NaN;
+        } else if (result instanceof Collection) {
+            for (Object element : (Collection<?>) result) {
+                Vector2d vector = (Vector2d) element;
+                double t = ((vector.x() - posX) * dirX + (vector.y() - posY) * dirY) / dirLengthSquared;
+
+                if (!intersection.withinBounds(t)) {
+                    continue;
+                }
+
+                if (Double.isNaN(best) || (farthest ? Math.abs(t) > Math.abs(best) : Math.abs(t) < Math.abs(best))) {
+                    best = t;
+                }
+            }
+        }
+
+        if (hit != null && !Double.isNaN(best)) {
+            hit.set(best, Double.NaN, Double.NaN, this);
+        }
+        return best;
+    }
+
     /**
      * Returns true if the specified line intersects this object.
      * <br><br>
@@ -118,6 +194,32 @@ public interface Area2d extends Area<Vector2d>, Area2dLike {
         return combined(area2ds.toArray(Area2d[]::new));
     }
 
+    /**
+     * Creates a combined area2d backed by an R-tree over the areas passed to this function.
+     * <br><br>
+     * The bounds of the areas are read once, when the tree is built. This is ideal for large sets of static areas,
+     * while {@link #combined(Area2d...)} remains the better choice for small or moving sets.
+     *
+     * @param area2ds the area2ds to build the tree from
+     * @return the new Area2dRTree
+     */
+    static Area2d combinedIndexed(Area2d... area2ds) {
+        return Area2dRTree.builder().build(area2ds);
+    }
+
+    /**
+     * Creates a combined area2d backed by an R-tree over the areas passed to this function.
+     * <br><br>
+     * The bounds of the areas are read once, when the tree is built. This is ideal for large sets of static areas,
+     * while {@link #combined(Collection)} remains the better choice for small or moving sets.
+     *
+     * @param area2ds the area2ds to build the tree from
+     * @return the new Area2dRTree
+     */
+    static Area2d combinedIndexed(@NotNull Collection<Area2d> area2ds) {
+        return Area2dRTree.builder().build(area2ds);
+    }
+
     class Area2dCombined implements Area2d {
 
         private final Area2d[] all;
@@ -126,6 +228,33 @@ public interface Area2d extends Area<Vector2d>, Area2dLike {
             this.all = area2ds;
         }
 
+        @Override
+        public boolean boundingBox(double @NotNull [] out) {
+            if (all.length == 0) {
+                return false;
+            }
+
+            double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+
+            for (Area2d area2d : all) {
+                if (!area2d.boundingBox(out)) {
+                    return false;
+                }
+
+                minX = Math.min(minX, out[0]);
+                minY = Math.min(minY, out[1]);
+                maxX = Math.max(maxX, out[2]);
+                maxY = Math.max(maxY, out[3]);
+            }
+
+            out[0] = minX;
+            out[1] = minY;
+            out[2] = maxX;
+            out[3] = maxY;
+            return true;
+        }
+
         @Override
         @SuppressWarnings("unchecked")
         public <R> R lineIntersection(double posX, double posY, double dirX, double dirY, Intersection<R> intersection) {
@@ -142,6 +271,30 @@ public interface Area2d extends Area<Vector2d>, Area2dLike {
                         }
                     }
                     return null;
+                case NEAREST:
+                case FARTHEST: {
+                    boolean nearest = collector.type() == Intersection.Collector.Type.NEAREST;
+                    Vector2d best = null;
+                    double bestDistance = 0;
+
+                    for (Area2d area2d : all) {
+                        Vector2d result = (Vector2d) area2d.lineIntersection(posX, posY, dirX, dirY, intersection);
+
+                        if (result == null) {
+                            continue;
+                        }
+
+                        double x = result.x() - posX;
+                        double y = result.y() - posY;
+                        double distance = x * x + y * y;
+
+                        if (best == null || (nearest ? distance < bestDistance : distance > bestDistance)) {
+                            best = result;
+                            bestDistance = distance;
+                        }
+                    }
+                    return (R) best;
+                }
                 case ALL:
 
                     final List<Vector2d> list = new ArrayList<>();
@@ -156,7 +309,48 @@ public interface Area2d extends Area<Vector2d>, Area2dLike {
                     }
 
                     return (R) list;
+                case COUNT: {
+                    int count = 0;
+
+                    for (Area2d area2d : all) {
+                        Object result = area2d.lineIntersection(posX, posY, dirX, dirY, intersection);
+                        count += Intersection2dUtils.count(result, area2d, posX, posY, dirX, dirY, intersection);
+                    }
+
+                    return (R) Integer.valueOf(count);
+                }
+            }
+        }
+
+        @Override
+        public double intersectT(double posX, double posY, double dirX, double dirY, @NotNull Intersection<?> intersection, @Nullable Area2dHit hit) {
+            Intersection.Collector.Type type = intersection.collector().type();
+            boolean farthest = type == Intersection.Collector.Type.FARTHEST;
+            double best = Double.NaN;
+            Area2d bestArea = null;
+
+            for (Area2d area2d : all) {
+                double t = area2d.intersectT(posX, posY, dirX, dirY, intersection, null);
+
+                if (Double.isNaN(t)) {
+                    continue;
+                }
+
+                if (bestArea == null || (farthest ? Math.abs(t) > Math.abs(best) : Math.abs(t) < Math.abs(best))) {
+                    best = t;
+                    bestArea = area2d;
+                }
+
+                if (type == Intersection.Collector.Type.ANY) {
+                    break;
+                }
+            }
+
+            // Only the best area fills in the record
+            if (hit != null && bestArea != null) {
+                bestArea.intersectT(posX, posY, dirX, dirY, intersection, hit);
             }
+            return best;
         }
     }
 
@@ -0,0 +1,101 @@
+package dev.emortal.rayfast.area.area2d;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A mutable record of a line intersection with an area2d, filled in by
+ * {@link Area2d#intersectT(double, double, double, double, dev.emortal.rayfast.area.Intersection, Area2dHit)}.
+ * <br><br>
+ * Reusing one record between intersections avoids allocating. The intersection position is {@code pos + dir * t}.
+ */
+public final class Area2dHit {
+
+    // Face ids
+    public static final int NO_FACE = -1;
+    public static final int FACE_MIN_X = 0;
+    public static final int FACE_MAX_X = 1;
+    public static final int FACE_MIN_Y = 2;
+    public static final int FACE_MAX_Y = 3;
+
+    private double t = Double.NaN;
+    private int face = NO_FACE;
+    private double normalX = Double.NaN;
+    private double normalY = Double.NaN;
+    private @Nullable Area2d area;
+
+    /**
+     * Records an intersection with an axis-aligned edge, deriving the outward normal from the edge
+     * @param t the line parameter of the intersection
+     * @param face the id of the edge, one of the {@code FACE_} constants
+     * @param area the area that was hit
+     */
+    public void set(double t, int face, @NotNull Area2d area) {
+        this.t = t;
+        this.face = face;
+        this.normalX = face == FACE_MIN_X ? -1 : face == FACE_MAX_X ? 1 : 0;
+        this.normalY = face == FACE_MIN_Y ? -1 : face == FACE_MAX_Y ? 1 : 0;
+        this.area = area;
+    }
+
+    /**
+     * Records an intersection with an arbitrary edge, whose normal faces against the line when its winding is unknown
+     * @param t the line parameter of the intersection
+     * @param normalX the X of the edge normal, or NaN if unknown
+     * @param normalY the Y of the edge normal, or NaN if unknown
+     * @param area the area that was hit
+     */
+    public void set(double t, double normalX, double normalY, @NotNull Area2d area) {
+        this.t = t;
+        this.face = NO_FACE;
+        this.normalX = normalX;
+        this.normalY = normalY;
+        this.area = area;
+    }
+
+    /**
+     * Resets this record to a miss
+     */
+    public void clear() {
+        t = Double.NaN;
+        face = NO_FACE;
+        normalX = Double.NaN;
+        normalY = Double.NaN;
+        area = null;
+    }
+
+    /**
+     * @return the line parameter of the intersection, NaN if none
+     */
+    public double t() {
+        return t;
+    }
+
+    /**
+     * @return the id of the edge that was hit, {@link #NO_FACE} if the area has no axis-aligned edges
+     */
+    public int face() {
+        return face;
+    }
+
+    /**
+     * @return the X of the normal of the edge that was hit, NaN if unknown
+     */
+    public double normalX() {
+        return normalX;
+    }
+
+    /**
+     * @return the Y of the normal of the edge that was hit, NaN if unknown
+     */
+    public double normalY() {
+        return normalY;
+    }
+
+    /**
+     * @return the area that was hit, which is the innermost area for combined areas, null if none
+     */
+    public @Nullable Area2d area() {
+        return area;
+    }
+}
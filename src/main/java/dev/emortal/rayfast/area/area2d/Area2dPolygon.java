@@ -19,6 +19,34 @@ public interface Area2dPolygon extends Area2d {
 
     Map<Vector2d, Vector2d> getLines();
 
+    @Override
+    default boolean boundingBox(double @NotNull [] out) {
+        Map<Vector2d, Vector2d> lines = getLines();
+
+        if (lines.isEmpty()) {
+            return false;
+        }
+
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+
+        for (Map.Entry<Vector2d, Vector2d> line : lines.entrySet()) {
+            Vector2d pos1 = line.getKey();
+            Vector2d pos2 = line.getValue();
+
+            minX = Math.min(minX, Math.min(pos1.x(), pos2.x()));
+            minY = Math.min(minY, Math.min(pos1.y(), pos2.y()));
+            maxX = Math.max(maxX, Math.max(pos1.x(), pos2.x()));
+            maxY = Math.max(maxY, Math.max(pos1.y(), pos2.y()));
+        }
+
+        out[0] = minX;
+        out[1] = minY;
+        out[2] = maxX;
+        out[3] = maxY;
+        return true;
+    }
+
     @Override
     @ApiStatus.Internal
     @SuppressWarnings("unchecked")
@@ -35,7 +63,7 @@ public interface Area2dPolygon extends Area2d {
                     Vector2d pos1 = line.getKey();
                     Vector2d pos2 = line.getValue();
 
-                    Vector2d pos = Intersection2dUtils.lineIntersection(
+                    double t = Intersection2dUtils.lineIntersectionT(
                             direction,
 
                             posX, posY,
@@ -45,12 +73,22 @@ public interface Area2dPolygon extends Area2d {
                             pos2.x(), pos2.y()
                     );
 
-                    if (pos != null) {
-                        return (R) pos;
+                    if (!Double.isNaN(t) && intersection.withinBounds(t)) {
+                        return (R) Vector2d.of(posX + dirX * t, posY + dirY * t);
                     }
                 }
 
                 return null;
+            case NEAREST:
+            case FARTHEST: {
+                double t = intersectT(posX, posY, dirX, dirY, intersection, null);
+
+                if (Double.isNaN(t)) {
+                    return null;
+                }
+
+                return (R) Vector2d.of(posX + dirX * t, posY + dirY * t);
+            }
             case ALL:
                 List<Vector2d> result = new ArrayList<>();
 
@@ -58,7 +96,7 @@ public interface Area2dPolygon extends Area2d {
                     Vector2d pos1 = line.getKey();
                     Vector2d pos2 = line.getValue();
 
-                    Vector2d pos = Intersection2dUtils.lineIntersection(
+                    double t = Intersection2dUtils.lineIntersectionT(
                             direction,
 
                             posX, posY,
@@ -68,12 +106,90 @@ public interface Area2dPolygon extends Area2d {
                             pos2.x(), pos2.y()
                     );
 
-                    if (pos != null) {
-                        result.add(pos);
+                    if (!Double.isNaN(t) && intersection.withinBounds(t)) {
+                        result.add(Vector2d.of(posX + dirX * t, posY + dirY * t));
                     }
                 }
                 return (R) result;
+            case COUNT:
+                int count = 0;
+
+                for (Map.Entry<Vector2d, Vector2d> line : getLines().entrySet()) {
+                    Vector2d pos1 = line.getKey();
+                    Vector2d pos2 = line.getValue();
+
+                    double t = Intersection2dUtils.lineIntersectionT(
+                            direction,
+
+                            posX, posY,
+                            posXb, posYb,
+
+                            pos1.x(), pos1.y(),
+                            pos2.x(), pos2.y()
+                    );
+
+                    if (!Double.isNaN(t) && intersection.withinBounds(t)) {
+                        count++;
+                    }
+                }
+                return (R) Integer.valueOf(count);
+        }
+    }
+
+    @Override
+    default double intersectT(double posX, double posY, double dirX, double dirY, @NotNull Intersection<?> intersection, @Nullable Area2dHit hit) {
+        Intersection.Direction direction = intersection.direction();
+        Intersection.Collector.Type type = intersection.collector().type();
+        boolean farthest = type == Intersection.Collector.Type.FARTHEST;
+
+        // Track the best line parameter and the line it was found on
+        double best = Double.NaN;
+        double bestLineX = 0;
+        double bestLineY = 0;
+
+        for (Map.Entry<Vector2d, Vector2d> line : getLines().entrySet()) {
+            Vector2d pos1 = line.getKey();
+            Vector2d pos2 = line.getValue();
+
+            double t = Intersection2dUtils.lineIntersectionT(
+                    direction,
+
+                    posX, posY,
+                    posX + dirX, posY + dirY,
+
+                    pos1.x(), pos1.y(),
+                    pos2.x(), pos2.y()
+            );
+
+            if (Double.isNaN(t) || !intersection.withinBounds(t)) {
+                continue;
+            }
+
+            if (Double.isNaN(best) || (farthest ? Math.abs(t) > Math.abs(best) : Math.abs(t) < Math.abs(best))) {
+                best = t;
+                bestLineX = pos2.x() - pos1.x();
+                bestLineY = pos2.y() - pos1.y();
+            }
+
+            if (type == Intersection.Collector.Type.ANY) {
+                break;
+            }
+        }
+
+        if (hit != null && !Double.isNaN(best)) {
+            // The normal is perpendicular to the line, facing against the line direction
+            double length = Math.sqrt(bestLineX * bestLineX + bestLineY * bestLineY);
+            double normalX = bestLineY / length;
+            double normalY = -bestLineX / length;
+
+            if (normalX * dirX + normalY * dirY > 0) {
+                normalX = -normalX;
+                normalY = -normalY;
+            }
+
+            hit.set(best, normalX, normalY, this);
         }
+        return best;
     }
 
     /**
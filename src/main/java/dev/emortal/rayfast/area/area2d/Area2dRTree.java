@@ -0,0 +1,745 @@
+package dev.emortal.rayfast.area.area2d;
+
+import dev.emortal.rayfast.area.Intersection;
+import dev.emortal.rayfast.util.Intersection2dUtils;
+import dev.emortal.rayfast.vector.Vector2d;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A combined area2d backed by an R-tree.
+ * <br><br>
+ * The tree is bulk loaded with the sort-tile-recursive algorithm over the bounds of its areas, which are read once
+ * when it is built. Nodes are stored in flat arrays, and line intersections visit the nodes nearest to the line
+ * position first. Areas that are unbounded (see {@link Area2d#boundingBox(double[])}) are kept aside and always tested.
+ */
+public final class Area2dRTree implements Area2d {
+
+    // Node storage, indexed by node id. Leaves come first, and the root is the last node.
+    private final double[] bounds; // minX, minY, maxX, maxY of every node
+    private final int[] first; // First child node, or first area if the node is a leaf
+    private final int[] count; // Number of children or areas
+    private final int leafCount;
+
+    private final Area2d[] areas;
+    private final Area2d[] unbounded;
+
+    private final double buildCost;
+
+    // Traversal buffers of every thread, reused between queries so that queries do not allocate. A query made while the
+    // buffers of its thread are in use, by an area of this tree, allocates its own. The buffers must not reference the
+    // tree, or the thread would keep it alive.
+    private final ThreadLocal<QueryBuffers> buffers;
+
+    private Area2dRTree(double[] bounds, int[] first, int[] count, int leafCount, Area2d[] areas, Area2d[] unbounded) {
+        this.bounds = bounds;
+        this.first = first;
+        this.count = count;
+        this.leafCount = leafCount;
+        this.areas = areas;
+        this.unbounded = unbounded;
+        this.buildCost = cost();
+
+        int nodeCount = count.length;
+        this.buffers = ThreadLocal.withInitial(() -> new QueryBuffers(nodeCount));
+    }
+
+    /**
+     * Returns a builder of the tree. This builder is used to tune how the tree is built.
+     * @return the builder
+     */
+    public static @NotNull Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Re-reads the bounds of every area, and recomputes the bounds of every node from the bottom up. The structure of
+     * the tree is kept, so this is linear in the number of areas, but the quality of the tree degrades as the areas
+     * move away from where they were when it was built. Use {@link #costRatio()} to decide when to rebuild instead.
+     * <br><br>
+     * This must not be called while the tree is being queried from another thread.
+     *
+     * @throws IllegalStateException if an area no longer has bounds
+     */
+    public void refit() {
+        double[] box = new double[4];
+
+        // Every level comes before the level above it, so walking forwards visits every child before its parent
+        for (int node = 0; node < count.length; node++) {
+            int offset = node * 4;
+            double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+
+            for (int i = first[node]; i < first[node] + count[node]; i++) {
+                double[] source = bounds;
+                int sourceOffset = i * 4;
+
+                if (isLeaf(node)) {
+                    if (!areas[i].boundingBox(box)) {
+                        throw new IllegalStateException(areas[i] + " no longer has bounds, the tree must be rebuilt");
+                    }
+                    source = box;
+                    sourceOffset = 0;
+                }
+
+                minX = Math.min(minX, source[sourceOffset]);
+                minY = Math.min(minY, source[sourceOffset + 1]);
+                maxX = Math.max(maxX, source[sourceOffset + 2]);
+                maxY = Math.max(maxY, source[sourceOffset + 3]);
+            }
+
+            bounds[offset] = minX;
+            bounds[offset + 1] = minY;
+            bounds[offset + 2] = maxX;
+            bounds[offset + 3] = maxY;
+        }
+    }
+
+    /**
+     * Returns the perimeter heuristic cost of this tree, which is the expected number of node and area tests run by a
+     * random line through the bounds of the tree. Lower is better.
+     * @return the cost of this tree
+     */
+    public double cost() {
+        if (count.length == 0) {
+            return 0;
+        }
+
+        double rootPerimeter = perimeter(root());
+
+        if (!(rootPerimeter > 0)) {
+            return areas.length;
+        }
+
+        double cost = 0;
+
+        for (int node = 0; node < count.length; node++) {
+            cost += perimeter(node) / rootPerimeter * count[node];
+        }
+
+        return cost;
+    }
+
+    /**
+     * Returns the current {@link #cost()} of this tree relative to its cost when it was built. The ratio grows as
+     * {@link #refit()} stretches the nodes over areas that moved apart. A rebuild is usually worth it once this ratio
+     * exceeds 1.5 to 2.
+     * @return the cost of this tree relative to its cost when it was built
+     */
+    public double costRatio() {
+        return buildCost > 0 ? cost() / buildCost : 1;
+    }
+
+    private double perimeter(int node) {
+        double x = bounds[node * 4 + 2] - bounds[node * 4];
+        double y = bounds[node * 4 + 3] - bounds[node * 4 + 1];
+
+        if (!(x >= 0 && y >= 0)) {
+            return 0;
+        }
+
+        return 2 * (x + y);
+    }
+
+    private int root() {
+        return count.length - 1;
+    }
+
+    private boolean isLeaf(int node) {
+        return node < leafCount;
+    }
+
+    @Override
+    public boolean containsPoint(double x, double y) {
+        for (Area2d area2d : unbounded) {
+            if (area2d.containsPoint(x, y)) {
+                return true;
+            }
+        }
+
+        if (count.length == 0) {
+            return false;
+        }
+
+        QueryBuffers buffers = acquireBuffers();
+        try {
+            return containsPoint(x, y, buffers.stack);
+        } finally {
+            buffers.inUse = false;
+        }
+    }
+
+    private boolean containsPoint(double x, double y, int[] stack) {
+        int size = 0;
+        stack[size++] = root();
+
+        while (size > 0) {
+            int node = stack[--size];
+            int offset = node * 4;
+
+            if (x < bounds[offset] || y < bounds[offset + 1] || x > bounds[offset + 2] || y > bounds[offset + 3]) {
+                continue;
+            }
+
+            if (isLeaf(node)) {
+                for (int i = first[node]; i < first[node] + count[node]; i++) {
+                    if (areas[i].containsPoint(x, y)) {
+                        return true;
+                    }
+                }
+                continue;
+            }
+
+            for (int child = first[node]; child < first[node] + count[node]; child++) {
+                stack[size++] = child;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public boolean boundingBox(double @NotNull [] out) {
+        if (count.length == 0 || unbounded.length > 0) {
+            return false;
+        }
+
+        System.arraycopy(bounds, root() * 4, out, 0, 4);
+        return true;
+    }
+
+    @Override
+    public <R> @Nullable R lineIntersection(double posX, double posY, double dirX, double dirY, @NotNull Intersection<R> intersection) {
+        QueryBuffers buffers = acquireBuffers();
+        try {
+            return lineIntersection(posX, posY, dirX, dirY, intersection, buffers);
+        } finally {
+            buffers.inUse = false;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R> @Nullable R lineIntersection(double posX, double posY, double dirX, double dirY, Intersection<R> intersection, QueryBuffers buffers) {
+        Intersection.Collector.Type collectorType = intersection.collector().type();
+
+        // Don't initialize this collection until we know that we need to collect the values.
+        List<Vector2d> list = null;
+
+        if (collectorType == Intersection.Collector.Type.ALL) {
+            list = new ArrayList<>();
+        }
+
+        // The best intersection so far, and its squared distance to the line position
+        boolean nearest = collectorType == Intersection.Collector.Type.NEAREST;
+        Vector2d best = null;
+        double bestDistance = 0;
+        int intersectionCount = 0;
+        double dirLengthSquared = dirX * dirX + dirY * dirY;
+
+        // Find the interval of the line that the direction and the segment allow
+        double tMin = intersection.minT();
+        double tMax = intersection.maxT();
+
+        switch (intersection.direction()) {
+            case FORWARDS:
+                tMin = Math.max(tMin, 0);
+                break;
+            case BACKWARDS:
+                tMax = Math.min(tMax, 0);
+                break;
+        }
+
+        if (count.length > 0) {
+            double invDirX = 1.0 / dirX;
+            double invDirY = 1.0 / dirY;
+
+            // Min heap of nodes, keyed by their distance from the line position
+            double[] heapKeys = buffers.heapKeys;
+            int[] heapNodes = buffers.heapNodes;
+            int heapSize = 0;
+
+            double rootDistance = distance(root(), posX, posY, invDirX, invDirY, tMin, tMax);
+            if (!Double.isNaN(rootDistance)) {
+                heapKeys[0] = rootDistance;
+                heapNodes[0] = root();
+                heapSize = 1;
+            }
+
+            while (heapSize > 0) {
+                int node = heapNodes[0];
+                double nodeDistance = heapKeys[0];
+
+                // Every remaining node is further away than the nearest intersection
+                if (nearest && best != null && nodeDistance * nodeDistance * dirLengthSquared > bestDistance) {
+                    break;
+                }
+
+                // Pop the nearest node
+                heapSize--;
+                siftDown(heapKeys, heapNodes, heapSize, heapKeys[heapSize], heapNodes[heapSize]);
+
+                if (isLeaf(node)) {
+                    for (int i = first[node]; i < first[node] + count[node]; i++) {
+                        R result = areas[i].lineIntersection(posX, posY, dirX, dirY, intersection);
+
+                        if (result == null) {
+                            continue;
+                        }
+
+                        switch (collectorType) {
+                            default:
+                            case ANY:
+                                return result;
+                            case ALL:
+                                list.addAll((Collection<Vector2d>) result);
+                                break;
+                            case COUNT:
+                                intersectionCount += Intersection2dUtils.count(result, areas[i], posX, posY, dirX, dirY, intersection);
+                                break;
+                            case NEAREST:
+                            case FARTHEST: {
+                                Vector2d vector = (Vector2d) result;
+                                double distance = distanceSquared(vector, posX, posY);
+
+                                if (best == null || (nearest ? distance < bestDistance : distance > bestDistance)) {
+                                    best = vector;
+                                    bestDistance = distance;
+                                }
+                            }
+                        }
+                    }
+                    continue;
+                }
+
+                for (int child = first[node]; child < first[node] + count[node]; child++) {
+                    double distance = distance(child, posX, posY, invDirX, invDirY, tMin, tMax);
+
+                    if (Double.isNaN(distance)) {
+                        continue;
+                    }
+
+                    siftUp(heapKeys, heapNodes, heapSize++, distance, child);
+                }
+            }
+        }
+
+        for (Area2d area2d : unbounded) {
+            R result = area2d.lineIntersection(posX, posY, dirX, dirY, intersection);
+
+            if (result == null) {
+                continue;
+            }
+
+            switch (collectorType) {
+                default:
+                case ANY:
+                    return result;
+                case ALL:
+                    list.addAll((Collection<Vector2d>) result);
+                    break;
+                case COUNT:
+                    intersectionCount += Intersection2dUtils.count(result, area2d, posX, posY, dirX, dirY, intersection);
+                    break;
+                case NEAREST:
+                case FARTHEST: {
+                    Vector2d vector = (Vector2d) result;
+                    double distance = distanceSquared(vector, posX, posY);
+
+                    if (best == null || (nearest ? distance < bestDistance : distance > bestDistance)) {
+                        best = vector;
+                        bestDistance = distance;
+                    }
+                }
+            }
+        }
+
+        switch (collectorType) {
+            case ALL:
+                return (R) list;
+            case COUNT:
+                return (R) Integer.valueOf(intersectionCount);
+            default:
+                return (R) best;
+        }
+    }
+
+    @Override
+    public double intersectT(double posX, double posY, double dirX, double dirY, @NotNull Intersection<?> intersection, @Nullable Area2dHit hit) {
+        QueryBuffers buffers = acquireBuffers();
+        try {
+            return intersectT(posX, posY, dirX, dirY, intersection, hit, buffers);
+        } finally {
+            buffers.inUse = false;
+        }
+    }
+
+    private double intersectT(double posX, double posY, double dirX, double dirY, Intersection<?> intersection, @Nullable Area2dHit hit, QueryBuffers buffers) {
+        Intersection.Collector.Type type = intersection.collector().type();
+        boolean farthest = type == Intersection.Collector.Type.FARTHEST;
+        double best = Double.NaN;
+        Area2d bestArea = null;
+
+        for (Area2d area2d : unbounded) {
+            double t = area2d.intersectT(posX, posY, dirX, dirY, intersection, null);
+
+            if (!Double.isNaN(t) && (bestArea == null || (farthest ? Math.abs(t) > Math.abs(best) : Math.abs(t) < Math.abs(best)))) {
+                best = t;
+                bestArea = area2d;
+            }
+        }
+
+        // Find the interval of the line that the direction and the segment allow
+        double tMin = intersection.minT();
+        double tMax = intersection.maxT();
+
+        switch (intersection.direction()) {
+            case FORWARDS:
+                tMin = Math.max(tMin, 0);
+                break;
+            case BACKWARDS:
+                tMax = Math.min(tMax, 0);
+                break;
+        }
+
+        double invDirX = 1.0 / dirX;
+        double invDirY = 1.0 / dirY;
+
+        // Min heap of nodes, keyed by their distance from the line position
+        double[] heapKeys = buffers.heapKeys;
+        int[] heapNodes = buffers.heapNodes;
+        int heapSize = 0;
+
+        double rootDistance = count.length == 0 ? Double.NaN : distance(root(), posX, posY, invDirX, invDirY, tMin, tMax);
+        if (!Double.isNaN(rootDistance) && !(type == Intersection.Collector.Type.ANY && bestArea != null)) {
+            heapKeys[0] = rootDistance;
+            heapNodes[0] = root();
+            heapSize = 1;
+        }
+
+        traversal:
+        while (heapSize > 0) {
+            int node = heapNodes[0];
+
+            // Every remaining node is further away than the nearest intersection
+            if (!farthest && bestArea != null && heapKeys[0] > Math.abs(best)) {
+                break;
+            }
+
+            // Pop the nearest node
+            heapSize--;
+            siftDown(heapKeys, heapNodes, heapSize, heapKeys[heapSize], heapNodes[heapSize]);
+
+            if (isLeaf(node)) {
+                for (int i = first[node]; i < first[node] + count[node]; i++) {
+                    double t = areas[i].intersectT(posX, posY, dirX, dirY, intersection, null);
+
+                    if (Double.isNaN(t)) {
+                        continue;
+                    }
+
+                    if (bestArea == null || (farthest ? Math.abs(t) > Math.abs(best) : Math.abs(t) < Math.abs(best))) {
+                        best = t;
+                        bestArea = areas[i];
+                    }
+
+                    if (type == Intersection.Collector.Type.ANY) {
+                        break traversal;
+                    }
+                }
+                continue;
+            }
+
+            for (int child = first[node]; child < first[node] + count[node]; child++) {
+                double distance = distance(child, posX, posY, invDirX, invDirY, tMin, tMax);
+
+                if (Double.isNaN(distance)) {
+                    continue;
+                }
+
+                siftUp(heapKeys, heapNodes, heapSize++, distance, child);
+            }
+        }
+
+        // Only the best area fills in the record
+        if (hit != null && bestArea != null) {
+            bestArea.intersectT(posX, posY, dirX, dirY, intersection, hit);
+        }
+        return best;
+    }
+
+    private QueryBuffers acquireBuffers() {
+        QueryBuffers buffers = this.buffers.get();
+
+        if (buffers.inUse) {
+            buffers = new QueryBuffers(count.length);
+        }
+
+        buffers.inUse = true;
+        return buffers;
+    }
+
+    private static double distanceSquared(Vector2d vector, double posX, double posY) {
+        double x = vector.x() - posX;
+        double y = vector.y() - posY;
+        return x * x + y * y;
+    }
+
+    private double distance(int node, double posX, double posY, double invDirX, double invDirY, double tMin, double tMax) {
+        int offset = node * 4;
+        return Intersection2dUtils.boxDistance(
+                posX, posY,
+                invDirX, invDirY,
+                bounds[offset], bounds[offset + 1],
+                bounds[offset + 2], bounds[offset + 3],
+                tMin, tMax
+        );
+    }
+
+    private static void siftUp(double[] keys, int[] nodes, int index, double key, int node) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (keys[parent] <= key) {
+                break;
+            }
+            keys[index] = keys[parent];
+            nodes[index] = nodes[parent];
+            index = parent;
+        }
+        keys[index] = key;
+        nodes[index] = node;
+    }
+
+    private static void siftDown(double[] keys, int[] nodes, int size, double key, int node) {
+        int index = 0;
+        while (true) {
+            int child = index * 2 + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && keys[child + 1] < keys[child]) {
+                child++;
+            }
+            if (key <= keys[child]) {
+                break;
+            }
+            keys[index] = keys[child];
+            nodes[index] = nodes[child];
+            index = child;
+        }
+        if (index < size) {
+            keys[index] = key;
+            nodes[index] = node;
+        }
+    }
+
+    /**
+     * The buffers of the traversals of one thread. Every node is pushed at most once per query, so the buffers are
+     * sized to the number of nodes and never grow.
+     */
+    private static final class QueryBuffers {
+        private final int[] stack;
+        private final double[] heapKeys;
+        private final int[] heapNodes;
+        private boolean inUse;
+
+        private QueryBuffers(int nodeCount) {
+            this.stack = new int[nodeCount];
+            this.heapKeys = new double[nodeCount];
+            this.heapNodes = new int[nodeCount];
+        }
+    }
+
+    public static class Builder {
+        private Builder() {
+        }
+
+        private int nodeSize = 8;
+
+        /**
+         * Sets the maximum number of children of every node, and of areas of every leaf
+         * @param nodeSize the maximum number of children
+         * @return the builder
+         */
+        public @NotNull Builder nodeSize(int nodeSize) {
+            if (nodeSize < 2) {
+                throw new IllegalArgumentException("Node size must be at least 2, got " + nodeSize);
+            }
+            this.nodeSize = nodeSize;
+            return this;
+        }
+
+        /**
+         * Builds the tree over the specified areas
+         * @param area2ds the areas
+         * @return the tree
+         */
+        public @NotNull Area2dRTree build(@NotNull Collection<? extends Area2d> area2ds) {
+            return build(area2ds.toArray(Area2d[]::new));
+        }
+
+        /**
+         * Builds the tree over the specified areas
+         * @param area2ds the areas
+         * @return the tree
+         */
+        public @NotNull Area2dRTree build(Area2d... area2ds) {
+            // Separate the bounded and unbounded areas
+            List<Area2d> bounded = new ArrayList<>(area2ds.length);
+            List<Area2d> unbounded = new ArrayList<>();
+            double[] box = new double[4];
+            double[] boxes = new double[area2ds.length * 4];
+
+            for (Area2d area2d : area2ds) {
+                if (area2d.boundingBox(box)) {
+                    System.arraycopy(box, 0, boxes, bounded.size() * 4, 4);
+                    bounded.add(area2d);
+                } else {
+                    unbounded.add(area2d);
+                }
+            }
+
+            if (bounded.isEmpty()) {
+                return new Area2dRTree(new double[0], new int[0], new int[0], 0, new Area2d[0], unbounded.toArray(Area2d[]::new));
+            }
+
+            // Pack the areas into leaves
+            int entries = bounded.size();
+            int[] order = tile(boxes, entries);
+
+            Area2d[] ordered = new Area2d[entries];
+            double[] orderedBoxes = new double[entries * 4];
+            for (int i = 0; i < entries; i++) {
+                ordered[i] = bounded.get(order[i]);
+                System.arraycopy(boxes, order[i] * 4, orderedBoxes, i * 4, 4);
+            }
+
+            Level level = pack(orderedBoxes, entries);
+            List<Level> levels = new ArrayList<>();
+            levels.add(level);
+
+            // Pack every level into the next, until a single root remains
+            while (level.count.length > 1) {
+                int nodes = level.count.length;
+                int[] nodeOrder = tile(level.bounds, nodes);
+
+                // Reorder this level, so that the children of every parent are contiguous
+                Level reordered = new Level(nodes);
+                for (int i = 0; i < nodes; i++) {
+                    System.arraycopy(level.bounds, nodeOrder[i] * 4, reordered.bounds, i * 4, 4);
+                    reordered.first[i] = level.first[nodeOrder[i]];
+                    reordered.count[i] = level.count[nodeOrder[i]];
+                }
+                levels.set(levels.size() - 1, reordered);
+
+                level = pack(reordered.bounds, nodes);
+                levels.add(level);
+            }
+
+            // Concatenate the levels, offsetting the children of every node by the start of the level below
+            int total = 0;
+            for (Level l : levels) {
+                total += l.count.length;
+            }
+
+            double[] bounds = new double[total * 4];
+            int[] first = new int[total];
+            int[] count = new int[total];
+            int offset = 0;
+            int childOffset = 0;
+
+            for (int i = 0; i < levels.size(); i++) {
+                Level l = levels.get(i);
+                int nodes = l.count.length;
+
+                System.arraycopy(l.bounds, 0, bounds, offset * 4, nodes * 4);
+                System.arraycopy(l.count, 0, count, offset, nodes);
+                for (int j = 0; j < nodes; j++) {
+                    first[offset + j] = l.first[j] + (i == 0 ? 0 : childOffset);
+                }
+
+                childOffset = offset;
+                offset += nodes;
+            }
+
+            return new Area2dRTree(bounds, first, count, levels.get(0).count.length, ordered, unbounded.toArray(Area2d[]::new));
+        }
+
+        /**
+         * Sorts the specified boxes into tiles, first in vertical slices by center X, then by center Y within every
+         * slice.
+         * @return the order of the boxes
+         */
+        private int[] tile(double[] boxes, int entries) {
+            Integer[] order = new Integer[entries];
+            for (int i = 0; i < entries; i++) {
+                order[i] = i;
+            }
+
+            Arrays.sort(order, Comparator.comparingDouble(i -> boxes[i * 4] + boxes[i * 4 + 2]));
+
+            int nodes = (entries + nodeSize - 1) / nodeSize;
+            int slices = (int) Math.ceil(Math.sqrt(nodes));
+            int sliceSize = slices * nodeSize;
+
+            for (int start = 0; start < entries; start += sliceSize) {
+                Arrays.sort(order, start, Math.min(entries, start + sliceSize), Comparator.comparingDouble(i -> boxes[i * 4 + 1] + boxes[i * 4 + 3]));
+            }
+
+            int[] result = new int[entries];
+            for (int i = 0; i < entries; i++) {
+                result[i] = order[i];
+            }
+            return result;
+        }
+
+        /**
+         * Packs consecutive runs of the specified boxes into nodes
+         */
+        private Level pack(double[] boxes, int entries) {
+            int nodes = (entries + nodeSize - 1) / nodeSize;
+            Level level = new Level(nodes);
+
+            for (int node = 0; node < nodes; node++) {
+                int start = node * nodeSize;
+                int end = Math.min(entries, start + nodeSize);
+
+                double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+                double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+
+                for (int i = start; i < end; i++) {
+                    minX = Math.min(minX, boxes[i * 4]);
+                    minY = Math.min(minY, boxes[i * 4 + 1]);
+                    maxX = Math.max(maxX, boxes[i * 4 + 2]);
+                    maxY = Math.max(maxY, boxes[i * 4 + 3]);
+                }
+
+                level.bounds[node * 4] = minX;
+                level.bounds[node * 4 + 1] = minY;
+                level.bounds[node * 4 + 2] = maxX;
+                level.bounds[node * 4 + 3] = maxY;
+                level.first[node] = start;
+                level.count[node] = end - start;
+            }
+
+            return level;
+        }
+
+        private static final class Level {
+            private final double[] bounds;
+            private final int[] first;
+            private final int[] count;
+
+            private Level(int nodes) {
+                this.bounds = new double[nodes * 4];
+                this.first = new int[nodes];
+                this.count = new int[nodes];
+            }
+        }
+    }
+}
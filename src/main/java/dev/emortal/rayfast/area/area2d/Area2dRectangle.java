@@ -2,12 +2,12 @@ package dev.emortal.rayfast.area.area2d;
 
 import dev.emortal.rayfast.area.Intersection;
 import dev.emortal.rayfast.util.FunctionalInterfaces;
-import dev.emortal.rayfast.util.Intersection2dUtils;
 import dev.emortal.rayfast.vector.Vector2d;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public interface Area2dRectangle extends Area2d {
@@ -17,134 +17,174 @@ public interface Area2dRectangle extends Area2d {
     double getMaxX();
     double getMaxY();
 
-    @SuppressWarnings("unchecked")
-    default <R> @Nullable R lineIntersection(double posX, double posY, double dirX, double dirY, @NotNull Intersection<R> intersection) {
-        Intersection.Direction direction = intersection.direction();
-
-
-        double posXb = posX + dirX;
-        double posYb = posY + dirY;
+    @Override
+    default boolean boundingBox(double @NotNull [] out) {
+        out[0] = getMinX();
+        out[1] = getMinY();
+        out[2] = getMaxX();
+        out[3] = getMaxY();
+        return true;
+    }
 
+    @Override
+    default boolean containsPoint(double x, double y) {
+        return x >= getMinX() && x <= getMaxX() && y >= getMinY() && y <= getMaxY();
+    }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    default <R> @Nullable R lineIntersection(double posX, double posY, double dirX, double dirY, @NotNull Intersection<R> intersection) {
         switch (intersection.collector().type()) {
+            default:
             case ANY:
-                // Bottom line
-                {
-                    Vector2d vector = Intersection2dUtils.lineIntersection(
-                            direction,
-                            getMinX(), getMinY(),
-                            getMaxX(), getMinY(),
-                            posX, posY, posXb, posYb
-                    );
-                    if (vector != null) {
-                        return (R) vector;
-                    }
-                }
+            case NEAREST:
+            case FARTHEST: {
+                double t = intersectT(posX, posY, dirX, dirY, intersection, null);
 
-                // Left line
-                {
-                    Vector2d vector = Intersection2dUtils.lineIntersection(
-                            direction,
-                            getMinX(), getMinY(),
-                            getMinX(), getMaxY(),
-                            posX, posY, posXb, posYb
-                    );
-
-                    if (vector != null) {
-                        return (R) vector;
-                    }
+                if (Double.isNaN(t)) {
+                    return null;
                 }
 
-                // Right line
-                {
-                    Vector2d vector = Intersection2dUtils.lineIntersection(
-                            direction,
-                            getMaxX(), getMinY(),
-                            getMaxX(), getMaxY(),
-                            posX, posY, posXb, posYb
-                    );
-
-                    if (vector != null) {
-                        return (R) vector;
-                    }
+                return (R) Vector2d.of(posX + dirX * t, posY + dirY * t);
+            }
+            case ALL: {
+                double invDirX = 1.0 / dirX;
+                double invDirY = 1.0 / dirY;
+                double near = slab(posX, posY, invDirX, invDirY, intersection, true, null);
+
+                // An empty collection is shared, so that a miss never allocates
+                if (Double.isNaN(near)) {
+                    return (R) Collections.emptyList();
                 }
 
-                // Top line
-                {
-                    Vector2d vector = Intersection2dUtils.lineIntersection(
-                            direction,
-                            getMinX(), getMaxY(),
-                            getMaxX(), getMaxY(),
-                            posX, posY, posXb, posYb
-                    );
-
-                    if (vector != null) {
-                        return (R) vector;
-                    }
-                }
+                double far = slab(posX, posY, invDirX, invDirY, intersection, false, null);
+                double first = Math.min(near, far);
+                double second = Math.max(near, far);
 
-                return null;
-            case ALL:
-                List<Vector2d> vectors = new ArrayList<>();
-                // Bottom line
-                {
-                    Vector2d vector = Intersection2dUtils.lineIntersection(
-                            direction,
-                            getMinX(), getMinY(),
-                            getMaxX(), getMinY(),
-                            posX, posY, posXb, posYb
-                    );
-                    if (vector != null) {
-                        vectors.add(vector);
-                    }
-                }
+                List<Vector2d> result = new ArrayList<>(2);
+                result.add(Vector2d.of(posX + dirX * first, posY + dirY * first));
 
-                // Left line
-                {
-                    Vector2d vector = Intersection2dUtils.lineIntersection(
-                            direction,
-                            getMinX(), getMinY(),
-                            getMinX(), getMaxY(),
-                            posX, posY, posXb, posYb
-                    );
-
-                    if (vector != null) {
-                        vectors.add(vector);
-                    }
+                if (second != first) {
+                    result.add(Vector2d.of(posX + dirX * second, posY + dirY * second));
                 }
+                return (R) result;
+            }
+            case COUNT: {
+                double invDirX = 1.0 / dirX;
+                double invDirY = 1.0 / dirY;
+                double near = slab(posX, posY, invDirX, invDirY, intersection, true, null);
 
-                // Right line
-                {
-                    Vector2d vector = Intersection2dUtils.lineIntersection(
-                            direction,
-                            getMaxX(), getMinY(),
-                            getMaxX(), getMaxY(),
-                            posX, posY, posXb, posYb
-                    );
-
-                    if (vector != null) {
-                        vectors.add(vector);
-                    }
+                if (Double.isNaN(near)) {
+                    return (R) Integer.valueOf(0);
                 }
 
-                // Top line
-                {
-                    Vector2d vector = Intersection2dUtils.lineIntersection(
-                            direction,
-                            getMinX(), getMaxY(),
-                            getMaxX(), getMaxY(),
-                            posX, posY, posXb, posYb
-                    );
-
-                    if (vector != null) {
-                        vectors.add(vector);
-                    }
-                }
-                return (R) vectors;
+                // If only one intersection is allowed, both ends select it
+                double far = slab(posX, posY, invDirX, invDirY, intersection, false, null);
+                return (R) Integer.valueOf(near == far ? 1 : 2);
+            }
+        }
+    }
+
+    @Override
+    default double intersectT(double posX, double posY, double dirX, double dirY, @NotNull Intersection<?> intersection, @Nullable Area2dHit hit) {
+        boolean nearest = intersection.collector().type() != Intersection.Collector.Type.FARTHEST;
+        return slab(posX, posY, 1.0 / dirX, 1.0 / dirY, intersection, nearest, hit);
+    }
+
+    /**
+     * Clips the line against the slab of both axes, where the line enters the rectangle at tNear and leaves at tFar,
+     * and returns the allowed one within the segment of the intersection that is nearest to, or furthest from, the line
+     * position. An axis with an infinite inverse direction is not moved along.
+     */
+    private double slab(double posX, double posY, double invDirX, double invDirY, Intersection<?> intersection, boolean nearest, @Nullable Area2dHit hit) {
+        double minX = getMinX();
+        double minY = getMinY();
+        double maxX = getMaxX();
+        double maxY = getMaxY();
+
+        double tNear = Double.NEGATIVE_INFINITY;
+        double tFar = Double.POSITIVE_INFINITY;
+        int nearFace = Area2dHit.NO_FACE;
+        int farFace = Area2dHit.NO_FACE;
+
+        // Going towards the positive side of an axis, the line enters through the min edge and leaves through the max edge
+        if (Math.abs(invDirX) != Double.POSITIVE_INFINITY) {
+            double enter = ((invDirX > 0 ? minX : maxX) - posX) * invDirX;
+            double exit = ((invDirX > 0 ? maxX : minX) - posX) * invDirX;
+
+            if (enter > tNear) {
+                tNear = enter;
+                nearFace = invDirX > 0 ? Area2dHit.FACE_MIN_X : Area2dHit.FACE_MAX_X;
+            }
+            if (exit < tFar) {
+                tFar = exit;
+                farFace = invDirX > 0 ? Area2dHit.FACE_MAX_X : Area2dHit.FACE_MIN_X;
+            }
+        } else if (posX < minX || posX > maxX) {
+            return Double.NaN;
         }
 
-        throw new IllegalStateException("Unknown intersection collector: " + intersection.collector());
-    };
+        if (Math.abs(invDirY) != Double.POSITIVE_INFINITY) {
+            double enter = ((invDirY > 0 ? minY : maxY) - posY) * invDirY;
+            double exit = ((invDirY > 0 ? maxY : minY) - posY) * invDirY;
+
+            if (enter > tNear) {
+                tNear = enter;
+                nearFace = invDirY > 0 ? Area2dHit.FACE_MIN_Y : Area2dHit.FACE_MAX_Y;
+            }
+            if (exit < tFar) {
+                tFar = exit;
+                farFace = invDirY > 0 ? Area2dHit.FACE_MAX_Y : Area2dHit.FACE_MIN_Y;
+            }
+        } else if (posY < minY || posY > maxY) {
+            return Double.NaN;
+        }
+
+        // A line without a direction never crosses the edges
+        if (!(tNear <= tFar) || Double.isInfinite(tNear)) {
+            return Double.NaN;
+        }
+
+        boolean near = isAllowed(intersection, tNear);
+        boolean far = isAllowed(intersection, tFar);
+
+        if (!near && !far) {
+            return Double.NaN;
+        }
+
+        double t = tFar;
+        int face = farFace;
+
+        if (near && (!far || (Math.abs(tNear) <= Math.abs(tFar)) == nearest)) {
+            t = tNear;
+            face = nearFace;
+        }
+
+        if (hit != null) {
+            hit.set(t, face, this);
+        }
+        return t;
+    }
+
+    /**
+     * Returns true if the intersection at the line parameter t is in the direction and the segment of the intersection.
+     * Like the edge intersections of other area2ds, an intersection at the line position is allowed in both directions.
+     */
+    private static boolean isAllowed(Intersection<?> intersection, double t) {
+        if (!intersection.withinBounds(t)) {
+            return false;
+        }
+
+        switch (intersection.direction()) {
+            case FORWARDS:
+                return t >= 0;
+            case BACKWARDS:
+                return t <= 0;
+            default:
+            case ANY:
+                return true;
+        }
+    }
 
     /**
      * Generates a wrapper for the specified object using the specified getters.
@@ -2,14 +2,17 @@ package dev.emortal.rayfast.area.area3d;
 
 import dev.emortal.rayfast.area.Area;
 import dev.emortal.rayfast.area.Intersection;
+import dev.emortal.rayfast.area.Ray;
+import dev.emortal.rayfast.area.RayPacket;
 import dev.emortal.rayfast.util.Converter;
-import dev.emortal.rayfast.vector.Vector;
+import dev.emortal.rayfast.util.Intersection3dUtils;
 import dev.emortal.rayfast.vector.Vector2d;
 import dev.emortal.rayfast.vector.Vector3d;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 
@@ -28,12 +31,17 @@ public interface Area3d extends Area<Vector3d>, Area3dLike {
      * @return true if the point is inside this area, false otherwise
      */
     default boolean containsPoint(double pointX, double pointY, double pointZ) {
-        // Find all forwards intersections
-        Collection<? extends Vector> result = lineIntersection(pointX, pointY, pointZ, 0.5, 0.5, 0.5, ALL_FORWARDS);
+        // Count all forwards intersections
+        Object count = lineIntersection(pointX, pointY, pointZ, 0.5, 0.5, 0.5, COUNT_FORWARDS);
 
         // If number is odd, then return true
-        assert result != null;
-        return result.size() % 2 != 0;
+        if (count instanceof Integer) {
+            return (Integer) count % 2 != 0;
+        }
+
+        // Areas that do not know the count collector return another result, so find all forwards intersections instead
+        Collection<?> result = lineIntersection(pointX, pointY, pointZ, 0.5, 0.5, 0.5, ALL_FORWARDS);
+        return result != null && result.size() % 2 != 0;
     }
 
     /**
@@ -45,6 +53,19 @@ public interface Area3d extends Area<Vector3d>, Area3dLike {
         return containsPoint(point.x(), point.y(), point.z());
     }
 
+    /**
+     * Writes the axis-aligned bounding box of this area into the specified array, in the order minX, minY, minZ,
+     * maxX, maxY, maxZ.
+     * <br><br>
+     * Areas that cannot describe their bounds return false, and are never culled by area hierarchies.
+     *
+     * @param out the array to write the bounds to, of at least length 6
+     * @return true if the bounds were written, false if this area is unbounded
+     */
+    default boolean boundingBox(double @NotNull [] out) {
+        return false;
+    }
+
     /**
      * Returns the intersection between the specified line and this object.
      * <br><br>
@@ -69,6 +90,187 @@ public interface Area3d extends Area<Vector3d>, Area3dLike {
         return lineIntersection(pos.x(), pos.y(), pos.z(), dir.x(), dir.y(), dir.z(), intersection);
     }
 
+    /**
+     * Finds the intersection between the specified line and this area, without allocating.
+     * <br><br>
+     * The collector of the intersection selects which intersection is found: {@link Intersection.Collector#FARTHEST}
+     * finds the one furthest from the line position, {@link Intersection.Collector#ANY} finds any, and the other
+     * collectors find the nearest. Intersections outside the segment of the intersection are ignored. The default
+     * implementation derives the intersection from
+     * {@link #lineIntersection(double, double, double, double, double, double, Intersection)}, so areas override this
+     * to avoid allocating.
+     *
+     * @param posX line X position
+     * @param posY line Y position
+     * @param posZ line Z position
+     * @param dirX line X direction
+     * @param dirY line Y direction
+     * @param dirZ line Z direction
+     * @param intersection the direction and collector of the intersection
+     * @param hit the record to write the intersection to, or null. It is left untouched on a miss.
+     * @return the line parameter t of the intersection, at the position pos + dir * t, or NaN if none
+     */
+    default double intersectT(double posX, double posY, double posZ, double dirX, double dirY, double dirZ, @NotNull Intersection<?> intersection, @Nullable Area3dHit hit) {
+        boolean farthest = intersection.collector().type() == Intersection.Collector.Type.FARTHEST;
+
+        // Any intersection may be outside the segment, so every intersection is needed. A count has no intersection to
+        // select, so find the nearest like the other collectors.
+        if (intersection.isBounded()) {
+            intersection = intersection.withCollector(Intersection.Collector.ALL);
+        } else if (intersection.collector().type() == Intersection.Collector.Type.COUNT) {
+            intersection = intersection.withCollector(Intersection.Collector.NEAREST);
+        }
+
+        Object result = lineIntersection(posX, posY, posZ, dirX, dirY, dirZ, intersection);
+        double best = selectT(result, posX, posY, posZ, dirX, dirY, dirZ, farthest, Double.POSITIVE_INFINITY, intersection);
+
+        if (hit != null && !Double.isNaN(best)) {
+            hit.set(best, Double.NaN, Double.NaN, Double.NaN, this);
+        }
+        return best;
+    }
+
+    /**
+     * Finds the intersection between the specified ray and this area, without allocating. Intersections beyond the max
+     * length of the ray are ignored.
+     * <br><br>
+     * This behaves like {@link #intersectT(double, double, double, double, double, double, Intersection, Area3dHit)},
+     * but reuses the values precomputed by the ray. The default implementation only derives the intersection from
+     * {@link #lineIntersection(double, double, double, double, double, double, Intersection)} if the ray has a max
+     * length.
+     *
+     * @param ray the ray
+     * @param intersection the direction and collector of the intersection
+     * @param hit the record to write the intersection to, or null. It is left untouched on a miss.
+     * @return the line parameter t of the intersection, at the position pos + dir * t, or NaN if none
+     */
+    default double intersectT(@NotNull Ray ray, @NotNull Intersection<?> intersection, @Nullable Area3dHit hit) {
+        if (!ray.hasMaxLength()) {
+            return intersectT(ray.posX(), ray.posY(), ray.posZ(), ray.dirX(), ray.dirY(), ray.dirZ(), intersection, hit);
+        }
+
+        // Any intersection may be beyond the max length, so every intersection is needed
+        Intersection<?> all = intersection.withCollector(Intersection.Collector.ALL);
+
+        Object result = lineIntersection(ray.posX(), ray.posY(), ray.posZ(), ray.dirX(), ray.dirY(), ray.dirZ(), all);
+        boolean farthest = intersection.collector().type() == Intersection.Collector.Type.FARTHEST;
+        double best = selectT(result, ray.posX(), ray.posY(), ray.posZ(), ray.dirX(), ray.dirY(), ray.dirZ(), farthest, ray.maxT(), intersection);
+
+        if (hit != null && !Double.isNaN(best)) {
+            hit.set(best, Double.NaN, Double.NaN, Double.NaN, this);
+        }
+        return best;
+    }
+
+    /**
+     * Finds the intersection between every ray of the specified packet and this area, without allocating. The line
+     * parameter t of the intersection of ray {@code i} is written to {@code out[i]}, or NaN if none.
+     * <br><br>
+     * This behaves like calling {@link #intersectT(Ray, Intersection, Area3dHit)} for every ray, which the default
+     * implementation does. Combined areas and indices override this to traverse their areas once for the whole packet.
+     *
+     * @param packet the rays
+     * @param intersection the direction and collector of the intersection of every ray
+     * @param out the array to write the line parameter of every ray to
+     * @param hits the records to write the intersection of every ray to, or null. A record is left untouched on a miss.
+     */
+    default void intersectT(@NotNull RayPacket packet, @NotNull Intersection<?> intersection, double @NotNull [] out, @NotNull Area3dHit @Nullable [] hits) {
+        for (int i = 0; i < packet.size(); i++) {
+            out[i] = intersectT(packet.ray(i), intersection, hits == null ? null : hits[i]);
+        }
+    }
+
+    /**
+     * Returns the intersection between the specified ray and this area. Intersections beyond the max length of the ray
+     * are ignored.
+     * <br><br>
+     * @param ray the ray
+     * @param intersection the direction and collector of the intersection
+     * @return the computed line intersection position, null if none
+     */
+    @SuppressWarnings("unchecked")
+    default <R> @Nullable R lineIntersection(@NotNull Ray ray, @NotNull Intersection<R> intersection) {
+        if (!ray.hasMaxLength() && !intersection.isBounded()) {
+            return lineIntersection(ray.posX(), ray.posY(), ray.posZ(), ray.dirX(), ray.dirY(), ray.dirZ(), intersection);
+        }
+
+        Intersection.Collector.Type type = intersection.collector().type();
+
+        if (type != Intersection.Collector.Type.ALL && type != Intersection.Collector.Type.COUNT) {
+            double t = intersectT(ray, intersection, null);
+
+            if (Double.isNaN(t)) {
+                return null;
+            }
+
+            return (R) Vector3d.of(ray.posX() + ray.dirX() * t, ray.posY() + ray.dirY() * t, ray.posZ() + ray.dirZ() * t);
+        }
+
+        // Every intersection is needed to filter them by length and segment, even to count them
+        Intersection<?> all = type == Intersection.Collector.Type.ALL ? intersection : intersection.withCollector(Intersection.Collector.ALL);
+
+        Object result = lineIntersection(ray.posX(), ray.posY(), ray.posZ(), ray.dirX(), ray.dirY(), ray.dirZ(), all);
+
+        if (result == null) {
+            return type == Intersection.Collector.Type.COUNT ? (R) Integer.valueOf(0) : null;
+        }
+
+        List<Vector3d> list = new ArrayList<>();
+        double dirLengthSquared = ray.dirX() * ray.dirX() + ray.dirY() * ray.dirY() + ray.dirZ() * ray.dirZ();
+
+        for (Vector3d vector : (Collection<Vector3d>) result) {
+            double t = lineT(vector, ray.posX(), ray.posY(), ray.posZ(), ray.dirX(), ray.dirY(), ray.dirZ(), dirLengthSquared);
+
+            if (ray.withinLength(t) && intersection.withinBounds(t)) {
+                list.add(vector);
+            }
+        }
+        return type == Intersection.Collector.Type.COUNT ? (R) Integer.valueOf(list.size()) : (R) list;
+    }
+
+    /**
+     * Returns true if the specified ray intersects this area within its max length
+     * @param ray the ray
+     * @return true if the ray intersects this area, false otherwise
+     */
+    default boolean lineIntersects(@NotNull Ray ray) {
+        return !Double.isNaN(intersectT(ray, Intersection.ANY_3D, null));
+    }
+
+    /**
+     * Selects the line parameter of the nearest or furthest intersection within the max t and the segment of the
+     * intersection from the result of a line intersection, which is either a vector, a collection of vectors or null
+     */
+    private static double selectT(Object result, double posX, double posY, double posZ, double dirX, double dirY, double dirZ, boolean farthest, double maxT, Intersection<?> intersection) {
+        double dirLengthSquared = dirX * dirX + dirY * dirY + dirZ * dirZ;
+        double best = Double.NaN;
+
+        if (result instanceof Vector3d) {
+            double t = lineT((Vector3d) result, posX, posY, posZ, dirX, dirY, dirZ, dirLengthSquared);
+            return Math.abs(t) <= maxT && intersection.withinBounds(t) ? t : Double.NaN;
+        }
+
+        if (result instanceof Collection) {
+            for (Object element : (Collection<?>) result) {
+                double t = lineT((Vector3d) element, posX, posY, posZ, dirX, dirY, dirZ, dirLengthSquared);
+
+                if (!(Math.abs(t) <= maxT) || !intersection.withinBounds(t)) {
+                    continue;
+                }
+
+                if (Double.isNaN(best) || (farthest ? Math.abs(t) > Math.abs(best) : Math.abs(t) < Math.abs(best))) {
+                    best = t;
+                }
+            }
+        }
+
+        return best;
+    }
+
+    private static double lineT(Vector3d vector, double posX, double posY, double posZ, double dirX, double dirY, double dirZ, double dirLengthSquared) {
+        return ((vector.x() - posX) * dirX + (vector.y() - posY) * dirY + (vector.z() - posZ) * dirZ) / dirLengthSquared;
+    }
+
     /**
      * Returns true if the specified line intersects this object.
      * <br><br>
@@ -132,6 +334,32 @@ public interface Area3d extends Area<Vector3d>, Area3dLike {
         return new Area3dCombined(area3ds);
     }
 
+    /**
+     * Creates a combined area3d backed by a bounding volume hierarchy over the areas passed to this function.
+     * <br><br>
+     * The bounds of the areas are read once, when the hierarchy is built. This is ideal for large sets of static
+     * areas, while {@link #combined(Area3d...)} remains the better choice for small or moving sets.
+     *
+     * @param area3ds the area3ds to build the hierarchy from
+     * @return the new Area3dBvh
+     */
+    static Area3d combinedIndexed(Area3d... area3ds) {
+        return Area3dBvh.builder().build(area3ds);
+    }
+
+    /**
+     * Creates a combined area3d backed by a bounding volume hierarchy over the areas passed to this function.
+     * <br><br>
+     * The bounds of the areas are read once, when the hierarchy is built. This is ideal for large sets of static
+     * areas, while {@link #combined(Collection)} remains the better choice for small or moving sets.
+     *
+     * @param area3ds the area3ds to build the hierarchy from
+     * @return the new Area3dBvh
+     */
+    static Area3d combinedIndexed(@NotNull Collection<Area3d> area3ds) {
+        return Area3dBvh.builder().build(area3ds);
+    }
+
     class Area3dCombined implements Area3d {
 
         private final Area3d[] all;
@@ -159,28 +387,90 @@ public interface Area3d extends Area<Vector3d>, Area3dLike {
         }
 
         @Override
-        @SuppressWarnings("unchecked")
+        public boolean boundingBox(double @NotNull [] out) {
+            if (all.length == 0) {
+                return false;
+            }
+
+            double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY, minZ = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY, maxZ = Double.NEGATIVE_INFINITY;
+
+            for (Area3d area3d : all) {
+                if (!area3d.boundingBox(out)) {
+                    return false;
+                }
+
+                minX = Math.min(minX, out[0]);
+                minY = Math.min(minY, out[1]);
+                minZ = Math.min(minZ, out[2]);
+                maxX = Math.max(maxX, out[3]);
+                maxY = Math.max(maxY, out[4]);
+                maxZ = Math.max(maxZ, out[5]);
+            }
+
+            out[0] = minX;
+            out[1] = minY;
+            out[2] = minZ;
+            out[3] = maxX;
+            out[4] = maxY;
+            out[5] = maxZ;
+            return true;
+        }
+
+        @Override
         public <R> R lineIntersection(double posX, double posY, double posZ, double dirX, double dirY, double dirZ, Intersection<R> intersection) {
+            return lineIntersection(Ray.of(posX, posY, posZ, dirX, dirY, dirZ), intersection);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <R> R lineIntersection(@NotNull Ray ray, @NotNull Intersection<R> intersection) {
             Intersection.Collector<R> collector = intersection.collector();
 
+            // The ray is shared by every area, so its inverse direction is only computed once
             switch (collector.type()) {
                 default:
                 case ANY:
                     for (Area3d area3d : all) {
-                        R result = area3d.lineIntersection(posX, posY, posZ, dirX, dirY, dirZ, intersection);
+                        R result = area3d.lineIntersection(ray, intersection);
 
                         if (result != null) {
                             return result;
                         }
                     }
                     return null;
+                case NEAREST:
+                case FARTHEST: {
+                    boolean nearest = collector.type() == Intersection.Collector.Type.NEAREST;
+                    Vector3d best = null;
+                    double bestDistance = 0;
+
+                    for (Area3d area3d : all) {
+                        Vector3d result = (Vector3d) area3d.lineIntersection(ray, intersection);
+
+                        if (result == null) {
+                            continue;
+                        }
+
+                        double x = result.x() - ray.posX();
+                        double y = result.y() - ray.posY();
+                        double z = result.z() - ray.posZ();
+                        double distance = x * x + y * y + z * z;
+
+                        if (best == null || (nearest ? distance < bestDistance : distance > bestDistance)) {
+                            best = result;
+                            bestDistance = distance;
+                        }
+                    }
+                    return (R) best;
+                }
                 case ALL:
 
                     final List<Vector3d> list = new ArrayList<>();
 
                     for (Area3d area3d : all) {
 
-                        R result = area3d.lineIntersection(posX, posY, posZ, dirX, dirY, dirZ, intersection);
+                        R result = area3d.lineIntersection(ray, intersection);
 
                         if (result != null) {
                             list.addAll((Collection<Vector3d>) result);
@@ -188,6 +478,92 @@ public interface Area3d extends Area<Vector3d>, Area3dLike {
                     }
 
                     return (R) list;
+                case COUNT: {
+                    int count = 0;
+
+                    for (Area3d area3d : all) {
+                        Object result = area3d.lineIntersection(ray, intersection);
+                        count += Intersection3dUtils.count(result, area3d, ray, intersection);
+                    }
+
+                    return (R) Integer.valueOf(count);
+                }
+            }
+        }
+
+        @Override
+        public double intersectT(double posX, double posY, double posZ, double dirX, double dirY, double dirZ, @NotNull Intersection<?> intersection, @Nullable Area3dHit hit) {
+            return intersectT(Ray.of(posX, posY, posZ, dirX, dirY, dirZ), intersection, hit);
+        }
+
+        @Override
+        public double intersectT(@NotNull Ray ray, @NotNull Intersection<?> intersection, @Nullable Area3dHit hit) {
+            Intersection.Collector.Type type = intersection.collector().type();
+            boolean farthest = type == Intersection.Collector.Type.FARTHEST;
+            double best = Double.NaN;
+            Area3d bestArea = null;
+
+            // The ray is shared by every area, so its inverse direction is only computed once
+            for (Area3d area3d : all) {
+                double t = area3d.intersectT(ray, intersection, null);
+
+                if (Double.isNaN(t)) {
+                    continue;
+                }
+
+                if (bestArea == null || (farthest ? Math.abs(t) > Math.abs(best) : Math.abs(t) < Math.abs(best))) {
+                    best = t;
+                    bestArea = area3d;
+                }
+
+                if (type == Intersection.Collector.Type.ANY) {
+                    break;
+                }
+            }
+
+            // Only the best area fills in the record
+            if (hit != null && bestArea != null) {
+                bestArea.intersectT(ray, intersection, hit);
+            }
+            return best;
+        }
+
+        @Override
+        public void intersectT(@NotNull RayPacket packet, @NotNull Intersection<?> intersection, double @NotNull [] out, @NotNull Area3dHit @Nullable [] hits) {
+            boolean farthest = intersection.collector().type() == Intersection.Collector.Type.FARTHEST;
+            boolean any = intersection.collector().type() == Intersection.Collector.Type.ANY;
+            Area3d[] bestAreas = new Area3d[packet.size()];
+            double[] box = new double[6];
+            Arrays.fill(out, 0, packet.size(), Double.NaN);
+
+            // Every area is tested once for the whole packet, before it is intersected with the individual rays
+            for (Area3d area3d : all) {
+                if (packet.coherent() && area3d.boundingBox(box) &&
+                        !packet.mayIntersect(box[0], box[1], box[2], box[3], box[4], box[5], intersection.direction())) {
+                    continue;
+                }
+
+                for (int i = 0; i < packet.size(); i++) {
+                    if (any && bestAreas[i] != null) {
+                        continue;
+                    }
+
+                    double t = area3d.intersectT(packet.ray(i), intersection, null);
+
+                    if (!Double.isNaN(t) && (bestAreas[i] == null || (farthest ? Math.abs(t) > Math.abs(out[i]) : Math.abs(t) < Math.abs(out[i])))) {
+                        out[i] = t;
+                        bestAreas[i] = area3d;
+                    }
+                }
+            }
+
+            // Only the best area of every ray fills in its record
+            if (hits != null) {
+                for (int i = 0; i < packet.size(); i++) {
+                    if (bestAreas[i] != null) {
+                        bestAreas[i].intersectT(packet.ray(i), intersection, hits[i]);
+                    }
+                }
             }
         }
     }
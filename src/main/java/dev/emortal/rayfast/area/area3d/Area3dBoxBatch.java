@@ -0,0 +1,464 @@
+package dev.emortal.rayfast.area.area3d;
+
+import dev.emortal.rayfast.area.Intersection;
+import dev.emortal.rayfast.area.Ray;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Batch kernels that intersect one ray with many axis-aligned boxes, stored structure-of-arrays.
+ * <br><br>
+ * Every box {@code i} spans from {@code (minX[i], minY[i], minZ[i])} to {@code (maxX[i], maxY[i], maxZ[i])}. A box
+ * is intersected exactly like an {@link Area3dRectangularPrism} with the same bounds. The kernels are plain loops over
+ * primitive arrays without calls or branches on the data, which the JIT is able to unroll and, on some platforms,
+ * vectorize.
+ * <br><br>
+ * The float kernels take boxes stored as floats, which halves the memory of the boxes and doubles the number of boxes
+ * per vector. Their bounds must be rounded outwards with {@link #roundDown(double)} and {@link #roundUp(double)}, and
+ * the kernels widen every slab by the rounding error of the float arithmetic, so that they never miss a box the double
+ * kernels intersect. They may report a box the double kernels miss by a few ulps, so they are used to reject boxes
+ * before running an exact kernel.
+ */
+public final class Area3dBoxBatch {
+
+    // Bound on the relative rounding error of a float slab, with room for the rounding of the widening itself
+    private static final float RELATIVE_ERROR = 0x1p-20f;
+
+    private Area3dBoxBatch() {
+    }
+
+    /**
+     * Intersects the specified ray with the boxes from {@code from} inclusive to {@code to} exclusive, writing the
+     * line parameter t of the intersection with box {@code i} to {@code out[outOffset + i - from]}, or NaN if none.
+     * <br><br>
+     * The collector of the intersection selects which intersection of every box is written, like
+     * {@link Area3d#intersectT(Ray, Intersection, Area3dHit)}. Intersections beyond the max length of the ray, or
+     * outside the segment of the intersection, are ignored.
+     *
+     * @param ray the ray
+     * @param intersection the direction and collector of the intersection
+     * @param minX the min X of every box
+     * @param minY the min Y of every box
+     * @param minZ the min Z of every box
+     * @param maxX the max X of every box
+     * @param maxY the max Y of every box
+     * @param maxZ the max Z of every box
+     * @param from the first box to intersect
+     * @param to the box after the last box to intersect
+     * @param out the array to write the line parameters to
+     * @param outOffset the index of out to write the line parameter of the first box to
+     * @return the number of boxes intersected
+     */
+    public static int intersectT(
+            @NotNull Ray ray,
+            @NotNull Intersection<?> intersection,
+            double @NotNull [] minX, double @NotNull [] minY, double @NotNull [] minZ,
+            double @NotNull [] maxX, double @NotNull [] maxY, double @NotNull [] maxZ,
+            int from, int to,
+            double @NotNull [] out, int outOffset
+    ) {
+        Intersection.Direction direction = intersection.direction();
+
+        return intersectT(
+                ray.posX(), ray.posY(), ray.posZ(),
+                ray.invDirX(), ray.invDirY(), ray.invDirZ(),
+                Math.max(low(direction, ray.maxT()), intersection.minT()),
+                Math.min(high(direction, ray.maxT()), intersection.maxT()),
+                intersection.collector().type() != Intersection.Collector.Type.FARTHEST,
+                minX, minY, minZ, maxX, maxY, maxZ,
+                from, to, out, outOffset
+        );
+    }
+
+    /**
+     * Intersects the specified ray with the boxes from {@code from} inclusive to {@code to} exclusive, setting bit
+     * {@code i - from} of out if box {@code i} is intersected and clearing it otherwise. Bit {@code j} of the bitset
+     * is bit {@code j % 64} of {@code out[j / 64]}. Intersections beyond the max length of the ray are ignored.
+     *
+     * @param ray the ray
+     * @param direction the direction of the intersection
+     * @param minX the min X of every box
+     * @param minY the min Y of every box
+     * @param minZ the min Z of every box
+     * @param maxX the max X of every box
+     * @param maxY the max Y of every box
+     * @param maxZ the max Z of every box
+     * @param from the first box to intersect
+     * @param to the box after the last box to intersect
+     * @param out the bitset to write the intersected boxes to, which holds at least {@code to - from} bits
+     * @return the number of boxes intersected
+     */
+    public static int intersects(
+            @NotNull Ray ray,
+            @NotNull Intersection.Direction direction,
+            double @NotNull [] minX, double @NotNull [] minY, double @NotNull [] minZ,
+            double @NotNull [] maxX, double @NotNull [] maxY, double @NotNull [] maxZ,
+            int from, int to,
+            long @NotNull [] out
+    ) {
+        double[] chunk = new double[64];
+        int count = 0;
+
+        for (int i = from; i < to; i += 64) {
+            int end = Math.min(to, i + 64);
+            count += intersectT(
+                    ray.posX(), ray.posY(), ray.posZ(),
+                    ray.invDirX(), ray.invDirY(), ray.invDirZ(),
+                    low(direction, ray.maxT()), high(direction, ray.maxT()), true,
+                    minX, minY, minZ, maxX, maxY, maxZ,
+                    i, end, chunk, 0
+            );
+
+            long bits = 0;
+            for (int j = 0; j < end - i; j++) {
+                bits |= (chunk[j] == chunk[j] ? 1L : 0L) << j;
+            }
+            out[(i - from) >>> 6] = bits;
+        }
+
+        return count;
+    }
+
+    /**
+     * Intersects the specified ray with the float boxes from {@code from} inclusive to {@code to} exclusive, setting
+     * bit {@code i - from} of out if box {@code i} may be intersected and clearing it otherwise. Bit {@code j} of the
+     * bitset is bit {@code j % 64} of {@code out[j / 64]}.
+     * <br><br>
+     * This is conservative: every box whose double bounds {@link #intersects(Ray, Intersection.Direction, double[],
+     * double[], double[], double[], double[], double[], int, int, long[])} intersects is set, as long as the float
+     * bounds were rounded outwards from them, but boxes that the ray misses by a few ulps may also be set.
+     *
+     * @param ray the ray
+     * @param direction the direction of the intersection
+     * @param minX the min X of every box, rounded down
+     * @param minY the min Y of every box, rounded down
+     * @param minZ the min Z of every box, rounded down
+     * @param maxX the max X of every box, rounded up
+     * @param maxY the max Y of every box, rounded up
+     * @param maxZ the max Z of every box, rounded up
+     * @param from the first box to intersect
+     * @param to the box after the last box to intersect
+     * @param out the bitset to write the boxes that may be intersected to, which holds at least {@code to - from} bits
+     * @return the number of boxes that may be intersected
+     */
+    public static int intersects(
+            @NotNull Ray ray,
+            @NotNull Intersection.Direction direction,
+            float @NotNull [] minX, float @NotNull [] minY, float @NotNull [] minZ,
+            float @NotNull [] maxX, float @NotNull [] maxY, float @NotNull [] maxZ,
+            int from, int to,
+            long @NotNull [] out
+    ) {
+        double[] chunk = new double[64];
+        int count = 0;
+
+        for (int i = from; i < to; i += 64) {
+            int end = Math.min(to, i + 64);
+            count += overlapT(
+                    ray.posX(), ray.posY(), ray.posZ(),
+                    ray.invDirX(), ray.invDirY(), ray.invDirZ(),
+                    low(direction, ray.maxT()), high(direction, ray.maxT()),
+                    minX, minY, minZ, maxX, maxY, maxZ,
+                    i, end, chunk, 0
+            );
+
+            long bits = 0;
+            for (int j = 0; j < end - i; j++) {
+                bits |= (chunk[j] == chunk[j] ? 1L : 0L) << j;
+            }
+            out[(i - from) >>> 6] = bits;
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns the greatest float that is not greater than the specified value, to store the min bound of a box for the
+     * float kernels
+     * @param value the value
+     * @return the value rounded down to a float
+     */
+    public static float roundDown(double value) {
+        float rounded = (float) value;
+        return rounded > value ? Math.nextDown(rounded) : rounded;
+    }
+
+    /**
+     * Returns the least float that is not less than the specified value, to store the max bound of a box for the float
+     * kernels
+     * @param value the value
+     * @return the value rounded up to a float
+     */
+    public static float roundUp(double value) {
+        float rounded = (float) value;
+        return rounded < value ? Math.nextUp(rounded) : rounded;
+    }
+
+    static int intersectT(
+            double posX, double posY, double posZ,
+            double invDirX, double invDirY, double invDirZ,
+            double low, double high, boolean nearest,
+            double[] minX, double[] minY, double[] minZ,
+            double[] maxX, double[] maxY, double[] maxZ,
+            int from, int to,
+            double[] out, int outOffset
+    ) {
+        int count = 0;
+
+        if (Math.abs(invDirX) == Double.POSITIVE_INFINITY ||
+                Math.abs(invDirY) == Double.POSITIVE_INFINITY ||
+                Math.abs(invDirZ) == Double.POSITIVE_INFINITY) {
+            for (int i = from; i < to; i++) {
+                double t = parallelSlab(
+                        posX, posY, posZ, invDirX, invDirY, invDirZ, low, high, nearest,
+                        minX[i], minY[i], minZ[i], maxX[i], maxY[i], maxZ[i]
+                );
+                out[outOffset + i - from] = t;
+                count += t == t ? 1 : 0;
+            }
+            return count;
+        }
+
+        // The octant of the direction decides which plane of every axis the line enters and leaves through, so every
+        // slab is a single min and max without branches
+        double[] enterX = invDirX > 0 ? minX : maxX;
+        double[] enterY = invDirY > 0 ? minY : maxY;
+        double[] enterZ = invDirZ > 0 ? minZ : maxZ;
+        double[] exitX = invDirX > 0 ? maxX : minX;
+        double[] exitY = invDirY > 0 ? maxY : minY;
+        double[] exitZ = invDirZ > 0 ? maxZ : minZ;
+
+        for (int i = from; i < to; i++) {
+            double tNear = Math.max(Math.max((enterX[i] - posX) * invDirX, (enterY[i] - posY) * invDirY), (enterZ[i] - posZ) * invDirZ);
+            double tFar = Math.min(Math.min((exitX[i] - posX) * invDirX, (exitY[i] - posY) * invDirY), (exitZ[i] - posZ) * invDirZ);
+
+            double t = select(tNear, tFar, low, high, nearest);
+            out[outOffset + i - from] = t;
+            count += t == t ? 1 : 0;
+        }
+
+        return count;
+    }
+
+    /**
+     * Intersects the line with the boxes, writing the lowest line parameter within [low, high] where the line is inside
+     * every box to out, or NaN if the line is outside of it over the whole interval. Unlike the surfaces intersected
+     * by {@link #intersectT}, a line that starts and ends inside a box overlaps it, so this filters the bounds of areas
+     * that may lie anywhere inside their box.
+     */
+    static int overlapT(
+            double posX, double posY, double posZ,
+            double invDirX, double invDirY, double invDirZ,
+            double low, double high,
+            double[] minX, double[] minY, double[] minZ,
+            double[] maxX, double[] maxY, double[] maxZ,
+            int from, int to,
+            double[] out, int outOffset
+    ) {
+        int count = 0;
+
+        if (Math.abs(invDirX) == Double.POSITIVE_INFINITY ||
+                Math.abs(invDirY) == Double.POSITIVE_INFINITY ||
+                Math.abs(invDirZ) == Double.POSITIVE_INFINITY) {
+            for (int i = from; i < to; i++) {
+                double t = parallelOverlap(
+                        posX, posY, posZ, invDirX, invDirY, invDirZ, low, high,
+                        minX[i], minY[i], minZ[i], maxX[i], maxY[i], maxZ[i]
+                );
+                out[outOffset + i - from] = t;
+                count += t == t ? 1 : 0;
+            }
+            return count;
+        }
+
+        double[] enterX = invDirX > 0 ? minX : maxX;
+        double[] enterY = invDirY > 0 ? minY : maxY;
+        double[] enterZ = invDirZ > 0 ? minZ : maxZ;
+        double[] exitX = invDirX > 0 ? maxX : minX;
+        double[] exitY = invDirY > 0 ? maxY : minY;
+        double[] exitZ = invDirZ > 0 ? maxZ : minZ;
+
+        for (int i = from; i < to; i++) {
+            double tNear = Math.max(Math.max((enterX[i] - posX) * invDirX, (enterY[i] - posY) * invDirY), (enterZ[i] - posZ) * invDirZ);
+            double tFar = Math.min(Math.min((exitX[i] - posX) * invDirX, (exitY[i] - posY) * invDirY), (exitZ[i] - posZ) * invDirZ);
+
+            double t = overlap(tNear, tFar, low, high);
+            out[outOffset + i - from] = t;
+            count += t == t ? 1 : 0;
+        }
+
+        return count;
+    }
+
+    /**
+     * Overlaps the line with the float boxes like {@link #overlapT(double, double, double, double, double, double,
+     * double, double, double[], double[], double[], double[], double[], double[], int, int, double[], int)}, except
+     * that the written line parameters are only lower bounds, and NaN is only written if the line certainly misses the
+     * box. The slabs are computed in float, and widened by a bound on the error of rounding the line position, the
+     * inverse direction and every operation.
+     */
+    static int overlapT(
+            double posX, double posY, double posZ,
+            double invDirX, double invDirY, double invDirZ,
+            double low, double high,
+            float[] minX, float[] minY, float[] minZ,
+            float[] maxX, float[] maxY, float[] maxZ,
+            int from, int to,
+            double[] out, int outOffset
+    ) {
+        int count = 0;
+
+        // The error bound only holds while every value is a normal float, so other lines run the double kernel on the
+        // float bounds, which are exact as doubles
+        if (!isNormalFloat(invDirX) || !isNormalFloat(invDirY) || !isNormalFloat(invDirZ) ||
+                !(Math.abs(posX) <= Float.MAX_VALUE && Math.abs(posY) <= Float.MAX_VALUE && Math.abs(posZ) <= Float.MAX_VALUE)) {
+            for (int i = from; i < to; i++) {
+                double t = parallelOverlap(
+                        posX, posY, posZ, invDirX, invDirY, invDirZ, low, high,
+                        minX[i], minY[i], minZ[i], maxX[i], maxY[i], maxZ[i]
+                );
+                out[outOffset + i - from] = t;
+                count += t == t ? 1 : 0;
+            }
+            return count;
+        }
+
+        float fPosX = (float) posX;
+        float fPosY = (float) posY;
+        float fPosZ = (float) posZ;
+        float fInvDirX = (float) invDirX;
+        float fInvDirY = (float) invDirY;
+        float fInvDirZ = (float) invDirZ;
+        float fLow = roundDown(low);
+        float fHigh = roundUp(high);
+
+        // Rounding the position moves every slab by up to the rounding of the position along its axis
+        double positionError = Math.max(Math.max(
+                Math.abs(posX - fPosX) * Math.abs(invDirX),
+                Math.abs(posY - fPosY) * Math.abs(invDirY)),
+                Math.abs(posZ - fPosZ) * Math.abs(invDirZ)
+        );
+        float error = roundUp(positionError * (1 + 0x1p-20) + Float.MIN_NORMAL);
+
+        float[] enterX = invDirX > 0 ? minX : maxX;
+        float[] enterY = invDirY > 0 ? minY : maxY;
+        float[] enterZ = invDirZ > 0 ? minZ : maxZ;
+        float[] exitX = invDirX > 0 ? maxX : minX;
+        float[] exitY = invDirY > 0 ? maxY : minY;
+        float[] exitZ = invDirZ > 0 ? maxZ : minZ;
+
+        for (int i = from; i < to; i++) {
+            float tNear = Math.max(Math.max((enterX[i] - fPosX) * fInvDirX, (enterY[i] - fPosY) * fInvDirY), (enterZ[i] - fPosZ) * fInvDirZ);
+            float tFar = Math.min(Math.min((exitX[i] - fPosX) * fInvDirX, (exitY[i] - fPosY) * fInvDirY), (exitZ[i] - fPosZ) * fInvDirZ);
+
+            float near = tNear - (Math.abs(tNear) * RELATIVE_ERROR + error);
+            float far = tFar + (Math.abs(tFar) * RELATIVE_ERROR + error);
+
+            // Written so that NaN slabs never reject a box
+            boolean hit = !(near > far) && !(far < fLow) && !(near > fHigh);
+            out[outOffset + i - from] = hit ? (near > fLow ? near : fLow) : Double.NaN;
+            count += hit ? 1 : 0;
+        }
+
+        return count;
+    }
+
+    private static boolean isNormalFloat(double value) {
+        double abs = Math.abs(value);
+        return abs >= Float.MIN_NORMAL && abs <= Float.MAX_VALUE;
+    }
+
+    /**
+     * Returns the lowest line parameter of the interval of the line that the direction and the max t allow, excluding
+     * 0 for a direction
+     */
+    private static double low(Intersection.Direction direction, double maxT) {
+        return direction == Intersection.Direction.FORWARDS ? Double.MIN_VALUE : -maxT;
+    }
+
+    /**
+     * Returns the highest line parameter of the interval of the line that the direction and the max t allow
+     */
+    private static double high(Intersection.Direction direction, double maxT) {
+        return direction == Intersection.Direction.BACKWARDS ? -Double.MIN_VALUE : maxT;
+    }
+
+    /**
+     * Intersects a line that does not move along at least one axis with one box. An axis the line does not move along
+     * yields an infinite slab, or a NaN slab if the line lies in the plane of a face, which is inside of the slab.
+     */
+    private static double parallelSlab(
+            double posX, double posY, double posZ,
+            double invDirX, double invDirY, double invDirZ,
+            double low, double high, boolean nearest,
+            double minX, double minY, double minZ,
+            double maxX, double maxY, double maxZ
+    ) {
+        double nearX = near(minX, maxX, posX, invDirX);
+        double nearY = near(minY, maxY, posY, invDirY);
+        double nearZ = near(minZ, maxZ, posZ, invDirZ);
+        double farX = far(minX, maxX, posX, invDirX);
+        double farY = far(minY, maxY, posY, invDirY);
+        double farZ = far(minZ, maxZ, posZ, invDirZ);
+
+        return select(Math.max(Math.max(nearX, nearY), nearZ), Math.min(Math.min(farX, farY), farZ), low, high, nearest);
+    }
+
+    /**
+     * Overlaps a line that does not move along at least one axis with one box
+     */
+    private static double parallelOverlap(
+            double posX, double posY, double posZ,
+            double invDirX, double invDirY, double invDirZ,
+            double low, double high,
+            double minX, double minY, double minZ,
+            double maxX, double maxY, double maxZ
+    ) {
+        double tNear = Math.max(Math.max(near(minX, maxX, posX, invDirX), near(minY, maxY, posY, invDirY)), near(minZ, maxZ, posZ, invDirZ));
+        double tFar = Math.min(Math.min(far(minX, maxX, posX, invDirX), far(minY, maxY, posY, invDirY)), far(minZ, maxZ, posZ, invDirZ));
+        return overlap(tNear, tFar, low, high);
+    }
+
+    /**
+     * Returns the line parameter where the line enters the slab of an axis, or negative infinity if the line lies in
+     * the plane of a face
+     */
+    private static double near(double min, double max, double pos, double invDir) {
+        double t1 = (min - pos) * invDir;
+        double t2 = (max - pos) * invDir;
+        return t1 == t1 && t2 == t2 ? Math.min(t1, t2) : Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Returns the line parameter where the line leaves the slab of an axis, or positive infinity if the line lies in
+     * the plane of a face
+     */
+    private static double far(double min, double max, double pos, double invDir) {
+        double t1 = (min - pos) * invDir;
+        double t2 = (max - pos) * invDir;
+        return t1 == t1 && t2 == t2 ? Math.max(t1, t2) : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Returns the lowest line parameter within [low, high] where the line is inside the box it enters at tNear and
+     * leaves at tFar, or NaN if there is none
+     */
+    private static double overlap(double tNear, double tFar, double low, double high) {
+        boolean hit = tNear <= tFar && tFar >= low && tNear <= high;
+        return hit ? Math.max(tNear, low) : Double.NaN;
+    }
+
+    /**
+     * Selects the line parameter where the line enters the box at tNear or leaves it at tFar that is within the
+     * allowed interval, and nearest to, or furthest from, the line position. Returns NaN if neither is allowed.
+     */
+    private static double select(double tNear, double tFar, double low, double high, boolean nearest) {
+        // Also rejects lines without a direction
+        boolean hit = tNear <= tFar && Math.abs(tNear) != Double.POSITIVE_INFINITY;
+
+        boolean near = hit && tNear >= low && tNear <= high;
+        boolean far = hit && tFar >= low && tFar <= high;
+        boolean pickNear = near && (!far || (Math.abs(tNear) <= Math.abs(tFar)) == nearest);
+
+        return pickNear ? tNear : far ? tFar : Double.NaN;
+    }
+}
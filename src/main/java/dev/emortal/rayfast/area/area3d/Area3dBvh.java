@@ -0,0 +1,1661 @@
+package dev.emortal.rayfast.area.area3d;
+
+import dev.emortal.rayfast.area.Intersection;
+import dev.emortal.rayfast.area.Ray;
+import dev.emortal.rayfast.area.RayPacket;
+import dev.emortal.rayfast.util.Intersection3dUtils;
+import dev.emortal.rayfast.vector.Vector3d;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntConsumer;
+
+/**
+ * A combined area3d backed by a bounding volume hierarchy.
+ * <br><br>
+ * The hierarchy is built with the surface area heuristic over the bounds of its areas, which are read once when it
+ * is built. A line intersection only runs the kernels of the areas whose nodes the line passes through, instead of
+ * every area. Areas that are unbounded (see {@link Area3d#boundingBox(double[])}) are kept aside and always tested.
+ * <br><br>
+ * Nodes are stored in flat primitive arrays in depth-first order, so the hierarchy holds no per-node objects and a
+ * traversal reads memory mostly linearly. The left child of a node always directly follows it. The bounds of the nodes
+ * can be stored compressed, see {@link Layout}.
+ */
+public final class Area3dBvh implements Area3d {
+
+    private static final int QUANTIZATION_STEPS = Character.MAX_VALUE;
+
+    // Node storage, indexed by node id in depth-first order. The root is node 0.
+    private final Layout layout;
+    private final double[] bounds; // minX, minY, minZ, maxX, maxY, maxZ of every node, or of the root if not double
+    private final char[] quantized; // minX, minY, minZ, maxX, maxY, maxZ of every node relative to its parent, or null
+    private final float[] floatBounds; // minX, minY, minZ, maxX, maxY, maxZ of every node rounded outwards, or null
+    private final int[] offsets; // Right child of an inner node, or first area of a leaf
+    private final int[] counts; // Number of areas of a leaf, 0 for inner nodes
+
+    private final Area3d[] areas;
+    private final Area3d[] unbounded;
+
+    // Bounds of every area, structure-of-arrays, so that leaves are filtered with the batch kernel. Only the double
+    // arrays are allocated with the double layout, and only the float arrays otherwise.
+    private final double[] areaMinX;
+    private final double[] areaMinY;
+    private final double[] areaMinZ;
+    private final double[] areaMaxX;
+    private final double[] areaMaxY;
+    private final double[] areaMaxZ;
+    private final float[] floatAreaMinX;
+    private final float[] floatAreaMinY;
+    private final float[] floatAreaMinZ;
+    private final float[] floatAreaMaxX;
+    private final float[] floatAreaMaxY;
+    private final float[] floatAreaMaxZ;
+    private final int maxLeafCount;
+
+    private final double buildCost;
+
+    // Traversal buffers of every thread, reused between queries so that queries do not allocate. A query made while the
+    // buffers of its thread are in use, by an area of this hierarchy, allocates its own. The buffers must not reference
+    // the hierarchy, or the thread would keep it alive.
+    private final ThreadLocal<QueryBuffers> buffers;
+
+    private Area3dBvh(double[] bounds, int[] offsets, int[] counts, Area3d[] areas, Area3d[] unbounded, Layout layout) {
+        this.layout = layout;
+        if (layout == Layout.QUANTIZED) {
+            this.quantized = new char[bounds.length];
+            quantize(bounds, offsets, counts, quantized);
+            this.floatBounds = null;
+            this.bounds = Arrays.copyOf(bounds, Math.min(6, bounds.length));
+        } else if (layout == Layout.FLOAT) {
+            this.quantized = null;
+            this.floatBounds = new float[bounds.length];
+            narrow(bounds, floatBounds);
+            this.bounds = Arrays.copyOf(bounds, Math.min(6, bounds.length));
+        } else {
+            this.quantized = null;
+            this.floatBounds = null;
+            this.bounds = bounds;
+        }
+        this.offsets = offsets;
+        this.counts = counts;
+        this.areas = areas;
+        this.unbounded = unbounded;
+
+        boolean narrow = layout != Layout.DOUBLE;
+        this.areaMinX = narrow ? null : new double[areas.length];
+        this.areaMinY = narrow ? null : new double[areas.length];
+        this.areaMinZ = narrow ? null : new double[areas.length];
+        this.areaMaxX = narrow ? null : new double[areas.length];
+        this.areaMaxY = narrow ? null : new double[areas.length];
+        this.areaMaxZ = narrow ? null : new double[areas.length];
+        this.floatAreaMinX = narrow ? new float[areas.length] : null;
+        this.floatAreaMinY = narrow ? new float[areas.length] : null;
+        this.floatAreaMinZ = narrow ? new float[areas.length] : null;
+        this.floatAreaMaxX = narrow ? new float[areas.length] : null;
+        this.floatAreaMaxY = narrow ? new float[areas.length] : null;
+        this.floatAreaMaxZ = narrow ? new float[areas.length] : null;
+        this.maxLeafCount = Arrays.stream(counts).max().orElse(0);
+        this.buildCost = cost();
+
+        boolean withBounds = quantized != null;
+        int leafCapacity = maxLeafCount;
+        this.buffers = ThreadLocal.withInitial(() -> new QueryBuffers(withBounds, leafCapacity));
+
+        double[] box = new double[6];
+        for (int i = 0; i < areas.length; i++) {
+            areas[i].boundingBox(box);
+            setAreaBounds(i, box);
+        }
+    }
+
+    /**
+     * Returns a builder of the hierarchy. This builder is used to tune how the hierarchy is built.
+     * @return the builder
+     */
+    public static @NotNull Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Re-reads the bounds of every area, and recomputes the bounds of every node from the bottom up. The structure of
+     * the hierarchy is kept, so this is linear in the number of areas and much cheaper than a rebuild, but the quality
+     * of the hierarchy degrades as the areas move away from where they were when it was built. Use
+     * {@link #costRatio()} to decide when to rebuild instead.
+     * <br><br>
+     * This must not be called while the hierarchy is being queried from another thread.
+     *
+     * @throws IllegalStateException if an area no longer has bounds
+     */
+    public void refit() {
+        double[] box = new double[6];
+        double[] bounds = layout == Layout.DOUBLE ? this.bounds : new double[counts.length * 6];
+
+        // Children always come after their parent, so walking backwards visits every child before its parent
+        for (int node = counts.length - 1; node >= 0; node--) {
+            int offset = node * 6;
+
+            if (counts[node] > 0) {
+                Arrays.fill(bounds, offset, offset + 3, Double.POSITIVE_INFINITY);
+                Arrays.fill(bounds, offset + 3, offset + 6, Double.NEGATIVE_INFINITY);
+
+                for (int i = offsets[node]; i < offsets[node] + counts[node]; i++) {
+                    if (!areas[i].boundingBox(box)) {
+                        throw new IllegalStateException(areas[i] + " no longer has bounds, the hierarchy must be rebuilt");
+                    }
+                    setAreaBounds(i, box);
+
+                    for (int j = 0; j < 3; j++) {
+                        bounds[offset + j] = Math.min(bounds[offset + j], box[j]);
+                        bounds[offset + j + 3] = Math.max(bounds[offset + j + 3], box[j + 3]);
+                    }
+                }
+                continue;
+            }
+
+            int left = (node + 1) * 6;
+            int right = offsets[node] * 6;
+
+            for (int j = 0; j < 3; j++) {
+                bounds[offset + j] = Math.min(bounds[left + j], bounds[right + j]);
+                bounds[offset + j + 3] = Math.max(bounds[left + j + 3], bounds[right + j + 3]);
+            }
+        }
+
+        if (quantized != null && counts.length > 0) {
+            quantize(bounds, offsets, counts, quantized);
+            System.arraycopy(bounds, 0, this.bounds, 0, 6);
+        }
+        if (floatBounds != null && counts.length > 0) {
+            narrow(bounds, floatBounds);
+            System.arraycopy(bounds, 0, this.bounds, 0, 6);
+        }
+    }
+
+    /**
+     * Returns the surface area heuristic cost of this hierarchy, which is the expected number of node and area tests
+     * run by a random line through the bounds of the hierarchy. Lower is better.
+     * @return the cost of this hierarchy
+     */
+    public double cost() {
+        if (counts.length == 0) {
+            return 0;
+        }
+
+        double rootArea = surfaceArea(bounds, 0);
+
+        if (!(rootArea > 0)) {
+            return areas.length;
+        }
+
+        double[] bounds = this.bounds;
+
+        if (layout != Layout.DOUBLE) {
+            // Decode the bounds of every node, as the traversals see them
+            bounds = Arrays.copyOf(this.bounds, counts.length * 6);
+
+            for (int node = 0; node < counts.length; node++) {
+                if (counts[node] == 0) {
+                    decode(node + 1, bounds, node * 6, bounds, (node + 1) * 6);
+                    decode(offsets[node], bounds, node * 6, bounds, offsets[node] * 6);
+                }
+            }
+        }
+
+        double cost = 0;
+
+        for (int node = 0; node < counts.length; node++) {
+            double probability = surfaceArea(bounds, node * 6) / rootArea;
+
+            // An inner node tests both of its children, a leaf tests all of its areas
+            cost += probability * (counts[node] > 0 ? counts[node] : 2);
+        }
+
+        return cost;
+    }
+
+    /**
+     * Returns the current {@link #cost()} of this hierarchy relative to its cost when it was built. The ratio grows as
+     * {@link #refit()} stretches the nodes over areas that moved apart. A rebuild is usually worth it once this ratio
+     * exceeds 1.5 to 2.
+     * @return the cost of this hierarchy relative to its cost when it was built
+     */
+    public double costRatio() {
+        return buildCost > 0 ? cost() / buildCost : 1;
+    }
+
+    @Override
+    public boolean containsPoint(double pointX, double pointY, double pointZ) {
+        for (Area3d area3d : unbounded) {
+            if (area3d.containsPoint(pointX, pointY, pointZ)) {
+                return true;
+            }
+        }
+
+        if (counts.length == 0) {
+            return false;
+        }
+
+        if (!contains(bounds, 0, pointX, pointY, pointZ)) {
+            return false;
+        }
+
+        QueryBuffers buffers = acquireBuffers();
+        try {
+            return containsPoint(pointX, pointY, pointZ, buffers.stack, buffers.scratch);
+        } finally {
+            buffers.inUse = false;
+        }
+    }
+
+    private boolean containsPoint(double pointX, double pointY, double pointZ, NodeStack stack, double[] scratch) {
+        stack.push(0, 0, bounds, 0);
+
+        while (stack.size > 0) {
+            int node = stack.pop();
+
+            if (counts[node] > 0) {
+                for (int i = offsets[node]; i < offsets[node] + counts[node]; i++) {
+                    if (areas[i].containsPoint(pointX, pointY, pointZ)) {
+                        return true;
+                    }
+                }
+                continue;
+            }
+
+            int left = node + 1;
+            int right = offsets[node];
+            double[] childBounds = bounds;
+            int leftOffset = left * 6;
+            int rightOffset = right * 6;
+
+            if (layout != Layout.DOUBLE) {
+                decode(left, stack.bounds, stack.size * 6, scratch, 0);
+                decode(right, stack.bounds, stack.size * 6, scratch, 6);
+                childBounds = scratch;
+                leftOffset = 0;
+                rightOffset = 6;
+            }
+
+            if (contains(childBounds, leftOffset, pointX, pointY, pointZ)) {
+                stack.push(left, 0, childBounds, leftOffset);
+            }
+            if (contains(childBounds, rightOffset, pointX, pointY, pointZ)) {
+                stack.push(right, 0, childBounds, rightOffset);
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public boolean boundingBox(double @NotNull [] out) {
+        if (counts.length == 0 || unbounded.length > 0) {
+            return false;
+        }
+
+        System.arraycopy(bounds, 0, out, 0, 6);
+        return true;
+    }
+
+    @Override
+    public <R> @Nullable R lineIntersection(double posX, double posY, double posZ, double dirX, double dirY, double dirZ, @NotNull Intersection<R> intersection) {
+        return lineIntersection(Ray.of(posX, posY, posZ, dirX, dirY, dirZ), intersection);
+    }
+
+    @Override
+    public <R> @Nullable R lineIntersection(@NotNull Ray ray, @NotNull Intersection<R> intersection) {
+        QueryBuffers buffers = acquireBuffers();
+        try {
+            return lineIntersection(ray, intersection, buffers);
+        } finally {
+            buffers.inUse = false;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R> @Nullable R lineIntersection(Ray ray, Intersection<R> intersection, QueryBuffers buffers) {
+        Intersection.Collector.Type collectorType = intersection.collector().type();
+        double posX = ray.posX();
+        double posY = ray.posY();
+        double posZ = ray.posZ();
+
+        // Don't initialize this collection until we know that we need to collect the values.
+        List<Vector3d> list = null;
+
+        if (collectorType == Intersection.Collector.Type.ALL) {
+            list = new ArrayList<>();
+        }
+
+        // The best intersection so far, and its squared distance to the line position
+        boolean nearest = collectorType == Intersection.Collector.Type.NEAREST;
+        Vector3d best = null;
+        double bestDistance = 0;
+        int count = 0;
+        double dirLengthSquared = ray.dirX() * ray.dirX() + ray.dirY() * ray.dirY() + ray.dirZ() * ray.dirZ();
+
+        // Find the interval of the line that the direction, the segment and the max length of the ray allow
+        double tMin = Math.max(intersection.minT(), -ray.maxT());
+        double tMax = Math.min(intersection.maxT(), ray.maxT());
+
+        switch (intersection.direction()) {
+            case FORWARDS:
+                tMin = Math.max(tMin, 0);
+                break;
+            case BACKWARDS:
+                tMax = Math.min(tMax, 0);
+                break;
+        }
+
+        if (counts.length > 0) {
+            double invDirX = ray.invDirX();
+            double invDirY = ray.invDirY();
+            double invDirZ = ray.invDirZ();
+
+            double rootDistance = distance(bounds, 0, posX, posY, posZ, invDirX, invDirY, invDirZ, tMin, tMax);
+
+            if (!Double.isNaN(rootDistance)) {
+                NodeStack stack = buffers.stack;
+                double[] scratch = buffers.scratch;
+                double[] leafT = buffers.leafT;
+                stack.push(0, rootDistance, bounds, 0);
+
+                while (stack.size > 0) {
+                    int node = stack.pop();
+
+                    // Skip nodes that are further away than the nearest intersection found since they were pushed
+                    double nodeDistance = stack.distances[stack.size];
+                    if (nearest && best != null && nodeDistance * nodeDistance * dirLengthSquared > bestDistance) {
+                        continue;
+                    }
+
+                    if (counts[node] > 0) {
+                        // Only run the kernels of the areas whose bounds the line passes through
+                        if (filterLeaf(node, posX, posY, posZ, invDirX, invDirY, invDirZ, tMin, tMax, leafT) == 0) {
+                            continue;
+                        }
+
+                        for (int i = offsets[node]; i < offsets[node] + counts[node]; i++) {
+                            if (Double.isNaN(leafT[i - offsets[node]])) {
+                                continue;
+                            }
+
+                            R result = areas[i].lineIntersection(ray, intersection);
+
+                            if (result == null) {
+                                continue;
+                            }
+
+                            switch (collectorType) {
+                                default:
+                                case ANY:
+                                    return result;
+                                case ALL:
+                                    list.addAll((Collection<Vector3d>) result);
+                                    break;
+                                case COUNT:
+                                    count += Intersection3dUtils.count(result, areas[i], ray, intersection);
+                                    break;
+                                case NEAREST:
+                                case FARTHEST: {
+                                    Vector3d vector = (Vector3d) result;
+                                    double distance = distanceSquared(vector, posX, posY, posZ);
+
+                                    if (best == null || (nearest ? distance < bestDistance : distance > bestDistance)) {
+                                        best = vector;
+                                        bestDistance = distance;
+                                    }
+                                }
+                            }
+                        }
+                        continue;
+                    }
+
+                    int left = node + 1;
+                    int right = offsets[node];
+                    double[] childBounds = bounds;
+                    int leftOffset = left * 6;
+                    int rightOffset = right * 6;
+
+                    if (layout != Layout.DOUBLE) {
+                        decode(left, stack.bounds, stack.size * 6, scratch, 0);
+                        decode(right, stack.bounds, stack.size * 6, scratch, 6);
+                        childBounds = scratch;
+                        leftOffset = 0;
+                        rightOffset = 6;
+                    }
+
+                    double leftDistance = distance(childBounds, leftOffset, posX, posY, posZ, invDirX, invDirY, invDirZ, tMin, tMax);
+                    double rightDistance = distance(childBounds, rightOffset, posX, posY, posZ, invDirX, invDirY, invDirZ, tMin, tMax);
+
+                    // Push the far child first, so that the near child is visited first
+                    if (leftDistance <= rightDistance) {
+                        stack.push(right, rightDistance, childBounds, rightOffset);
+                        stack.push(left, leftDistance, childBounds, leftOffset);
+                    } else {
+                        if (!Double.isNaN(leftDistance)) {
+                            stack.push(left, leftDistance, childBounds, leftOffset);
+                        }
+                        if (!Double.isNaN(rightDistance)) {
+                            stack.push(right, rightDistance, childBounds, rightOffset);
+                        }
+                    }
+                }
+            }
+        }
+
+        for (Area3d area3d : unbounded) {
+            R result = area3d.lineIntersection(ray, intersection);
+
+            if (result == null) {
+                continue;
+            }
+
+            switch (collectorType) {
+                default:
+                case ANY:
+                    return result;
+                case ALL:
+                    list.addAll((Collection<Vector3d>) result);
+                    break;
+                case COUNT:
+                    count += Intersection3dUtils.count(result, area3d, ray, intersection);
+                    break;
+                case NEAREST:
+                case FARTHEST: {
+                    Vector3d vector = (Vector3d) result;
+                    double distance = distanceSquared(vector, posX, posY, posZ);
+
+                    if (best == null || (nearest ? distance < bestDistance : distance > bestDistance)) {
+                        best = vector;
+                        bestDistance = distance;
+                    }
+                }
+            }
+        }
+
+        switch (collectorType) {
+            case ALL:
+                return (R) list;
+            case COUNT:
+                return (R) Integer.valueOf(count);
+            default:
+                return (R) best;
+        }
+    }
+
+    @Override
+    public double intersectT(double posX, double posY, double posZ, double dirX, double dirY, double dirZ, @NotNull Intersection<?> intersection, @Nullable Area3dHit hit) {
+        return intersectT(Ray.of(posX, posY, posZ, dirX, dirY, dirZ), intersection, hit);
+    }
+
+    @Override
+    public double intersectT(@NotNull Ray ray, @NotNull Intersection<?> intersection, @Nullable Area3dHit hit) {
+        QueryBuffers buffers = acquireBuffers();
+        try {
+            return intersectT(ray, intersection, hit, buffers);
+        } finally {
+            buffers.inUse = false;
+        }
+    }
+
+    private double intersectT(Ray ray, Intersection<?> intersection, @Nullable Area3dHit hit, QueryBuffers buffers) {
+        Intersection.Collector.Type type = intersection.collector().type();
+        boolean farthest = type == Intersection.Collector.Type.FARTHEST;
+        double best = Double.NaN;
+        Area3d bestArea = null;
+
+        for (Area3d area3d : unbounded) {
+            double t = area3d.intersectT(ray, intersection, null);
+
+            if (!Double.isNaN(t) && (bestArea == null || (farthest ? Math.abs(t) > Math.abs(best) : Math.abs(t) < Math.abs(best)))) {
+                best = t;
+                bestArea = area3d;
+            }
+        }
+
+        // Find the interval of the line that the direction, the max length and the segment allow
+        double tMin = Math.max(-ray.maxT(), intersection.minT());
+        double tMax = Math.min(ray.maxT(), intersection.maxT());
+
+        switch (intersection.direction()) {
+            case FORWARDS:
+                tMin = Math.max(tMin, 0);
+                break;
+            case BACKWARDS:
+                tMax = Math.min(tMax, 0);
+                break;
+        }
+
+        double posX = ray.posX();
+        double posY = ray.posY();
+        double posZ = ray.posZ();
+        double invDirX = ray.invDirX();
+        double invDirY = ray.invDirY();
+        double invDirZ = ray.invDirZ();
+        double rootDistance = counts.length == 0 ? Double.NaN : distance(bounds, 0, posX, posY, posZ, invDirX, invDirY, invDirZ, tMin, tMax);
+
+        if (!Double.isNaN(rootDistance) && !(type == Intersection.Collector.Type.ANY && bestArea != null)) {
+            NodeStack stack = buffers.stack;
+            double[] scratch = buffers.scratch;
+            double[] leafT = buffers.leafT;
+            stack.push(0, rootDistance, bounds, 0);
+
+            traversal:
+            while (stack.size > 0) {
+                int node = stack.pop();
+
+                // Skip nodes that are further away than the nearest intersection found since they were pushed
+                if (!farthest && bestArea != null && stack.distances[stack.size] > Math.abs(best)) {
+                    continue;
+                }
+
+                if (counts[node] > 0) {
+                    // Only run the kernels of the areas whose bounds the line passes through
+                    if (filterLeaf(node, posX, posY, posZ, invDirX, invDirY, invDirZ, tMin, tMax, leafT) == 0) {
+                        continue;
+                    }
+
+                    for (int i = offsets[node]; i < offsets[node] + counts[node]; i++) {
+                        if (Double.isNaN(leafT[i - offsets[node]])) {
+                            continue;
+                        }
+
+                        double t = areas[i].intersectT(ray, intersection, null);
+
+                        if (Double.isNaN(t)) {
+                            continue;
+                        }
+
+                        if (bestArea == null || (farthest ? Math.abs(t) > Math.abs(best) : Math.abs(t) < Math.abs(best))) {
+                            best = t;
+                            bestArea = areas[i];
+                        }
+
+                        if (type == Intersection.Collector.Type.ANY) {
+                            break traversal;
+                        }
+                    }
+                    continue;
+                }
+
+                int left = node + 1;
+                int right = offsets[node];
+                double[] childBounds = bounds;
+                int leftOffset = left * 6;
+                int rightOffset = right * 6;
+
+                if (layout != Layout.DOUBLE) {
+                    decode(left, stack.bounds, stack.size * 6, scratch, 0);
+                    decode(right, stack.bounds, stack.size * 6, scratch, 6);
+                    childBounds = scratch;
+                    leftOffset = 0;
+                    rightOffset = 6;
+                }
+
+                double leftDistance = distance(childBounds, leftOffset, posX, posY, posZ, invDirX, invDirY, invDirZ, tMin, tMax);
+                double rightDistance = distance(childBounds, rightOffset, posX, posY, posZ, invDirX, invDirY, invDirZ, tMin, tMax);
+
+                // Push the far child first, so that the near child is visited first
+                if (leftDistance <= rightDistance) {
+                    stack.push(right, rightDistance, childBounds, rightOffset);
+                    stack.push(left, leftDistance, childBounds, leftOffset);
+                } else {
+                    if (!Double.isNaN(leftDistance)) {
+                        stack.push(left, leftDistance, childBounds, leftOffset);
+                    }
+                    if (!Double.isNaN(rightDistance)) {
+                        stack.push(right, rightDistance, childBounds, rightOffset);
+                    }
+                }
+            }
+        }
+
+        // Only the best area fills in the record
+        if (hit != null && bestArea != null) {
+            bestArea.intersectT(ray, intersection, hit);
+        }
+        return best;
+    }
+
+    @Override
+    public void intersectT(@NotNull RayPacket packet, @NotNull Intersection<?> intersection, double @NotNull [] out, @NotNull Area3dHit @Nullable [] hits) {
+        QueryBuffers buffers = acquireBuffers();
+
+        if (buffers.bestAreas.length < packet.size()) {
+            buffers.bestAreas = new Area3d[packet.size()];
+        }
+
+        Area3d[] bestAreas = buffers.bestAreas;
+        Arrays.fill(out, 0, packet.size(), Double.NaN);
+
+        try {
+            // Traverse the hierarchy once for every 64 rays, the width of the active mask
+            PacketTraversal traversal = new PacketTraversal(packet, intersection, out, bestAreas, buffers);
+            for (int first = 0; first < packet.size(); first += 64) {
+                traversal.traverse(first, Math.min(packet.size(), first + 64));
+            }
+
+            // Only the best area of every ray fills in its record
+            if (hits != null) {
+                for (int i = 0; i < packet.size(); i++) {
+                    if (bestAreas[i] != null) {
+                        bestAreas[i].intersectT(packet.ray(i), intersection, hits[i]);
+                    }
+                }
+            }
+        } finally {
+            // Don't keep the areas alive through the buffers
+            Arrays.fill(bestAreas, 0, packet.size(), null);
+            buffers.inUse = false;
+        }
+    }
+
+    private QueryBuffers acquireBuffers() {
+        QueryBuffers buffers = this.buffers.get();
+
+        if (buffers.inUse) {
+            buffers = new QueryBuffers(quantized != null, maxLeafCount);
+        }
+
+        buffers.inUse = true;
+        buffers.stack.size = 0;
+        return buffers;
+    }
+
+    private static double distanceSquared(Vector3d vector, double posX, double posY, double posZ) {
+        double x = vector.x() - posX;
+        double y = vector.y() - posY;
+        double z = vector.z() - posZ;
+        return x * x + y * y + z * z;
+    }
+
+    private static double distance(double[] bounds, int offset, double posX, double posY, double posZ, double invDirX, double invDirY, double invDirZ, double tMin, double tMax) {
+        return Intersection3dUtils.boxDistance(
+                posX, posY, posZ,
+                invDirX, invDirY, invDirZ,
+                bounds[offset], bounds[offset + 1], bounds[offset + 2],
+                bounds[offset + 3], bounds[offset + 4], bounds[offset + 5],
+                tMin, tMax
+        );
+    }
+
+    private static boolean contains(double[] bounds, int offset, double pointX, double pointY, double pointZ) {
+        return pointX >= bounds[offset] && pointY >= bounds[offset + 1] && pointZ >= bounds[offset + 2] &&
+                pointX <= bounds[offset + 3] && pointY <= bounds[offset + 4] && pointZ <= bounds[offset + 5];
+    }
+
+    private void setAreaBounds(int area, double[] box) {
+        if (layout != Layout.DOUBLE) {
+            floatAreaMinX[area] = Area3dBoxBatch.roundDown(box[0]);
+            floatAreaMinY[area] = Area3dBoxBatch.roundDown(box[1]);
+            floatAreaMinZ[area] = Area3dBoxBatch.roundDown(box[2]);
+            floatAreaMaxX[area] = Area3dBoxBatch.roundUp(box[3]);
+            floatAreaMaxY[area] = Area3dBoxBatch.roundUp(box[4]);
+            floatAreaMaxZ[area] = Area3dBoxBatch.roundUp(box[5]);
+            return;
+        }
+
+        areaMinX[area] = box[0];
+        areaMinY[area] = box[1];
+        areaMinZ[area] = box[2];
+        areaMaxX[area] = box[3];
+        areaMaxY[area] = box[4];
+        areaMaxZ[area] = box[5];
+    }
+
+    /**
+     * Intersects the line with the bounds of every area of the specified leaf within [tMin, tMax], writing the lowest
+     * line parameter where the line is inside the bounds of every area to out, or NaN if it never is. Areas may lie
+     * anywhere inside their bounds, so a line that starts and ends inside the bounds must not be rejected. With the
+     * compressed layouts, the line parameter is only a lower bound, and NaN is only written if the line certainly
+     * misses the bounds.
+     */
+    private int filterLeaf(int leaf, double posX, double posY, double posZ, double invDirX, double invDirY, double invDirZ, double tMin, double tMax, double[] out) {
+        if (layout != Layout.DOUBLE) {
+            return Area3dBoxBatch.overlapT(
+                    posX, posY, posZ,
+                    invDirX, invDirY, invDirZ,
+                    tMin, tMax,
+                    floatAreaMinX, floatAreaMinY, floatAreaMinZ, floatAreaMaxX, floatAreaMaxY, floatAreaMaxZ,
+                    offsets[leaf], offsets[leaf] + counts[leaf],
+                    out, 0
+            );
+        }
+
+        return Area3dBoxBatch.overlapT(
+                posX, posY, posZ,
+                invDirX, invDirY, invDirZ,
+                tMin, tMax,
+                areaMinX, areaMinY, areaMinZ, areaMaxX, areaMaxY, areaMaxZ,
+                offsets[leaf], offsets[leaf] + counts[leaf],
+                out, 0
+        );
+    }
+
+    //////////////////
+    // Quantization //
+    //////////////////
+
+    /**
+     * Decodes the quantized bounds of the specified node, from the decoded bounds of its parent, or widens its float
+     * bounds, which do not depend on the parent
+     */
+    private void decode(int node, double[] parent, int parentOffset, double[] out, int outOffset) {
+        if (floatBounds != null) {
+            for (int i = 0; i < 6; i++) {
+                out[outOffset + i] = floatBounds[node * 6 + i];
+            }
+            return;
+        }
+
+        for (int axis = 0; axis < 3; axis++) {
+            double min = parent[parentOffset + axis];
+            double max = parent[parentOffset + axis + 3];
+            double scale = (max - min) / QUANTIZATION_STEPS;
+
+            out[outOffset + axis] = dequantize(quantized[node * 6 + axis], min, max, scale);
+            out[outOffset + axis + 3] = dequantize(quantized[node * 6 + axis + 3], min, max, scale);
+        }
+    }
+
+    /**
+     * Quantizes the bounds of every node relative to the decoded bounds of its parent. Parents come before their
+     * children, so walking forwards decodes every parent before its children are quantized.
+     */
+    private static void quantize(double[] bounds, int[] offsets, int[] counts, char[] out) {
+        if (counts.length == 0) {
+            return;
+        }
+
+        double[] decoded = new double[bounds.length];
+        System.arraycopy(bounds, 0, decoded, 0, 6);
+
+        // The root is stored exactly
+        Arrays.fill(out, 0, 3, (char) 0);
+        Arrays.fill(out, 3, 6, (char) QUANTIZATION_STEPS);
+
+        for (int node = 0; node < counts.length; node++) {
+            if (counts[node] > 0) {
+                continue;
+            }
+
+            for (int side = 0; side < 2; side++) {
+                int child = side == 0 ? node + 1 : offsets[node];
+
+                for (int axis = 0; axis < 3; axis++) {
+                    double min = decoded[node * 6 + axis];
+                    double max = decoded[node * 6 + axis + 3];
+                    double scale = (max - min) / QUANTIZATION_STEPS;
+
+                    char low = quantizeDown(bounds[child * 6 + axis], min, max, scale);
+                    char high = quantizeUp(bounds[child * 6 + axis + 3], min, max, scale);
+
+                    out[child * 6 + axis] = low;
+                    out[child * 6 + axis + 3] = high;
+                    decoded[child * 6 + axis] = dequantize(low, min, max, scale);
+                    decoded[child * 6 + axis + 3] = dequantize(high, min, max, scale);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rounds the bounds of every node outwards to floats, so that the float bounds always contain the exact bounds
+     */
+    private static void narrow(double[] bounds, float[] out) {
+        for (int offset = 0; offset < bounds.length; offset += 6) {
+            for (int axis = 0; axis < 3; axis++) {
+                out[offset + axis] = Area3dBoxBatch.roundDown(bounds[offset + axis]);
+                out[offset + axis + 3] = Area3dBoxBatch.roundUp(bounds[offset + axis + 3]);
+            }
+        }
+    }
+
+    private static double dequantize(char value, double min, double max, double scale) {
+        // The ends decode exactly, so that degenerate and infinite parents decode to themselves
+        if (value == 0) {
+            return min;
+        }
+        if (value == QUANTIZATION_STEPS) {
+            return max;
+        }
+        return min + value * scale;
+    }
+
+    private static char quantizeDown(double value, double min, double max, double scale) {
+        if (!(scale > 0) || Double.isInfinite(scale)) {
+            return 0;
+        }
+
+        int step = (int) Math.max(0, Math.min(QUANTIZATION_STEPS, Math.floor((value - min) / scale)));
+
+        // Round outwards, so that the decoded bounds always contain the exact bounds
+        while (step > 0 && dequantize((char) step, min, max, scale) > value) {
+            step--;
+        }
+        return (char) step;
+    }
+
+    private static char quantizeUp(double value, double min, double max, double scale) {
+        if (!(scale > 0) || Double.isInfinite(scale)) {
+            return QUANTIZATION_STEPS;
+        }
+
+        int step = (int) Math.max(0, Math.min(QUANTIZATION_STEPS, Math.ceil((value - min) / scale)));
+
+        // Round outwards, so that the decoded bounds always contain the exact bounds
+        while (step < QUANTIZATION_STEPS && dequantize((char) step, min, max, scale) < value) {
+            step++;
+        }
+        return (char) step;
+    }
+
+    /**
+     * The buffers of the traversals of one thread. The stacks keep the capacity they grew to, so that later queries do
+     * not grow them again.
+     */
+    private static final class QueryBuffers {
+        private final NodeStack stack;
+        private final double[] scratch = new double[12];
+        private final double[] leafT;
+        private long[] masks = new long[64];
+        private Area3d[] bestAreas = new Area3d[0];
+        private boolean inUse;
+
+        private QueryBuffers(boolean withBounds, int maxLeafCount) {
+            this.stack = new NodeStack(withBounds);
+            this.leafT = new double[maxLeafCount];
+        }
+    }
+
+    /**
+     * A stack of nodes to visit, along with their distance along the line, and their decoded bounds if the hierarchy
+     * is quantized
+     */
+    private static final class NodeStack {
+        private int[] nodes = new int[64];
+        private double[] distances = new double[64];
+        private double[] bounds;
+        private int size = 0;
+
+        private NodeStack(boolean withBounds) {
+            this.bounds = withBounds ? new double[64 * 6] : null;
+        }
+
+        private void push(int node, double distance, double[] nodeBounds, int offset) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                distances = Arrays.copyOf(distances, size * 2);
+                if (bounds != null) {
+                    bounds = Arrays.copyOf(bounds, size * 2 * 6);
+                }
+            }
+
+            nodes[size] = node;
+            distances[size] = distance;
+            if (bounds != null) {
+                System.arraycopy(nodeBounds, offset, bounds, size * 6, 6);
+            }
+            size++;
+        }
+
+        /**
+         * Pops the top node. Its distance stays at {@code size}, and its bounds at {@code size * 6} if the hierarchy is
+         * quantized, until the next push.
+         */
+        private int pop() {
+            return nodes[--size];
+        }
+    }
+
+    /**
+     * Traverses the hierarchy for up to 64 rays of a packet at once. Every node is visited with the mask of the rays
+     * that intersect it, so the rays share the node visits and reads, and a node is skipped for the whole packet when
+     * the packet bounds miss it.
+     */
+    private final class PacketTraversal {
+        private final RayPacket packet;
+        private final Intersection<?> intersection;
+        private final boolean farthest;
+        private final boolean any;
+        private final double[] best;
+        private final Area3d[] bestAreas;
+
+        private final QueryBuffers buffers;
+        private final NodeStack stack;
+        private final double[] scratch;
+
+        // The mask of the rays that are still searching, and the first ray of the packet in the mask
+        private long active;
+        private int first;
+
+        // The distance of the last intersected node along the first ray of its mask
+        private double leadDistance;
+
+        private PacketTraversal(RayPacket packet, Intersection<?> intersection, double[] best, Area3d[] bestAreas, QueryBuffers buffers) {
+            this.packet = packet;
+            this.intersection = intersection;
+            this.farthest = intersection.collector().type() == Intersection.Collector.Type.FARTHEST;
+            this.any = intersection.collector().type() == Intersection.Collector.Type.ANY;
+            this.best = best;
+            this.bestAreas = bestAreas;
+            this.buffers = buffers;
+            this.stack = buffers.stack;
+            this.scratch = buffers.scratch;
+        }
+
+        private void traverse(int first, int end) {
+            this.first = first;
+            this.active = end - first == 64 ? -1L : (1L << (end - first)) - 1;
+
+            for (Area3d area3d : unbounded) {
+                intersectAreas(area3d, active);
+            }
+
+            if (counts.length == 0) {
+                return;
+            }
+
+            long rootMask = intersectNode(bounds, 0, active);
+            if (rootMask == 0) {
+                return;
+            }
+
+            stack.size = 0;
+            push(0, rootMask, bounds, 0);
+
+            while (stack.size > 0) {
+                int node = stack.pop();
+                long mask = buffers.masks[stack.size] & active;
+
+                if (mask == 0) {
+                    continue;
+                }
+
+                if (counts[node] > 0) {
+                    for (int i = offsets[node]; i < offsets[node] + counts[node]; i++) {
+                        intersectAreas(areas[i], mask);
+                        mask &= active;
+                    }
+                    continue;
+                }
+
+                int left = node + 1;
+                int right = offsets[node];
+                double[] childBounds = bounds;
+                int leftOffset = left * 6;
+                int rightOffset = right * 6;
+
+                if (layout != Layout.DOUBLE) {
+                    decode(left, stack.bounds, stack.size * 6, scratch, 0);
+                    decode(right, stack.bounds, stack.size * 6, scratch, 6);
+                    childBounds = scratch;
+                    leftOffset = 0;
+                    rightOffset = 6;
+                }
+
+                // Rays that found a nearer intersection since the node was pushed drop out here
+                long leftMask = intersectNode(childBounds, leftOffset, mask);
+                double leftDistance = leadDistance;
+                long rightMask = intersectNode(childBounds, rightOffset, mask);
+                double rightDistance = leadDistance;
+
+                // Push the child that is further away for the first ray first, so that the near child is visited first
+                if (leftDistance <= rightDistance) {
+                    push(right, rightMask, childBounds, rightOffset);
+                    push(left, leftMask, childBounds, leftOffset);
+                } else {
+                    push(left, leftMask, childBounds, leftOffset);
+                    push(right, rightMask, childBounds, rightOffset);
+                }
+            }
+        }
+
+        /**
+         * Returns the mask of the rays of the specified mask that intersect the specified node, and are not already
+         * nearer to an intersection than to the node
+         */
+        private long intersectNode(double[] nodeBounds, int offset, long mask) {
+            leadDistance = Double.POSITIVE_INFINITY;
+
+            if (!packet.mayIntersect(
+                    nodeBounds[offset], nodeBounds[offset + 1], nodeBounds[offset + 2],
+                    nodeBounds[offset + 3], nodeBounds[offset + 4], nodeBounds[offset + 5],
+                    intersection.direction()
+            )) {
+                return 0;
+            }
+
+            long result = 0;
+
+            for (long remaining = mask; remaining != 0; remaining &= remaining - 1) {
+                int bit = Long.numberOfTrailingZeros(remaining);
+                int index = first + bit;
+                Ray ray = packet.ray(index);
+
+                // Find the interval of the line that the direction, the max length and the segment allow
+                double tMin = Math.max(intersection.direction() == Intersection.Direction.FORWARDS ? 0 : -ray.maxT(), intersection.minT());
+                double tMax = Math.min(intersection.direction() == Intersection.Direction.BACKWARDS ? 0 : ray.maxT(), intersection.maxT());
+
+                double distance = distance(nodeBounds, offset, ray.posX(), ray.posY(), ray.posZ(), ray.invDirX(), ray.invDirY(), ray.invDirZ(), tMin, tMax);
+
+                // Skip rays that already found an intersection nearer than the node
+                if (Double.isNaN(distance) || (!farthest && bestAreas[index] != null && distance > Math.abs(best[index]))) {
+                    continue;
+                }
+
+                if (result == 0) {
+                    leadDistance = distance;
+                }
+                result |= 1L << bit;
+            }
+
+            return result;
+        }
+
+        private void intersectAreas(Area3d area3d, long mask) {
+            for (long remaining = mask; remaining != 0; remaining &= remaining - 1) {
+                int bit = Long.numberOfTrailingZeros(remaining);
+                int index = first + bit;
+                double t = area3d.intersectT(packet.ray(index), intersection, null);
+
+                if (Double.isNaN(t)) {
+                    continue;
+                }
+
+                if (bestAreas[index] == null || (farthest ? Math.abs(t) > Math.abs(best[index]) : Math.abs(t) < Math.abs(best[index]))) {
+                    best[index] = t;
+                    bestAreas[index] = area3d;
+                }
+
+                // Any intersection ends the search of the ray
+                if (any) {
+                    active &= ~(1L << bit);
+                }
+            }
+        }
+
+        private void push(int node, long mask, double[] nodeBounds, int offset) {
+            if (mask == 0) {
+                return;
+            }
+
+            if (stack.size == buffers.masks.length) {
+                buffers.masks = Arrays.copyOf(buffers.masks, stack.size * 2);
+            }
+            buffers.masks[stack.size] = mask;
+            stack.push(node, 0, nodeBounds, offset);
+        }
+    }
+
+    /**
+     * The storage of the node bounds of a hierarchy
+     */
+    public enum Layout {
+        /**
+         * Stores the bounds of every node and area as doubles, 48 bytes per node and per area
+         */
+        DOUBLE,
+        /**
+         * Stores the bounds of every node as 16 bit steps inside the bounds of its parent, 12 bytes per node. The
+         * steps are rounded outwards, so nodes may be slightly larger than their areas, and traversals decode the
+         * bounds on the fly at a small cost. The bounds of every area are stored as floats rounded outwards, 24 bytes
+         * per area, and filtered like with {@link #FLOAT}. Areas are still tested with their exact kernels.
+         */
+        QUANTIZED,
+        /**
+         * Stores the bounds of every node and area as floats rounded outwards, 24 bytes per node and per area. Leaves
+         * are filtered with the float kernel of {@link Area3dBoxBatch}, which never rejects an area whose double bounds
+         * the line intersects, and areas are still tested with their exact kernels, so intersections are the same as
+         * with {@link #DOUBLE}. Floats are coarse far from the origin, where the leaves reject fewer areas.
+         */
+        FLOAT
+    }
+
+    public static class Builder {
+        private Builder() {
+        }
+
+        // Ranges of areas smaller than this are built on the current thread
+        private static final int PARALLEL_THRESHOLD = 4096;
+
+        // Nodes deeper than this are split at their median area instead of with the surface area heuristic, which
+        // halves the areas at every level. Skewed areas can make every heuristic split peel off a single area, and
+        // this bounds the depth of the recursion of the build and the flattening.
+        private static final int MAX_HEURISTIC_DEPTH = 48;
+
+        private int leafSize = 4;
+        private int bins = 16;
+        private @Nullable ForkJoinPool pool = null;
+        private Layout layout = Layout.DOUBLE;
+
+        /**
+         * Sets the number of areas in a leaf of the hierarchy. Nodes with more areas than this are split, unless the
+         * surface area heuristic expects no split to run fewer kernels than testing every area of the node, such as
+         * when the areas overlap.
+         * @param leafSize the number of areas in a leaf
+         * @return the builder
+         */
+        public @NotNull Builder leafSize(int leafSize) {
+            if (leafSize < 1) {
+                throw new IllegalArgumentException("Leaf size must be at least 1, got " + leafSize);
+            }
+            this.leafSize = leafSize;
+            return this;
+        }
+
+        /**
+         * Sets the number of bins the surface area heuristic evaluates split positions with. More bins find better
+         * splits at the cost of a slower build.
+         * @param bins the number of bins
+         * @return the builder
+         */
+        public @NotNull Builder bins(int bins) {
+            if (bins < 2) {
+                throw new IllegalArgumentException("Bins must be at least 2, got " + bins);
+            }
+            this.bins = bins;
+            return this;
+        }
+
+        /**
+         * Sets the pool to build the hierarchy on, such as {@link ForkJoinPool#commonPool()}. The build splits the
+         * binning, the partitioning and the subtrees of large nodes into tasks of the pool. The resulting hierarchy is
+         * the same as the one built on the calling thread. Defaults to null.
+         * @param pool the pool, or null to build on the calling thread
+         * @return the builder
+         */
+        public @NotNull Builder pool(@Nullable ForkJoinPool pool) {
+            this.pool = pool;
+            return this;
+        }
+
+        /**
+         * Sets how the bounds of the nodes are stored. Defaults to {@link Layout#DOUBLE}.
+         * @param layout the layout
+         * @return the builder
+         */
+        public @NotNull Builder layout(@NotNull Layout layout) {
+            this.layout = layout;
+            return this;
+        }
+
+        /**
+         * Builds the hierarchy over the specified areas
+         * @param area3ds the areas
+         * @return the hierarchy
+         */
+        public @NotNull Area3dBvh build(@NotNull Collection<? extends Area3d> area3ds) {
+            return build(area3ds.toArray(Area3d[]::new));
+        }
+
+        /**
+         * Builds the hierarchy over the specified areas
+         * @param area3ds the areas
+         * @return the hierarchy
+         */
+        public @NotNull Area3dBvh build(Area3d... area3ds) {
+            // Separate the bounded and unbounded areas
+            List<Area3d> bounded = new ArrayList<>(area3ds.length);
+            List<Area3d> unbounded = new ArrayList<>();
+            double[] bounds = new double[6];
+            double[] boxes = new double[area3ds.length * 6];
+
+            for (Area3d area3d : area3ds) {
+                if (area3d.boundingBox(bounds)) {
+                    System.arraycopy(bounds, 0, boxes, bounded.size() * 6, 6);
+                    bounded.add(area3d);
+                } else {
+                    unbounded.add(area3d);
+                }
+            }
+
+            int count = bounded.size();
+            Area3d[] ordered = new Area3d[count];
+
+            if (count == 0) {
+                return new Area3dBvh(new double[0], new int[0], new int[0], ordered, unbounded.toArray(Area3d[]::new), layout);
+            }
+
+            BuildNode root;
+            {
+                double[] centroids = new double[count * 3];
+                int[] indices = new int[count];
+                int[] partitioned = new int[count];
+
+                for (int i = 0; i < count; i++) {
+                    centroids[i * 3] = (boxes[i * 6] + boxes[i * 6 + 3]) * 0.5;
+                    centroids[i * 3 + 1] = (boxes[i * 6 + 1] + boxes[i * 6 + 4]) * 0.5;
+                    centroids[i * 3 + 2] = (boxes[i * 6 + 2] + boxes[i * 6 + 5]) * 0.5;
+                    indices[i] = i;
+                }
+
+                if (pool != null && count >= PARALLEL_THRESHOLD) {
+                    root = pool.invoke(new NodeTask(boxes, centroids, indices, partitioned, 0, count, 0));
+                } else {
+                    root = buildNode(boxes, centroids, indices, partitioned, 0, count, 0, false);
+                }
+
+                for (int i = 0; i < count; i++) {
+                    ordered[i] = bounded.get(indices[i]);
+                }
+            }
+
+            // Flatten the nodes into depth-first order
+            double[] nodeBounds = new double[root.nodeCount * 6];
+            int[] offsets = new int[root.nodeCount];
+            int[] counts = new int[root.nodeCount];
+            flatten(root, 0, nodeBounds, offsets, counts);
+
+            return new Area3dBvh(nodeBounds, offsets, counts, ordered, unbounded.toArray(Area3d[]::new), layout);
+        }
+
+        /**
+         * Writes the specified node and its subtree into the arrays, starting at the specified index
+         * @return the index after the subtree
+         */
+        private static int flatten(BuildNode node, int index, double[] bounds, int[] offsets, int[] counts) {
+            System.arraycopy(node.bounds, 0, bounds, index * 6, 6);
+
+            if (node.left == null) {
+                offsets[index] = node.start;
+                counts[index] = node.count;
+                return index + 1;
+            }
+
+            int right = flatten(node.left, index + 1, bounds, offsets, counts);
+            offsets[index] = right;
+            return flatten(node.right, right, bounds, offsets, counts);
+        }
+
+        private @NotNull BuildNode buildNode(double[] boxes, double[] centroids, int[] indices, int[] partitioned, int start, int end, int depth, boolean parallel) {
+            double[] bounds = {
+                    Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                    Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY
+            };
+            double[] centroidBounds = bounds.clone();
+
+            for (int i = start; i < end; i++) {
+                int index = indices[i];
+                for (int axis = 0; axis < 3; axis++) {
+                    bounds[axis] = Math.min(bounds[axis], boxes[index * 6 + axis]);
+                    bounds[axis + 3] = Math.max(bounds[axis + 3], boxes[index * 6 + axis + 3]);
+                    centroidBounds[axis] = Math.min(centroidBounds[axis], centroids[index * 3 + axis]);
+                    centroidBounds[axis + 3] = Math.max(centroidBounds[axis + 3], centroids[index * 3 + axis]);
+                }
+            }
+
+            BuildNode node = new BuildNode(bounds);
+            int count = end - start;
+
+            // Split along the axis with the largest centroid extent
+            int axis = 0;
+            for (int i = 1; i < 3; i++) {
+                if (centroidBounds[i + 3] - centroidBounds[i] > centroidBounds[axis + 3] - centroidBounds[axis]) {
+                    axis = i;
+                }
+            }
+
+            double extent = centroidBounds[axis + 3] - centroidBounds[axis];
+            int mid;
+
+            if (count <= leafSize || !(extent > 0)) {
+                mid = -1;
+            } else if (depth >= MAX_HEURISTIC_DEPTH) {
+                mid = start + count / 2;
+                selectMedian(centroids, indices, start, end, mid, axis);
+            } else {
+                int split = findSplit(boxes, centroids, indices, start, end, axis, centroidBounds[axis], extent, surfaceArea(bounds, 0), parallel);
+                mid = split == -1 ? -1 : partition(centroids, indices, partitioned, start, end, axis, centroidBounds[axis], extent, split, parallel);
+            }
+
+            if (mid == -1) {
+                node.start = start;
+                node.count = count;
+                return node;
+            }
+
+            // The children own disjoint ranges of the indices, so they can be built concurrently
+            if (parallel && count >= PARALLEL_THRESHOLD) {
+                NodeTask left = new NodeTask(boxes, centroids, indices, partitioned, start, mid, depth + 1);
+                left.fork();
+                node.right = buildNode(boxes, centroids, indices, partitioned, mid, end, depth + 1, true);
+                node.left = left.join();
+            } else {
+                node.left = buildNode(boxes, centroids, indices, partitioned, start, mid, depth + 1, false);
+                node.right = buildNode(boxes, centroids, indices, partitioned, mid, end, depth + 1, false);
+            }
+            node.nodeCount = 1 + node.left.nodeCount + node.right.nodeCount;
+            return node;
+        }
+
+        /**
+         * Partitions the areas of the range around the specified split bin, through the same range of the partitioned
+         * array. Large ranges are split into chunks that are partitioned in parallel. Both sides keep the order of their
+         * areas, so the result does not depend on how the range was split.
+         * @return the index of the first area of the right hand side
+         */
+        private int partition(double[] centroids, int[] indices, int[] partitioned, int start, int end, int axis, double min, double extent, int split, boolean parallel) {
+            int count = end - start;
+            int chunkSize = parallel ? PARALLEL_THRESHOLD : count;
+            int chunks = (count + chunkSize - 1) / chunkSize;
+            int[] leftCounts = new int[chunks];
+
+            // Count the areas of every chunk that go to the left hand side
+            forEachChunk(chunks, chunk -> {
+                int left = 0;
+
+                for (int i = start + chunk * chunkSize; i < Math.min(end, start + (chunk + 1) * chunkSize); i++) {
+                    if (bin(centroids[indices[i] * 3 + axis], min, extent) < split) {
+                        left++;
+                    }
+                }
+                leftCounts[chunk] = left;
+            });
+
+            // Every chunk writes its areas after the areas of the chunks before it, on both sides
+            int[] leftOffsets = new int[chunks];
+            int[] rightOffsets = new int[chunks];
+            int mid = start;
+
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                leftOffsets[chunk] = mid;
+                mid += leftCounts[chunk];
+            }
+            for (int chunk = 0, right = mid; chunk < chunks; chunk++) {
+                rightOffsets[chunk] = right;
+                right += Math.min(chunkSize, count - chunk * chunkSize) - leftCounts[chunk];
+            }
+
+            forEachChunk(chunks, chunk -> {
+                int left = leftOffsets[chunk];
+                int right = rightOffsets[chunk];
+
+                for (int i = start + chunk * chunkSize; i < Math.min(end, start + (chunk + 1) * chunkSize); i++) {
+                    if (bin(centroids[indices[i] * 3 + axis], min, extent) < split) {
+                        partitioned[left++] = indices[i];
+                    } else {
+                        partitioned[right++] = indices[i];
+                    }
+                }
+            });
+
+            System.arraycopy(partitioned, start, indices, start, count);
+            return mid;
+        }
+
+        /**
+         * Runs the action for every chunk, as tasks of the current pool if there is more than one chunk
+         */
+        private static void forEachChunk(int chunks, IntConsumer action) {
+            if (chunks == 1) {
+                action.accept(0);
+                return;
+            }
+
+            ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[chunks];
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                int index = chunk;
+                tasks[chunk] = ForkJoinTask.adapt(() -> action.accept(index));
+            }
+            ForkJoinTask.invokeAll(tasks);
+        }
+
+        /**
+         * Reorders the areas of the range so that the area at mid has the median centroid along the axis, every area
+         * before it a centroid no greater and every area after it a centroid no smaller
+         */
+        private static void selectMedian(double[] centroids, int[] indices, int start, int end, int mid, int axis) {
+            int low = start;
+            int high = end - 1;
+
+            while (low < high) {
+                double pivot = centroids[indices[(low + high) >>> 1] * 3 + axis];
+                int i = low;
+                int j = high;
+
+                while (i <= j) {
+                    while (centroids[indices[i] * 3 + axis] < pivot) {
+                        i++;
+                    }
+                    while (centroids[indices[j] * 3 + axis] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        int swap = indices[i];
+                        indices[i] = indices[j];
+                        indices[j] = swap;
+                        i++;
+                        j--;
+                    }
+                }
+
+                if (mid <= j) {
+                    high = j;
+                } else if (mid >= i) {
+                    low = i;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Finds the bin to split the range before with the surface area heuristic
+         * @return the split bin, or -1 if no split is expected to run fewer kernels than a leaf
+         */
+        private int findSplit(double[] boxes, double[] centroids, int[] indices, int start, int end, int axis, double min, double extent, double area, boolean parallel) {
+            // Bin the areas by centroid
+            Bins binned = parallel && end - start >= PARALLEL_THRESHOLD
+                    ? new BinTask(boxes, centroids, indices, start, end, axis, min, extent).invoke()
+                    : binRange(boxes, centroids, indices, start, end, axis, min, extent);
+            int[] binCounts = binned.counts;
+            double[] binBounds = binned.bounds;
+
+            // Sweep from the right to find the area of every right hand side
+            double[] rightAreas = new double[bins];
+            double[] accumulated = {
+                    Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                    Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY
+            };
+
+            for (int i = bins - 1; i > 0; i--) {
+                grow(accumulated, 0, binBounds, i);
+                rightAreas[i] = surfaceArea(accumulated, 0);
+            }
+
+            // Sweep from the left, evaluating the cost of splitting before every bin
+            Arrays.fill(accumulated, 0, 3, Double.POSITIVE_INFINITY);
+            Arrays.fill(accumulated, 3, 6, Double.NEGATIVE_INFINITY);
+
+            int bestSplit = -1;
+            double bestCost = Double.POSITIVE_INFINITY;
+            int leftCount = 0;
+            int count = end - start;
+
+            for (int i = 1; i < bins; i++) {
+                grow(accumulated, 0, binBounds, i - 1);
+                leftCount += binCounts[i - 1];
+
+                if (leftCount == 0 || leftCount == count) {
+                    continue;
+                }
+
+                // The cost of a split is the expected number of kernels run, relative to the area of this node
+                double cost = surfaceArea(accumulated, 0) * leftCount + rightAreas[i] * (count - leftCount);
+
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestSplit = i;
+                }
+            }
+
+            // A leaf runs the kernel of every area, while a split first tests the bounds of both children
+            if (area > 0 && 2 + bestCost / area >= count) {
+                return -1;
+            }
+
+            return bestSplit;
+        }
+
+        private @NotNull Bins binRange(double[] boxes, double[] centroids, int[] indices, int start, int end, int axis, double min, double extent) {
+            Bins binned = new Bins(bins);
+
+            for (int i = start; i < end; i++) {
+                int index = indices[i];
+                int bin = bin(centroids[index * 3 + axis], min, extent);
+                binned.counts[bin]++;
+
+                for (int j = 0; j < 3; j++) {
+                    binned.bounds[bin * 6 + j] = Math.min(binned.bounds[bin * 6 + j], boxes[index * 6 + j]);
+                    binned.bounds[bin * 6 + j + 3] = Math.max(binned.bounds[bin * 6 + j + 3], boxes[index * 6 + j + 3]);
+                }
+            }
+
+            return binned;
+        }
+
+        private int bin(double centroid, double min, double extent) {
+            return Math.min(bins - 1, (int) ((centroid - min) * bins / extent));
+        }
+
+        private static void grow(double[] bounds, int index, double[] binBounds, int bin) {
+            for (int j = 0; j < 3; j++) {
+                bounds[index * 6 + j] = Math.min(bounds[index * 6 + j], binBounds[bin * 6 + j]);
+                bounds[index * 6 + j + 3] = Math.max(bounds[index * 6 + j + 3], binBounds[bin * 6 + j + 3]);
+            }
+        }
+
+        /**
+         * The counts and bounds of the bins of a range of areas
+         */
+        private static final class Bins {
+            private final int[] counts;
+            private final double[] bounds;
+
+            private Bins(int bins) {
+                counts = new int[bins];
+                bounds = new double[bins * 6];
+
+                for (int i = 0; i < bins; i++) {
+                    Arrays.fill(bounds, i * 6, i * 6 + 3, Double.POSITIVE_INFINITY);
+                    Arrays.fill(bounds, i * 6 + 3, i * 6 + 6, Double.NEGATIVE_INFINITY);
+                }
+            }
+
+            private void merge(@NotNull Bins other) {
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] += other.counts[i];
+                    grow(bounds, i, other.bounds, i);
+                }
+            }
+        }
+
+        /**
+         * Builds the subtree over a range of the indices
+         */
+        private final class NodeTask extends RecursiveTask<BuildNode> {
+            private static final long serialVersionUID = 1L;
+
+            private final double[] boxes;
+            private final double[] centroids;
+            private final int[] indices;
+            private final int[] partitioned;
+            private final int start;
+            private final int end;
+            private final int depth;
+
+            private NodeTask(double[] boxes, double[] centroids, int[] indices, int[] partitioned, int start, int end, int depth) {
+                this.boxes = boxes;
+                this.centroids = centroids;
+                this.indices = indices;
+                this.partitioned = partitioned;
+                this.start = start;
+                this.end = end;
+                this.depth = depth;
+            }
+
+            @Override
+            protected BuildNode compute() {
+                return buildNode(boxes, centroids, indices, partitioned, start, end, depth, true);
+            }
+        }
+
+        /**
+         * Bins a range of the indices, splitting large ranges in halves. Merging bins is exact, so the result does not
+         * depend on how the range was split.
+         */
+        private final class BinTask extends RecursiveTask<Bins> {
+            private static final long serialVersionUID = 1L;
+
+            private final double[] boxes;
+            private final double[] centroids;
+            private final int[] indices;
+            private final int start;
+            private final int end;
+            private final int axis;
+            private final double min;
+            private final double extent;
+
+            private BinTask(double[] boxes, double[] centroids, int[] indices, int start, int end, int axis, double min, double extent) {
+                this.boxes = boxes;
+                this.centroids = centroids;
+                this.indices = indices;
+                this.start = start;
+                this.end = end;
+                this.axis = axis;
+                this.min = min;
+                this.extent = extent;
+            }
+
+            @Override
+            protected Bins compute() {
+                if (end - start < PARALLEL_THRESHOLD) {
+                    return binRange(boxes, centroids, indices, start, end, axis, min, extent);
+                }
+
+                int mid = (start + end) >>> 1;
+                BinTask left = new BinTask(boxes, centroids, indices, start, mid, axis, min, extent);
+                left.fork();
+                Bins binned = new BinTask(boxes, centroids, indices, mid, end, axis, min, extent).compute();
+                binned.merge(left.join());
+                return binned;
+            }
+        }
+
+        /**
+         * A node of the hierarchy while it is being built, before it is flattened
+         */
+        private static final class BuildNode {
+            private final double[] bounds;
+            private BuildNode left;
+            private BuildNode right;
+            private int start;
+            private int count;
+            private int nodeCount = 1;
+
+            private BuildNode(double[] bounds) {
+                this.bounds = bounds;
+            }
+        }
+    }
+
+    private static double surfaceArea(double[] bounds, int offset) {
+        double x = bounds[offset + 3] - bounds[offset];
+        double y = bounds[offset + 4] - bounds[offset + 1];
+        double z = bounds[offset + 5] - bounds[offset + 2];
+
+        if (!(x >= 0 && y >= 0 && z >= 0)) {
+            return 0;
+        }
+
+        return 2 * (x * y + y * z + z * x);
+    }
+}
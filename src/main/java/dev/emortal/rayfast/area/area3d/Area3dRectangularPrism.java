@@ -1,14 +1,15 @@
 package dev.emortal.rayfast.area.area3d;
 
 import dev.emortal.rayfast.area.Intersection;
+import dev.emortal.rayfast.area.Ray;
 import dev.emortal.rayfast.util.FunctionalInterfaces;
-import dev.emortal.rayfast.util.Intersection3dUtils;
 import dev.emortal.rayfast.vector.Vector3d;
 import org.jetbrains.annotations.ApiStatus;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -24,11 +25,110 @@ public interface Area3dRectangularPrism extends Area3d {
     double getMaxY();
     double getMaxZ();
 
+    @Override
+    default boolean boundingBox(double @NotNull [] out) {
+        out[0] = getMinX();
+        out[1] = getMinY();
+        out[2] = getMinZ();
+        out[3] = getMaxX();
+        out[4] = getMaxY();
+        out[5] = getMaxZ();
+        return true;
+    }
+
+    @Override
+    default boolean containsPoint(double pointX, double pointY, double pointZ) {
+        return pointX >= getMinX() && pointX <= getMaxX() &&
+                pointY >= getMinY() && pointY <= getMaxY() &&
+                pointZ >= getMinZ() && pointZ <= getMaxZ();
+    }
+
     @Override
     @ApiStatus.Internal
     @SuppressWarnings("unchecked")
     default <R> @Nullable R lineIntersection(double posX, double posY, double posZ, double dirX, double dirY, double dirZ, @NotNull Intersection<R> intersection) {
-        // Update and get planes
+        switch (intersection.collector().type()) {
+            default:
+            case ANY:
+            case NEAREST:
+            case FARTHEST: {
+                double t = intersectT(posX, posY, posZ, dirX, dirY, dirZ, intersection, null);
+
+                if (Double.isNaN(t)) {
+                    return null;
+                }
+
+                return (R) Vector3d.of(posX + dirX * t, posY + dirY * t, posZ + dirZ * t);
+            }
+            case ALL:
+                return (R) all(posX, posY, posZ, dirX, dirY, dirZ, 1.0 / dirX, 1.0 / dirY, 1.0 / dirZ, Double.POSITIVE_INFINITY, intersection);
+            case COUNT:
+                return (R) Integer.valueOf(count(posX, posY, posZ, 1.0 / dirX, 1.0 / dirY, 1.0 / dirZ, Double.POSITIVE_INFINITY, intersection));
+        }
+    }
+
+    @Override
+    default double intersectT(double posX, double posY, double posZ, double dirX, double dirY, double dirZ, @NotNull Intersection<?> intersection, @Nullable Area3dHit hit) {
+        boolean nearest = intersection.collector().type() != Intersection.Collector.Type.FARTHEST;
+        return slab(posX, posY, posZ, 1.0 / dirX, 1.0 / dirY, 1.0 / dirZ, Double.POSITIVE_INFINITY, intersection, nearest, hit);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    default <R> @Nullable R lineIntersection(@NotNull Ray ray, @NotNull Intersection<R> intersection) {
+        switch (intersection.collector().type()) {
+            case ALL:
+                return (R) all(ray.posX(), ray.posY(), ray.posZ(), ray.dirX(), ray.dirY(), ray.dirZ(), ray.invDirX(), ray.invDirY(), ray.invDirZ(), ray.maxT(), intersection);
+            case COUNT:
+                return (R) Integer.valueOf(count(ray.posX(), ray.posY(), ray.posZ(), ray.invDirX(), ray.invDirY(), ray.invDirZ(), ray.maxT(), intersection));
+        }
+
+        double t = intersectT(ray, intersection, null);
+
+        if (Double.isNaN(t)) {
+            return null;
+        }
+
+        return (R) Vector3d.of(ray.posX() + ray.dirX() * t, ray.posY() + ray.dirY() * t, ray.posZ() + ray.dirZ() * t);
+    }
+
+    @Override
+    default double intersectT(@NotNull Ray ray, @NotNull Intersection<?> intersection, @Nullable Area3dHit hit) {
+        boolean nearest = intersection.collector().type() != Intersection.Collector.Type.FARTHEST;
+        return slab(ray.posX(), ray.posY(), ray.posZ(), ray.invDirX(), ray.invDirY(), ray.invDirZ(), ray.maxT(), intersection, nearest, hit);
+    }
+
+    /**
+     * Returns the points where the line enters and leaves the prism within maxT and the segment of the intersection,
+     * in the order of their line parameters
+     */
+    private List<Vector3d> all(double posX, double posY, double posZ, double dirX, double dirY, double dirZ, double invDirX, double invDirY, double invDirZ, double maxT, Intersection<?> intersection) {
+        double near = slab(posX, posY, posZ, invDirX, invDirY, invDirZ, maxT, intersection, true, null);
+
+        // An empty collection is shared, so that a miss never allocates
+        if (Double.isNaN(near)) {
+            return Collections.emptyList();
+        }
+
+        double far = slab(posX, posY, posZ, invDirX, invDirY, invDirZ, maxT, intersection, false, null);
+        double first = Math.min(near, far);
+        double second = Math.max(near, far);
+
+        List<Vector3d> result = new ArrayList<>(2);
+        result.add(Vector3d.of(posX + dirX * first, posY + dirY * first, posZ + dirZ * first));
+
+        if (second != first) {
+            result.add(Vector3d.of(posX + dirX * second, posY + dirY * second, posZ + dirZ * second));
+        }
+        return result;
+    }
+
+    /**
+     * Clips the line against the slab of every axis, where the line enters the prism at tNear and leaves at tFar, and
+     * returns the allowed one within maxT and the segment of the intersection that is nearest to, or furthest from,
+     * the line position. An axis with an infinite inverse direction is not moved along.
+     */
+    private double slab(double posX, double posY, double posZ, double invDirX, double invDirY, double invDirZ, double maxT, Intersection<?> intersection, boolean nearest, @Nullable Area3dHit hit) {
         double minX = getMinX();
         double minY = getMinY();
         double minZ = getMinZ();
@@ -36,161 +136,120 @@ public interface Area3dRectangularPrism extends Area3d {
         double maxY = getMaxY();
         double maxZ = getMaxZ();
 
-        // Don't initialize this collection until we know that we need to collect the values.
-        List<Vector3d> result = null;
+        double tNear = Double.NEGATIVE_INFINITY;
+        double tFar = Double.POSITIVE_INFINITY;
+        int nearFace = Area3dHit.NO_FACE;
+        int farFace = Area3dHit.NO_FACE;
 
-        Intersection.Collector.Type collectorType = intersection.collector().type();
-        Intersection.Direction direction = intersection.direction();
+        // Going towards the positive side of an axis, the line enters through the min face and leaves through the max face
+        if (Math.abs(invDirX) != Double.POSITIVE_INFINITY) {
+            double enter = ((invDirX > 0 ? minX : maxX) - posX) * invDirX;
+            double exit = ((invDirX > 0 ? maxX : minX) - posX) * invDirX;
 
-        if (collectorType == Intersection.Collector.Type.ALL) {
-            result = new ArrayList<>();
+            if (enter > tNear) {
+                tNear = enter;
+                nearFace = invDirX > 0 ? Area3dHit.FACE_MIN_X : Area3dHit.FACE_MAX_X;
+            }
+            if (exit < tFar) {
+                tFar = exit;
+                farFace = invDirX > 0 ? Area3dHit.FACE_MAX_X : Area3dHit.FACE_MIN_X;
+            }
+        } else if (posX < minX || posX > maxX) {
+            return Double.NaN;
         }
 
-        { // Front
-            Vector3d pos = Intersection3dUtils.planeIntersection(
-                    // Line direction
-                    direction,
-                    // Line
-                    posX, posY, posZ,
-                    dirX, dirY, dirZ,
-                    // Plane
-                    minX, minY, minZ,
-                    minX, maxY, minZ,
-                    maxX, maxY, minZ
-            );
-
-            if (pos != null) {
-                switch (collectorType) {
-                    default:
-                    case ANY:
-                        return (R) pos;
-                    case ALL:
-                        result.add(pos);
-                }
+        if (Math.abs(invDirY) != Double.POSITIVE_INFINITY) {
+            double enter = ((invDirY > 0 ? minY : maxY) - posY) * invDirY;
+            double exit = ((invDirY > 0 ? maxY : minY) - posY) * invDirY;
+
+            if (enter > tNear) {
+                tNear = enter;
+                nearFace = invDirY > 0 ? Area3dHit.FACE_MIN_Y : Area3dHit.FACE_MAX_Y;
+            }
+            if (exit < tFar) {
+                tFar = exit;
+                farFace = invDirY > 0 ? Area3dHit.FACE_MAX_Y : Area3dHit.FACE_MIN_Y;
             }
+        } else if (posY < minY || posY > maxY) {
+            return Double.NaN;
         }
 
-        { // Back
-            Vector3d pos = Intersection3dUtils.planeIntersection(
-                    // Line direction
-                    direction,
-                    // Line
-                    posX, posY, posZ,
-                    dirX, dirY, dirZ,
-                    // Plane
-                    minX, minY, maxZ,
-                    minX, maxY, maxZ,
-                    maxX, maxY, maxZ
-            );
-
-            if (pos != null) {
-                switch(collectorType) {
-                    default:
-                    case ANY:
-                        return (R) pos;
-                    case ALL:
-                        result.add(pos);
-                }
+        if (Math.abs(invDirZ) != Double.POSITIVE_INFINITY) {
+            double enter = ((invDirZ > 0 ? minZ : maxZ) - posZ) * invDirZ;
+            double exit = ((invDirZ > 0 ? maxZ : minZ) - posZ) * invDirZ;
+
+            if (enter > tNear) {
+                tNear = enter;
+                nearFace = invDirZ > 0 ? Area3dHit.FACE_MIN_Z : Area3dHit.FACE_MAX_Z;
+            }
+            if (exit < tFar) {
+                tFar = exit;
+                farFace = invDirZ > 0 ? Area3dHit.FACE_MAX_Z : Area3dHit.FACE_MIN_Z;
             }
+        } else if (posZ < minZ || posZ > maxZ) {
+            return Double.NaN;
         }
 
-        { // Left
-            Vector3d pos = Intersection3dUtils.planeIntersection(
-                    // Line direction
-                    direction,
-                    // Line
-                    posX, posY, posZ,
-                    dirX, dirY, dirZ,
-                    // Plane
-                    minX, minY, minZ,
-                    minX, maxY, minZ,
-                    minX, maxY, maxZ
-            );
-
-            if (pos != null) {
-                switch(collectorType) {
-                    default:
-                    case ANY:
-                        return (R) pos;
-                    case ALL:
-                        result.add(pos);
-                }
-            }
+        // A line without a direction never crosses the surface
+        if (!(tNear <= tFar) || Double.isInfinite(tNear)) {
+            return Double.NaN;
         }
 
-        { // Right
-            Vector3d pos = Intersection3dUtils.planeIntersection(
-                    // Line direction
-                    direction,
-                    // Line
-                    posX, posY, posZ,
-                    dirX, dirY, dirZ,
-                    // Plane
-                    maxX, minY, minZ,
-                    maxX, maxY, minZ,
-                    maxX, maxY, maxZ
-            );
-
-            if (pos != null) {
-                switch(collectorType) {
-                    default:
-                    case ANY:
-                        return (R) pos;
-                    case ALL:
-                        result.add(pos);
-                }
-            }
+        boolean near = isAllowed(intersection, tNear, maxT);
+        boolean far = isAllowed(intersection, tFar, maxT);
+
+        if (!near && !far) {
+            return Double.NaN;
         }
 
-        { // Top
-            Vector3d pos = Intersection3dUtils.planeIntersection(
-                    // Line direction
-                    direction,
-                    // Line
-                    posX, posY, posZ,
-                    dirX, dirY, dirZ,
-                    // Plane
-                    minX, maxY, minZ,
-                    maxX, maxY, minZ,
-                    maxX, maxY, maxZ
-            );
-
-            if (pos != null) {
-                switch(collectorType) {
-                    default:
-                    case ANY:
-                        return (R) pos;
-                    case ALL:
-                        result.add(pos);
-                }
-            }
+        double t = tFar;
+        int face = farFace;
+
+        if (near && (!far || (Math.abs(tNear) <= Math.abs(tFar)) == nearest)) {
+            t = tNear;
+            face = nearFace;
         }
 
-        { // Bottom
-            Vector3d pos = Intersection3dUtils.planeIntersection(
-                    // Line direction
-                    direction,
-                    // Line
-                    posX, posY, posZ,
-                    dirX, dirY, dirZ,
-                    // Plane
-                    minX, minY, minZ,
-                    maxX, minY, minZ,
-                    maxX, minY, maxZ
-            );
-
-            if (pos != null) {
-                switch(collectorType) {
-                    default:
-                    case ANY:
-                        return (R) pos;
-                    case ALL:
-                        result.add(pos);
-                }
-            }
+        if (hit != null) {
+            hit.set(t, face, this);
         }
+        return t;
+    }
 
-        return (R) result;
+    /**
+     * Counts the allowed intersections within maxT, like the ALL collector does, where entering and leaving through the
+     * same point, such as through an edge or a corner, is a single intersection
+     */
+    private int count(double posX, double posY, double posZ, double invDirX, double invDirY, double invDirZ, double maxT, Intersection<?> intersection) {
+        double near = slab(posX, posY, posZ, invDirX, invDirY, invDirZ, maxT, intersection, true, null);
+
+        if (Double.isNaN(near)) {
+            return 0;
+        }
+
+        // If only one crossing is allowed, both ends select it
+        double far = slab(posX, posY, posZ, invDirX, invDirY, invDirZ, maxT, intersection, false, null);
+        return near == far ? 1 : 2;
+    }
+
+    /**
+     * Returns true if the intersection at the line parameter t is in the direction and the segment of the
+     * intersection, and within maxT
+     */
+    private static boolean isAllowed(Intersection<?> intersection, double t, double maxT) {
+        if (!(Math.abs(t) <= maxT) || !intersection.withinBounds(t)) {
+            return false;
+        }
+
+        switch (intersection.direction()) {
+            case FORWARDS:
+                return t > 0;
+            case BACKWARDS:
+                return t < 0;
+            default:
+            case ANY:
+                return true;
+        }
     }
 
     @Override
@@ -0,0 +1,613 @@
+package dev.emortal.rayfast.broadphase;
+
+import dev.emortal.rayfast.area.Intersection;
+import dev.emortal.rayfast.area.Ray;
+import dev.emortal.rayfast.area.area3d.Area3d;
+import dev.emortal.rayfast.area.area3d.Area3dLike;
+import dev.emortal.rayfast.util.FunctionalInterfaces;
+import dev.emortal.rayfast.util.Intersection3dUtils;
+import dev.emortal.rayfast.vector.Vector3d;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * A persistent, self-balancing tree of axis-aligned boxes for moving areas.
+ * <br><br>
+ * Every area is kept in a fattened box, which is grown by a margin and extended in the direction the area last
+ * moved. Small moves stay inside the fattened box and leave the tree untouched, so only areas that leave their box
+ * are reinserted. Line intersections only run the kernels of the areas whose fattened box the line passes through.
+ * <br><br>
+ * Areas are referred to by the proxy id returned from {@link #insert(Area3dLike)}. This class is not thread safe.
+ *
+ * @param <T> the type of the areas
+ */
+public final class DynamicAabbTree<T extends Area3dLike> {
+
+    private static final int NULL = -1;
+
+    private final double margin;
+    private final double displacementMultiplier;
+
+    // Node storage, indexed by node id
+    private double[] bounds;
+    private int[] parent; // Doubles as the next free node while a node is free
+    private int[] child1;
+    private int[] child2;
+    private int[] height; // -1 while a node is free
+    private Object[] items;
+
+    private int root = NULL;
+    private int freeList = NULL;
+    private int size = 0;
+
+    private final double[] scratch = new double[6];
+
+    /**
+     * Creates a new tree with a margin of 0.1 and a displacement multiplier of 2
+     */
+    public DynamicAabbTree() {
+        this(0.1, 2.0);
+    }
+
+    /**
+     * Creates a new tree.
+     *
+     * @param margin the distance every box is fattened by on every side
+     * @param displacementMultiplier how far ahead, in multiples of its last displacement, a box is extended
+     */
+    public DynamicAabbTree(double margin, double displacementMultiplier) {
+        if (margin < 0) {
+            throw new IllegalArgumentException("Margin must not be negative, got " + margin);
+        }
+        this.margin = margin;
+        this.displacementMultiplier = displacementMultiplier;
+
+        allocateStorage(16);
+    }
+
+    /**
+     * Inserts the specified area into this tree.
+     *
+     * @param item the area to insert
+     * @return the proxy id used to refer to the area
+     */
+    public int insert(@NotNull T item) {
+        int proxy = allocateNode();
+        items[proxy] = item;
+        height[proxy] = 0;
+
+        readBounds(item, scratch);
+        fatten(scratch, 0, 0, 0);
+        System.arraycopy(scratch, 0, bounds, proxy * 6, 6);
+
+        insertLeaf(proxy);
+        size++;
+        return proxy;
+    }
+
+    /**
+     * Removes the area with the specified proxy id from this tree.
+     *
+     * @param proxy the proxy id of the area
+     */
+    public void remove(int proxy) {
+        checkProxy(proxy);
+        removeLeaf(proxy);
+        freeNode(proxy);
+        size--;
+    }
+
+    /**
+     * Re-reads the bounds of the area with the specified proxy id. If the area has left its fattened box, it is
+     * reinserted with a new fattened box extended in the direction of the specified displacement.
+     *
+     * @param proxy the proxy id of the area
+     * @param displacementX the displacement of the area since the last move on X
+     * @param displacementY the displacement of the area since the last move on Y
+     * @param displacementZ the displacement of the area since the last move on Z
+     * @return true if the area was reinserted, false if it was still inside its fattened box
+     */
+    public boolean move(int proxy, double displacementX, double displacementY, double displacementZ) {
+        checkProxy(proxy);
+
+        @SuppressWarnings("unchecked")
+        T item = (T) items[proxy];
+        readBounds(item, scratch);
+
+        int offset = proxy * 6;
+
+        if (contains(bounds, offset, scratch)) {
+            // Still inside, so keep the fattened box unless it has become far too large
+            double slackX = 4 * margin + Math.abs(displacementX * displacementMultiplier);
+            double slackY = 4 * margin + Math.abs(displacementY * displacementMultiplier);
+            double slackZ = 4 * margin + Math.abs(displacementZ * displacementMultiplier);
+
+            if (bounds[offset] >= scratch[0] - slackX &&
+                    bounds[offset + 1] >= scratch[1] - slackY &&
+                    bounds[offset + 2] >= scratch[2] - slackZ &&
+                    bounds[offset + 3] <= scratch[3] + slackX &&
+                    bounds[offset + 4] <= scratch[4] + slackY &&
+                    bounds[offset + 5] <= scratch[5] + slackZ) {
+                return false;
+            }
+        }
+
+        removeLeaf(proxy);
+
+        fatten(scratch, displacementX, displacementY, displacementZ);
+        System.arraycopy(scratch, 0, bounds, offset, 6);
+
+        insertLeaf(proxy);
+        return true;
+    }
+
+    /**
+     * Re-reads the bounds of the area with the specified proxy id, reinserting it if it has left its fattened box.
+     *
+     * @param proxy the proxy id of the area
+     * @return true if the area was reinserted, false if it was still inside its fattened box
+     */
+    public boolean update(int proxy) {
+        return move(proxy, 0, 0, 0);
+    }
+
+    /**
+     * Returns the area with the specified proxy id
+     * @param proxy the proxy id
+     * @return the area
+     */
+    @SuppressWarnings("unchecked")
+    public @NotNull T item(int proxy) {
+        checkProxy(proxy);
+        return (T) items[proxy];
+    }
+
+    /**
+     * Writes the fattened box of the area with the specified proxy id into the specified array, in the order minX,
+     * minY, minZ, maxX, maxY, maxZ.
+     *
+     * @param proxy the proxy id
+     * @param out the array to write the box to, of at least length 6
+     */
+    public void fatBoundingBox(int proxy, double @NotNull [] out) {
+        checkProxy(proxy);
+        System.arraycopy(bounds, proxy * 6, out, 0, 6);
+    }
+
+    /**
+     * Returns the number of areas in this tree
+     * @return the number of areas
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the height of this tree, where a tree of a single area has a height of 0
+     * @return the height of this tree
+     */
+    public int height() {
+        return root == NULL ? 0 : height[root];
+    }
+
+    /**
+     * Intersects the specified line with every area whose fattened box the line passes through, running the
+     * consumer for every intersection found.
+     *
+     * @param posX line X position
+     * @param posY line Y position
+     * @param posZ line Z position
+     * @param dirX line X direction
+     * @param dirY line Y direction
+     * @param dirZ line Z direction
+     * @param intersection the intersection to use for every area
+     * @param consumer the consumer to run for every intersection, returns true to stop intersecting
+     */
+    public void lineIntersections(
+            double posX, double posY, double posZ,
+            double dirX, double dirY, double dirZ,
+            @NotNull Intersection<Vector3d> intersection,
+            @NotNull FunctionalInterfaces.Vector3dArea3dToBoolean consumer
+    ) {
+        lineIntersections(Ray.of(posX, posY, posZ, dirX, dirY, dirZ), intersection, consumer);
+    }
+
+    /**
+     * Intersects the specified ray with every area whose fattened box the ray passes through within its max length,
+     * running the consumer for every intersection found.
+     *
+     * @param ray the ray
+     * @param intersection the intersection to use for every area
+     * @param consumer the consumer to run for every intersection, returns true to stop intersecting
+     */
+    public void lineIntersections(
+            @NotNull Ray ray,
+            @NotNull Intersection<Vector3d> intersection,
+            @NotNull FunctionalInterfaces.Vector3dArea3dToBoolean consumer
+    ) {
+        if (root == NULL) {
+            return;
+        }
+
+        // Find the interval of the line that the direction, the max length and the segment allow
+        double tMin = Math.max(-ray.maxT(), intersection.minT());
+        double tMax = Math.min(ray.maxT(), intersection.maxT());
+
+        switch (intersection.direction()) {
+            case FORWARDS:
+                tMin = Math.max(tMin, 0);
+                break;
+            case BACKWARDS:
+                tMax = Math.min(tMax, 0);
+                break;
+        }
+
+        double posX = ray.posX();
+        double posY = ray.posY();
+        double posZ = ray.posZ();
+        double invDirX = ray.invDirX();
+        double invDirY = ray.invDirY();
+        double invDirZ = ray.invDirZ();
+
+        int[] stack = new int[64];
+        int stackSize = 0;
+        stack[stackSize++] = root;
+
+        while (stackSize > 0) {
+            int node = stack[--stackSize];
+            int offset = node * 6;
+
+            double entry = Intersection3dUtils.boxEntry(
+                    posX, posY, posZ,
+                    invDirX, invDirY, invDirZ,
+                    bounds[offset], bounds[offset + 1], bounds[offset + 2],
+                    bounds[offset + 3], bounds[offset + 4], bounds[offset + 5],
+                    tMin, tMax
+            );
+
+            if (Double.isNaN(entry)) {
+                continue;
+            }
+
+            if (isLeaf(node)) {
+                Area3d area3d = ((Area3dLike) items[node]).asArea3d();
+                Vector3d result = area3d.lineIntersection(ray, intersection);
+
+                if (result != null && consumer.apply(result, area3d)) {
+                    return;
+                }
+                continue;
+            }
+
+            if (stackSize + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+
+            stack[stackSize++] = child1[node];
+            stack[stackSize++] = child2[node];
+        }
+    }
+
+    ///////////////////
+    // Tree updating //
+    ///////////////////
+
+    private void insertLeaf(int leaf) {
+        if (root == NULL) {
+            root = leaf;
+            parent[leaf] = NULL;
+            return;
+        }
+
+        // Find the best sibling for the leaf, walking down the cheapest path
+        int leafOffset = leaf * 6;
+        int index = root;
+
+        while (!isLeaf(index)) {
+            int first = child1[index];
+            int second = child2[index];
+
+            double area = surfaceArea(bounds, index * 6);
+            double combinedArea = combinedSurfaceArea(index * 6, leafOffset);
+
+            // Cost of creating a new parent for this node and the new leaf
+            double cost = 2 * combinedArea;
+
+            // Minimum cost of pushing the leaf further down the tree
+            double inheritanceCost = 2 * (combinedArea - area);
+
+            double cost1 = descendCost(first, leafOffset) + inheritanceCost;
+            double cost2 = descendCost(second, leafOffset) + inheritanceCost;
+
+            if (cost < cost1 && cost < cost2) {
+                break;
+            }
+
+            index = cost1 < cost2 ? first : second;
+        }
+
+        int sibling = index;
+
+        // Create a new parent
+        int oldParent = parent[sibling];
+        int newParent = allocateNode();
+        parent[newParent] = oldParent;
+        height[newParent] = height[sibling] + 1;
+        union(newParent, sibling, leaf);
+
+        if (oldParent != NULL) {
+            if (child1[oldParent] == sibling) {
+                child1[oldParent] = newParent;
+            } else {
+                child2[oldParent] = newParent;
+            }
+        } else {
+            root = newParent;
+        }
+
+        child1[newParent] = sibling;
+        child2[newParent] = leaf;
+        parent[sibling] = newParent;
+        parent[leaf] = newParent;
+
+        refitAncestors(parent[leaf]);
+    }
+
+    private void removeLeaf(int leaf) {
+        if (leaf == root) {
+            root = NULL;
+            return;
+        }
+
+        int oldParent = parent[leaf];
+        int grandParent = parent[oldParent];
+        int sibling = child1[oldParent] == leaf ? child2[oldParent] : child1[oldParent];
+
+        if (grandParent != NULL) {
+            // Replace the parent with the sibling
+            if (child1[grandParent] == oldParent) {
+                child1[grandParent] = sibling;
+            } else {
+                child2[grandParent] = sibling;
+            }
+            parent[sibling] = grandParent;
+            freeNode(oldParent);
+
+            refitAncestors(grandParent);
+        } else {
+            root = sibling;
+            parent[sibling] = NULL;
+            freeNode(oldParent);
+        }
+    }
+
+    private void refitAncestors(int index) {
+        while (index != NULL) {
+            index = balance(index);
+
+            int first = child1[index];
+            int second = child2[index];
+
+            height[index] = 1 + Math.max(height[first], height[second]);
+            union(index, first, second);
+
+            index = parent[index];
+        }
+    }
+
+    /**
+     * Performs a left or right rotation if the specified node is imbalanced.
+     * @return the new root of the subtree
+     */
+    private int balance(int a) {
+        if (isLeaf(a) || height[a] < 2) {
+            return a;
+        }
+
+        int b = child1[a];
+        int c = child2[a];
+        int balance = height[c] - height[b];
+
+        if (balance > 1) {
+            // Rotate c up
+            int f = child1[c];
+            int g = child2[c];
+
+            child1[c] = a;
+            parent[c] = parent[a];
+            parent[a] = c;
+            replaceChild(parent[c], a, c);
+
+            if (height[f] > height[g]) {
+                child2[c] = f;
+                child2[a] = g;
+                parent[g] = a;
+                union(a, b, g);
+                union(c, a, f);
+
+                height[a] = 1 + Math.max(height[b], height[g]);
+                height[c] = 1 + Math.max(height[a], height[f]);
+            } else {
+                child2[c] = g;
+                child2[a] = f;
+                parent[f] = a;
+                union(a, b, f);
+                union(c, a, g);
+
+                height[a] = 1 + Math.max(height[b], height[f]);
+                height[c] = 1 + Math.max(height[a], height[g]);
+            }
+
+            return c;
+        }
+
+        if (balance < -1) {
+            // Rotate b up
+            int d = child1[b];
+            int e = child2[b];
+
+            child1[b] = a;
+            parent[b] = parent[a];
+            parent[a] = b;
+            replaceChild(parent[b], a, b);
+
+            if (height[d] > height[e]) {
+                child2[b] = d;
+                child1[a] = e;
+                parent[e] = a;
+                union(a, c, e);
+                union(b, a, d);
+
+                height[a] = 1 + Math.max(height[c], height[e]);
+                height[b] = 1 + Math.max(height[a], height[d]);
+            } else {
+                child2[b] = e;
+                child1[a] = d;
+                parent[d] = a;
+                union(a, c, d);
+                union(b, a, e);
+
+                height[a] = 1 + Math.max(height[c], height[d]);
+                height[b] = 1 + Math.max(height[a], height[e]);
+            }
+
+            return b;
+        }
+
+        return a;
+    }
+
+    private void replaceChild(int node, int oldChild, int newChild) {
+        if (node == NULL) {
+            root = newChild;
+        } else if (child1[node] == oldChild) {
+            child1[node] = newChild;
+        } else {
+            child2[node] = newChild;
+        }
+    }
+
+    /////////////
+    // Storage //
+    /////////////
+
+    private void allocateStorage(int capacity) {
+        int oldCapacity = parent == null ? 0 : parent.length;
+
+        bounds = bounds == null ? new double[capacity * 6] : Arrays.copyOf(bounds, capacity * 6);
+        parent = parent == null ? new int[capacity] : Arrays.copyOf(parent, capacity);
+        child1 = child1 == null ? new int[capacity] : Arrays.copyOf(child1, capacity);
+        child2 = child2 == null ? new int[capacity] : Arrays.copyOf(child2, capacity);
+        height = height == null ? new int[capacity] : Arrays.copyOf(height, capacity);
+        items = items == null ? new Object[capacity] : Arrays.copyOf(items, capacity);
+
+        // Link the new nodes into the free list
+        for (int i = capacity - 1; i >= oldCapacity; i--) {
+            parent[i] = freeList;
+            height[i] = -1;
+            freeList = i;
+        }
+    }
+
+    private int allocateNode() {
+        if (freeList == NULL) {
+            allocateStorage(parent.length * 2);
+        }
+
+        int node = freeList;
+        freeList = parent[node];
+
+        parent[node] = NULL;
+        child1[node] = NULL;
+        child2[node] = NULL;
+        height[node] = 0;
+        items[node] = null;
+        return node;
+    }
+
+    private void freeNode(int node) {
+        parent[node] = freeList;
+        height[node] = -1;
+        items[node] = null;
+        freeList = node;
+    }
+
+    private void checkProxy(int proxy) {
+        if (proxy < 0 || proxy >= parent.length || height[proxy] != 0 || items[proxy] == null) {
+            throw new IllegalArgumentException("Invalid proxy id " + proxy);
+        }
+    }
+
+    ///////////
+    // Boxes //
+    ///////////
+
+    private boolean isLeaf(int node) {
+        return child1[node] == NULL;
+    }
+
+    private static void readBounds(@NotNull Area3dLike item, double @NotNull [] out) {
+        if (!item.asArea3d().boundingBox(out)) {
+            throw new IllegalArgumentException(item + " does not have bounds, and can not be inserted into a DynamicAabbTree");
+        }
+    }
+
+    private void fatten(double[] box, double displacementX, double displacementY, double displacementZ) {
+        box[0] -= margin;
+        box[1] -= margin;
+        box[2] -= margin;
+        box[3] += margin;
+        box[4] += margin;
+        box[5] += margin;
+
+        // Predict the motion of the area
+        double predictedX = displacementX * displacementMultiplier;
+        double predictedY = displacementY * displacementMultiplier;
+        double predictedZ = displacementZ * displacementMultiplier;
+
+        if (predictedX < 0) box[0] += predictedX; else box[3] += predictedX;
+        if (predictedY < 0) box[1] += predictedY; else box[4] += predictedY;
+        if (predictedZ < 0) box[2] += predictedZ; else box[5] += predictedZ;
+    }
+
+    private static boolean contains(double[] bounds, int offset, double[] box) {
+        return bounds[offset] <= box[0] && bounds[offset + 1] <= box[1] && bounds[offset + 2] <= box[2] &&
+                bounds[offset + 3] >= box[3] && bounds[offset + 4] >= box[4] && bounds[offset + 5] >= box[5];
+    }
+
+    private void union(int target, int a, int b) {
+        int t = target * 6;
+        int oa = a * 6;
+        int ob = b * 6;
+
+        for (int i = 0; i < 3; i++) {
+            bounds[t + i] = Math.min(bounds[oa + i], bounds[ob + i]);
+            bounds[t + i + 3] = Math.max(bounds[oa + i + 3], bounds[ob + i + 3]);
+        }
+    }
+
+    private double descendCost(int child, int leafOffset) {
+        double combinedArea = combinedSurfaceArea(child * 6, leafOffset);
+
+        if (isLeaf(child)) {
+            return combinedArea;
+        }
+
+        return combinedArea - surfaceArea(bounds, child * 6);
+    }
+
+    private double combinedSurfaceArea(int offsetA, int offsetB) {
+        double x = Math.max(bounds[offsetA + 3], bounds[offsetB + 3]) - Math.min(bounds[offsetA], bounds[offsetB]);
+        double y = Math.max(bounds[offsetA + 4], bounds[offsetB + 4]) - Math.min(bounds[offsetA + 1], bounds[offsetB + 1]);
+        double z = Math.max(bounds[offsetA + 5], bounds[offsetB + 5]) - Math.min(bounds[offsetA + 2], bounds[offsetB + 2]);
+        return 2 * (x * y + y * z + z * x);
+    }
+
+    private static double surfaceArea(double[] bounds, int offset) {
+        double x = bounds[offset + 3] - bounds[offset];
+        double y = bounds[offset + 4] - bounds[offset + 1];
+        double z = bounds[offset + 5] - bounds[offset + 2];
+        return 2 * (x * y + y * z + z * x);
+    }
+}
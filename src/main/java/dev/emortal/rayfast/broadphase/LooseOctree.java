@@ -0,0 +1,389 @@
+package dev.emortal.rayfast.broadphase;
+
+import dev.emortal.rayfast.area.area3d.Area3dLike;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A loose octree of areas, used to answer point containment queries over many areas.
+ * <br><br>
+ * Every area is stored in the single node whose cell contains its center and whose size fits the area, and every
+ * node covers twice the size of its cell. A point query only visits the nodes whose loose bounds contain the point,
+ * and only runs {@link dev.emortal.rayfast.area.area3d.Area3d#containsPoint(double, double, double)} on the areas
+ * whose bounds contain the point.
+ * <br><br>
+ * Areas are referred to by the id returned from {@link #insert(Area3dLike)}. Areas outside the bounds of the octree
+ * are kept in the root node. Nodes left without areas or children by a removal or an update are released and reused,
+ * so moving areas do not grow the octree. Queries reuse internal buffers, so this class is not thread safe.
+ *
+ * @param <T> the type of the areas
+ */
+public final class LooseOctree<T extends Area3dLike> {
+
+    private static final int NULL = -1;
+
+    private final int maxDepth;
+
+    // Node storage, indexed by node id. Node 0 is the root.
+    private double[] centers = new double[16 * 3];
+    private double[] halfSizes = new double[16];
+    private int[] depths = new int[16];
+    private int[] children = new int[16 * 8];
+    private int[] parents = new int[16];
+    private int[] firstItems = new int[16]; // Head of the linked list of the areas of each node
+    private int[] freeNodes = new int[16];
+    private int freeNodeCount = 0;
+    private int nodeCount = 0;
+
+    // Item storage, indexed by id
+    private Object[] items = new Object[16];
+    private double[] itemBounds = new double[16 * 6];
+    private int[] itemNodes = new int[16];
+    private int[] nextItems = new int[16];
+    private int[] previousItems = new int[16];
+    private int[] freeIds = new int[16];
+    private int freeCount = 0;
+    private int nextId = 0;
+    private int size = 0;
+
+    private int[] stack = new int[64];
+    private final double[] scratch = new double[6];
+
+    /**
+     * Creates a new loose octree covering the specified cube.
+     *
+     * @param centerX the center X of the octree
+     * @param centerY the center Y of the octree
+     * @param centerZ the center Z of the octree
+     * @param halfSize half the size of the octree
+     * @param maxDepth the maximum depth of the octree, where the root has a depth of 0
+     */
+    public LooseOctree(double centerX, double centerY, double centerZ, double halfSize, int maxDepth) {
+        if (!(halfSize > 0)) {
+            throw new IllegalArgumentException("Half size must be positive, got " + halfSize);
+        }
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("Max depth must not be negative, got " + maxDepth);
+        }
+        this.maxDepth = maxDepth;
+
+        allocateNode(centerX, centerY, centerZ, halfSize, 0, NULL);
+    }
+
+    /**
+     * Inserts the specified area into this octree
+     * @param item the area to insert
+     * @return the id used to refer to the area
+     */
+    public int insert(@NotNull T item) {
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            id = nextId++;
+            if (id == items.length) {
+                items = Arrays.copyOf(items, id * 2);
+                itemBounds = Arrays.copyOf(itemBounds, id * 2 * 6);
+                itemNodes = Arrays.copyOf(itemNodes, id * 2);
+                nextItems = Arrays.copyOf(nextItems, id * 2);
+                previousItems = Arrays.copyOf(previousItems, id * 2);
+            }
+        }
+
+        items[id] = item;
+        readBounds(item, id);
+        addToNode(findNode(id), id);
+        size++;
+        return id;
+    }
+
+    /**
+     * Removes the area with the specified id from this octree
+     * @param id the id of the area
+     */
+    public void remove(int id) {
+        checkId(id);
+        int node = itemNodes[id];
+        removeFromNode(node, id);
+        releaseEmptyNodes(node);
+        items[id] = null;
+
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+        size--;
+    }
+
+    /**
+     * Re-reads the bounds of the area with the specified id, moving it to the node it now belongs in.
+     * @param id the id of the area
+     * @return true if the area moved to another node, false otherwise
+     */
+    public boolean update(int id) {
+        checkId(id);
+        readBounds((Area3dLike) items[id], id);
+
+        int node = findNode(id);
+        int previousNode = itemNodes[id];
+        if (node == previousNode) {
+            return false;
+        }
+
+        // Add the area to its new node before releasing the old one, which may have the new node as an ancestor
+        removeFromNode(previousNode, id);
+        addToNode(node, id);
+        releaseEmptyNodes(previousNode);
+        return true;
+    }
+
+    /**
+     * Returns the area with the specified id
+     * @param id the id
+     * @return the area
+     */
+    @SuppressWarnings("unchecked")
+    public @NotNull T item(int id) {
+        checkId(id);
+        return (T) items[id];
+    }
+
+    /**
+     * Returns the number of areas in this octree
+     * @return the number of areas
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns true if the specified point is inside any area of this octree
+     * @param pointX the point X
+     * @param pointY the point Y
+     * @param pointZ the point Z
+     * @return true if the point is inside any area, false otherwise
+     */
+    public boolean containsPoint(double pointX, double pointY, double pointZ) {
+        return query(pointX, pointY, pointZ, null) > 0;
+    }
+
+    /**
+     * Adds every area of this octree that contains the specified point to the specified collection. Reusing the
+     * collection between queries avoids allocating.
+     *
+     * @param pointX the point X
+     * @param pointY the point Y
+     * @param pointZ the point Z
+     * @param out the collection to add the areas to
+     * @return the number of areas added
+     */
+    public int containingAreas(double pointX, double pointY, double pointZ, @NotNull Collection<? super T> out) {
+        return query(pointX, pointY, pointZ, out);
+    }
+
+    @SuppressWarnings("unchecked")
+    private int query(double pointX, double pointY, double pointZ, Collection<? super T> out) {
+        int found = 0;
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+
+        while (stackSize > 0) {
+            int node = stack[--stackSize];
+
+            // Test the areas of this node
+            for (int id = firstItems[node]; id != NULL; id = nextItems[id]) {
+                int offset = id * 6;
+
+                if (pointX < itemBounds[offset] || pointY < itemBounds[offset + 1] || pointZ < itemBounds[offset + 2] ||
+                        pointX > itemBounds[offset + 3] || pointY > itemBounds[offset + 4] || pointZ > itemBounds[offset + 5]) {
+                    continue;
+                }
+
+                T item = (T) items[id];
+                if (!item.asArea3d().containsPoint(pointX, pointY, pointZ)) {
+                    continue;
+                }
+
+                if (out == null) {
+                    return 1;
+                }
+
+                out.add(item);
+                found++;
+            }
+
+            // Visit the children whose loose bounds contain the point
+            for (int i = 0; i < 8; i++) {
+                int child = children[node * 8 + i];
+                if (child == NULL) {
+                    continue;
+                }
+
+                // The loose half size of a child is the half size of its parent
+                double looseHalfSize = halfSizes[node];
+                if (Math.abs(pointX - centers[child * 3]) > looseHalfSize ||
+                        Math.abs(pointY - centers[child * 3 + 1]) > looseHalfSize ||
+                        Math.abs(pointZ - centers[child * 3 + 2]) > looseHalfSize) {
+                    continue;
+                }
+
+                if (stackSize == stack.length) {
+                    stack = Arrays.copyOf(stack, stackSize * 2);
+                }
+                stack[stackSize++] = child;
+            }
+        }
+
+        return found;
+    }
+
+    ///////////
+    // Nodes //
+    ///////////
+
+    private int findNode(int id) {
+        int offset = id * 6;
+        double centerX = (itemBounds[offset] + itemBounds[offset + 3]) * 0.5;
+        double centerY = (itemBounds[offset + 1] + itemBounds[offset + 4]) * 0.5;
+        double centerZ = (itemBounds[offset + 2] + itemBounds[offset + 5]) * 0.5;
+        double halfExtent = Math.max(
+                itemBounds[offset + 3] - itemBounds[offset],
+                Math.max(itemBounds[offset + 4] - itemBounds[offset + 1], itemBounds[offset + 5] - itemBounds[offset + 2])
+        ) * 0.5;
+
+        // Areas centered outside the octree stay in the root
+        if (Math.abs(centerX - centers[0]) > halfSizes[0] ||
+                Math.abs(centerY - centers[1]) > halfSizes[0] ||
+                Math.abs(centerZ - centers[2]) > halfSizes[0]) {
+            return 0;
+        }
+
+        // Descend while the area still fits in the cell of a child
+        int node = 0;
+        while (depths[node] < maxDepth && halfExtent <= halfSizes[node] * 0.5) {
+            int octant = (centerX >= centers[node * 3] ? 1 : 0) |
+                    (centerY >= centers[node * 3 + 1] ? 2 : 0) |
+                    (centerZ >= centers[node * 3 + 2] ? 4 : 0);
+
+            int child = children[node * 8 + octant];
+            if (child == NULL) {
+                double childHalfSize = halfSizes[node] * 0.5;
+                child = allocateNode(
+                        centers[node * 3] + ((octant & 1) != 0 ? childHalfSize : -childHalfSize),
+                        centers[node * 3 + 1] + ((octant & 2) != 0 ? childHalfSize : -childHalfSize),
+                        centers[node * 3 + 2] + ((octant & 4) != 0 ? childHalfSize : -childHalfSize),
+                        childHalfSize,
+                        depths[node] + 1,
+                        node
+                );
+                children[node * 8 + octant] = child;
+            }
+
+            node = child;
+        }
+
+        return node;
+    }
+
+    private int allocateNode(double centerX, double centerY, double centerZ, double halfSize, int depth, int parent) {
+        int node;
+        if (freeNodeCount > 0) {
+            node = freeNodes[--freeNodeCount];
+        } else {
+            node = nodeCount++;
+            if (node == halfSizes.length) {
+                centers = Arrays.copyOf(centers, node * 2 * 3);
+                halfSizes = Arrays.copyOf(halfSizes, node * 2);
+                depths = Arrays.copyOf(depths, node * 2);
+                children = Arrays.copyOf(children, node * 2 * 8);
+                parents = Arrays.copyOf(parents, node * 2);
+                firstItems = Arrays.copyOf(firstItems, node * 2);
+            }
+        }
+
+        centers[node * 3] = centerX;
+        centers[node * 3 + 1] = centerY;
+        centers[node * 3 + 2] = centerZ;
+        halfSizes[node] = halfSize;
+        depths[node] = depth;
+        Arrays.fill(children, node * 8, node * 8 + 8, NULL);
+        parents[node] = parent;
+        firstItems[node] = NULL;
+        return node;
+    }
+
+    /**
+     * Releases the specified node if it has no areas and no children, then its ancestors that are left the same way.
+     * The root is never released.
+     */
+    private void releaseEmptyNodes(int node) {
+        while (node != 0 && firstItems[node] == NULL && !hasChildren(node)) {
+            int parent = parents[node];
+
+            for (int i = 0; i < 8; i++) {
+                if (children[parent * 8 + i] == node) {
+                    children[parent * 8 + i] = NULL;
+                    break;
+                }
+            }
+
+            if (freeNodeCount == freeNodes.length) {
+                freeNodes = Arrays.copyOf(freeNodes, freeNodeCount * 2);
+            }
+            freeNodes[freeNodeCount++] = node;
+            node = parent;
+        }
+    }
+
+    private boolean hasChildren(int node) {
+        for (int i = 0; i < 8; i++) {
+            if (children[node * 8 + i] != NULL) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addToNode(int node, int id) {
+        int first = firstItems[node];
+
+        previousItems[id] = NULL;
+        nextItems[id] = first;
+        if (first != NULL) {
+            previousItems[first] = id;
+        }
+
+        firstItems[node] = id;
+        itemNodes[id] = node;
+    }
+
+    private void removeFromNode(int node, int id) {
+        int previous = previousItems[id];
+        int next = nextItems[id];
+
+        if (previous == NULL) {
+            firstItems[node] = next;
+        } else {
+            nextItems[previous] = next;
+        }
+
+        if (next != NULL) {
+            previousItems[next] = previous;
+        }
+    }
+
+    private void readBounds(@NotNull Area3dLike item, int id) {
+        if (!item.asArea3d().boundingBox(scratch)) {
+            throw new IllegalArgumentException(item + " does not have bounds, and can not be inserted into a LooseOctree");
+        }
+        System.arraycopy(scratch, 0, itemBounds, id * 6, 6);
+    }
+
+    private void checkId(int id) {
+        if (id < 0 || id >= nextId || items[id] == null) {
+            throw new IllegalArgumentException("Invalid id " + id);
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package dev.emortal.rayfast.broadphase;
+
+import dev.emortal.rayfast.area.Intersection;
+import dev.emortal.rayfast.area.Ray;
+import dev.emortal.rayfast.area.area3d.Area3d;
+import dev.emortal.rayfast.area.area3d.Area3dLike;
+import dev.emortal.rayfast.casting.grid.GridCast;
+import dev.emortal.rayfast.util.FunctionalInterfaces;
+import dev.emortal.rayfast.util.Intersection3dUtils;
+import dev.emortal.rayfast.util.LongHashMap;
+import dev.emortal.rayfast.vector.Vector3d;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * A spatial hash of areas on a uniform grid.
+ * <br><br>
+ * Every area is registered in each grid cell its bounds overlap. A line intersection walks the cells of the line in
+ * order and only runs the kernels of the areas registered in the cells it visits, so its cost scales with the length
+ * of the line rather than with the number of areas.
+ * <br><br>
+ * Cell coordinates are packed with {@link GridCast#packCell(int, int, int)}, which supports roughly a million cells in
+ * every direction of the origin. Areas are referred to by the id returned from {@link #insert(Area3dLike)}. This class
+ * is not thread safe.
+ *
+ * @param <T> the type of the areas
+ */
+public final class SpatialHash<T extends Area3dLike> {
+
+    private final double cellSize;
+    private final LongHashMap<int[]> cells = new LongHashMap<>();
+
+    // Item storage, indexed by id
+    private Object[] items = new Object[16];
+    private int[] cellRanges = new int[16 * 6]; // minX, minY, minZ, maxX, maxY, maxZ cell of every item
+    private int[] stamps = new int[16];
+    private int[] freeIds = new int[16];
+    private int freeCount = 0;
+    private int nextId = 0;
+    private int size = 0;
+    private int stamp = 0;
+
+    // Cell range that has ever been occupied, used to bound line walks
+    private int minCellX = Integer.MAX_VALUE, minCellY = Integer.MAX_VALUE, minCellZ = Integer.MAX_VALUE;
+    private int maxCellX = Integer.MIN_VALUE, maxCellY = Integer.MIN_VALUE, maxCellZ = Integer.MIN_VALUE;
+
+    private final double[] scratch = new double[6];
+    private final int[] rangeScratch = new int[6];
+
+    /**
+     * Creates a new spatial hash
+     * @param cellSize the size of the grid cells
+     */
+    public SpatialHash(double cellSize) {
+        if (!(cellSize > 0)) {
+            throw new IllegalArgumentException("Cell size must be positive, got " + cellSize);
+        }
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * Returns the size of the grid cells of this hash
+     * @return the cell size
+     */
+    public double cellSize() {
+        return cellSize;
+    }
+
+    /**
+     * Inserts the specified area into this hash
+     * @param item the area to insert
+     * @return the id used to refer to the area
+     */
+    public int insert(@NotNull T item) {
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            id = nextId++;
+            if (id == items.length) {
+                items = Arrays.copyOf(items, id * 2);
+                cellRanges = Arrays.copyOf(cellRanges, id * 2 * 6);
+                stamps = Arrays.copyOf(stamps, id * 2);
+            }
+        }
+
+        items[id] = item;
+        stamps[id] = stamp;
+        computeCellRange(item, cellRanges, id * 6);
+        register(id);
+        size++;
+        return id;
+    }
+
+    /**
+     * Removes the area with the specified id from this hash
+     * @param id the id of the area
+     */
+    public void remove(int id) {
+        checkId(id);
+        unregister(id);
+        items[id] = null;
+
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+        size--;
+    }
+
+    /**
+     * Re-reads the bounds of the area with the specified id, moving it to the cells it now overlaps. An area that still
+     * overlaps the same cells is left in place.
+     * @param id the id of the area
+     * @return true if the cells of the area changed, false otherwise
+     */
+    public boolean update(int id) {
+        checkId(id);
+        computeCellRange(item(id), rangeScratch, 0);
+
+        int offset = id * 6;
+        if (Arrays.equals(cellRanges, offset, offset + 6, rangeScratch, 0, 6)) {
+            return false;
+        }
+
+        unregister(id);
+        System.arraycopy(rangeScratch, 0, cellRanges, offset, 6);
+        register(id);
+        return true;
+    }
+
+    /**
+     * Returns the area with the specified id
+     * @param id the id
+     * @return the area
+     */
+    @SuppressWarnings("unchecked")
+    public @NotNull T item(int id) {
+        checkId(id);
+        return (T) items[id];
+    }
+
+    /**
+     * Returns the number of areas in this hash
+     * @return the number of areas
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Walks the cells of the specified line in order, intersecting the line with every area registered in a visited
+     * cell and running the consumer for every intersection found. Every area is intersected at most once.
+     * <br><br>
+     * When the consumer returns true, the walk is limited to the distance of that intersection, and stops at the
+     * first cell that starts beyond it.
+     *
+     * @param posX line X position
+     * @param posY line Y position
+     * @param posZ line Z position
+     * @param dirX line X direction
+     * @param dirY line Y direction
+     * @param dirZ line Z direction
+     * @param length the maximum length of the walk from the position in either direction, in multiples of the direction
+     * @param intersection the intersection to use for every area
+     * @param consumer the consumer to run for every intersection, returns true to limit the walk to this intersection
+     */
+    public void lineIntersections(
+            double posX, double posY, double posZ,
+            double dirX, double dirY, double dirZ,
+            double length,
+            @NotNull Intersection<Vector3d> intersection,
+            @NotNull FunctionalInterfaces.Vector3dArea3dToBoolean consumer
+    ) {
+        walk(posX, posY, posZ, dirX, dirY, dirZ, -length, length, null, intersection, consumer);
+    }
+
+    /**
+     * Walks the cells of the specified ray in order, up to its max length, intersecting the ray with every area
+     * registered in a visited cell and running the consumer for every intersection found. Every area is intersected at
+     * most once, and intersections beyond the max length of the ray are ignored.
+     * <br><br>
+     * When the consumer returns true, the walk is limited to the distance of that intersection, and stops at the
+     * first cell that starts beyond it.
+     *
+     * @param ray the ray
+     * @param intersection the intersection to use for every area
+     * @param consumer the consumer to run for every intersection, returns true to limit the walk to this intersection
+     */
+    public void lineIntersections(
+            @NotNull Ray ray,
+            @NotNull Intersection<Vector3d> intersection,
+            @NotNull FunctionalInterfaces.Vector3dArea3dToBoolean consumer
+    ) {
+        walk(ray.posX(), ray.posY(), ray.posZ(), ray.dirX(), ray.dirY(), ray.dirZ(), -ray.maxT(), ray.maxT(), ray, intersection, consumer);
+    }
+
+    private void walk(
+            double posX, double posY, double posZ,
+            double dirX, double dirY, double dirZ,
+            double tStart, double tEnd,
+            @Nullable Ray ray,
+            @NotNull Intersection<Vector3d> intersection,
+            @NotNull FunctionalInterfaces.Vector3dArea3dToBoolean consumer
+    ) {
+        if (size == 0) {
+            return;
+        }
+
+        // Walk the line forwards from its start, flipping the direction and the segment for backwards intersections
+        double walkDirX = dirX, walkDirY = dirY, walkDirZ = dirZ;
+
+        switch (intersection.direction()) {
+            default:
+            case ANY:
+                tStart = Math.max(tStart, intersection.minT());
+                tEnd = Math.min(tEnd, intersection.maxT());
+                break;
+            case FORWARDS:
+                tStart = Math.max(0, intersection.minT());
+                tEnd = Math.min(tEnd, intersection.maxT());
+                break;
+            case BACKWARDS:
+                walkDirX = -dirX;
+                walkDirY = -dirY;
+                walkDirZ = -dirZ;
+                tStart = Math.max(0, -intersection.maxT());
+                tEnd = Math.min(tEnd, -intersection.minT());
+                break;
+        }
+
+        double invDirX = 1.0 / walkDirX;
+        double invDirY = 1.0 / walkDirY;
+        double invDirZ = 1.0 / walkDirZ;
+
+        // Clip the walk to the occupied cells
+        double clipped = Intersection3dUtils.boxEntry(
+                posX, posY, posZ,
+                invDirX, invDirY, invDirZ,
+                minCellX * cellSize, minCellY * cellSize, minCellZ * cellSize,
+                (maxCellX + 1) * cellSize, (maxCellY + 1) * cellSize, (maxCellZ + 1) * cellSize,
+                tStart, tEnd
+        );
+
+        if (Double.isNaN(clipped)) {
+            return;
+        }
+
+        int queryStamp = nextStamp();
+        double dirLengthSquared = dirX * dirX + dirY * dirY + dirZ * dirZ;
+
+        // Set up the cell walk
+        double t = clipped;
+        int cellX = Math.max(minCellX, Math.min(maxCellX, cell(posX + walkDirX * t)));
+        int cellY = Math.max(minCellY, Math.min(maxCellY, cell(posY + walkDirY * t)));
+        int cellZ = Math.max(minCellZ, Math.min(maxCellZ, cell(posZ + walkDirZ * t)));
+
+        int stepX = walkDirX > 0 ? 1 : walkDirX < 0 ? -1 : 0;
+        int stepY = walkDirY > 0 ? 1 : walkDirY < 0 ? -1 : 0;
+        int stepZ = walkDirZ > 0 ? 1 : walkDirZ < 0 ? -1 : 0;
+
+        // The offset from the cell to the next boundary the walk crosses. The crossings are computed from the cell
+        // rather than accumulated, so that long walks do not drift from the cell boundaries.
+        int boundaryX = stepX > 0 ? 1 : 0;
+        int boundaryY = stepY > 0 ? 1 : 0;
+        int boundaryZ = stepZ > 0 ? 1 : 0;
+
+        double nextX = stepX == 0 ? Double.POSITIVE_INFINITY : ((cellX + boundaryX) * cellSize - posX) * invDirX;
+        double nextY = stepY == 0 ? Double.POSITIVE_INFINITY : ((cellY + boundaryY) * cellSize - posY) * invDirY;
+        double nextZ = stepZ == 0 ? Double.POSITIVE_INFINITY : ((cellZ + boundaryZ) * cellSize - posZ) * invDirZ;
+
+        double limit = tEnd;
+
+        while (t <= limit) {
+            int[] cell = cells.get(GridCast.packCell(cellX, cellY, cellZ));
+
+            if (cell != null) {
+                for (int i = 1; i <= cell[0]; i++) {
+                    int id = cell[i];
+
+                    if (stamps[id] == queryStamp) {
+                        continue;
+                    }
+                    stamps[id] = queryStamp;
+
+                    Area3d area3d = ((Area3dLike) items[id]).asArea3d();
+                    Vector3d result = ray != null ?
+                            area3d.lineIntersection(ray, intersection) :
+                            area3d.lineIntersection(posX, posY, posZ, dirX, dirY, dirZ, intersection);
+
+                    if (result != null && consumer.apply(result, area3d)) {
+                        // Limit the walk to the distance of this intersection
+                        double hitT = ((result.x() - posX) * walkDirX +
+                                (result.y() - posY) * walkDirY +
+                                (result.z() - posZ) * walkDirZ) / dirLengthSquared;
+                        limit = Math.min(limit, hitT);
+                    }
+                }
+            }
+
+            // Step to the next cell
+            if (nextX < nextY && nextX < nextZ) {
+                t = nextX;
+                cellX += stepX;
+                if (cellX < minCellX || cellX > maxCellX) return;
+                nextX = ((cellX + boundaryX) * cellSize - posX) * invDirX;
+            } else if (nextY < nextZ) {
+                t = nextY;
+                cellY += stepY;
+                if (cellY < minCellY || cellY > maxCellY) return;
+                nextY = ((cellY + boundaryY) * cellSize - posY) * invDirY;
+            } else {
+                t = nextZ;
+                cellZ += stepZ;
+                if (cellZ < minCellZ || cellZ > maxCellZ || stepZ == 0) return;
+                nextZ = ((cellZ + boundaryZ) * cellSize - posZ) * invDirZ;
+            }
+        }
+    }
+
+    ///////////
+    // Cells //
+    ///////////
+
+    private void computeCellRange(@NotNull Area3dLike item, int[] out, int offset) {
+        if (!item.asArea3d().boundingBox(scratch)) {
+            throw new IllegalArgumentException(item + " does not have bounds, and can not be inserted into a SpatialHash");
+        }
+
+        for (int i = 0; i < 6; i++) {
+            out[offset + i] = cell(scratch[i]);
+        }
+    }
+
+    private void register(int id) {
+        int offset = id * 6;
+
+        minCellX = Math.min(minCellX, cellRanges[offset]);
+        minCellY = Math.min(minCellY, cellRanges[offset + 1]);
+        minCellZ = Math.min(minCellZ, cellRanges[offset + 2]);
+        maxCellX = Math.max(maxCellX, cellRanges[offset + 3]);
+        maxCellY = Math.max(maxCellY, cellRanges[offset + 4]);
+        maxCellZ = Math.max(maxCellZ, cellRanges[offset + 5]);
+
+        for (int x = cellRanges[offset]; x <= cellRanges[offset + 3]; x++) {
+            for (int y = cellRanges[offset + 1]; y <= cellRanges[offset + 4]; y++) {
+                for (int z = cellRanges[offset + 2]; z <= cellRanges[offset + 5]; z++) {
+                    long key = GridCast.packCell(x, y, z);
+                    int[] cell = cells.get(key);
+
+                    if (cell == null) {
+                        cell = new int[4];
+                        cells.put(key, cell);
+                    } else if (cell[0] + 1 == cell.length) {
+                        cell = Arrays.copyOf(cell, cell.length * 2);
+                        cells.put(key, cell);
+                    }
+
+                    cell[++cell[0]] = id;
+                }
+            }
+        }
+    }
+
+    private void unregister(int id) {
+        int offset = id * 6;
+
+        for (int x = cellRanges[offset]; x <= cellRanges[offset + 3]; x++) {
+            for (int y = cellRanges[offset + 1]; y <= cellRanges[offset + 4]; y++) {
+                for (int z = cellRanges[offset + 2]; z <= cellRanges[offset + 5]; z++) {
+                    long key = GridCast.packCell(x, y, z);
+                    int[] cell = cells.get(key);
+
+                    if (cell == null) {
+                        continue;
+                    }
+
+                    // Swap remove the id from the cell
+                    for (int i = 1; i <= cell[0]; i++) {
+                        if (cell[i] == id) {
+                            cell[i] = cell[cell[0]--];
+                            break;
+                        }
+                    }
+
+                    if (cell[0] == 0) {
+                        cells.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    private int nextStamp() {
+        if (++stamp == 0) {
+            // The stamps wrapped around, so clear them to avoid false positives
+            Arrays.fill(stamps, 0);
+            stamp = 1;
+        }
+        return stamp;
+    }
+
+    private int cell(double value) {
+        return (int) Math.floor(value / cellSize);
+    }
+
+    private void checkId(int id) {
+        if (id < 0 || id >= nextId || items[id] == null) {
+            throw new IllegalArgumentException("Invalid id " + id);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package dev.emortal.rayfast.broadphase;
+
+import dev.emortal.rayfast.area.area3d.Area3dRectangularPrism;
+import dev.emortal.rayfast.util.LongHashMap;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * A persistent sweep and prune broadphase, which finds the overlapping pairs of a set of rectangular prisms.
+ * <br><br>
+ * The bounds of the prisms are kept sorted on every axis. Every {@link #update(PairListener)} re-reads the bounds
+ * through the prism getters and restores the order with an insertion sort, which is close to linear when the prisms
+ * only move a little between updates. Only the pairs that started or stopped overlapping since the last update are
+ * reported. Prisms that touch are considered to overlap.
+ * <br><br>
+ * Prisms are referred to by the id returned from {@link #add(Area3dRectangularPrism)}. This class is not thread safe.
+ *
+ * @param <T> the type of the prisms
+ */
+public final class SweepAndPrune<T extends Area3dRectangularPrism> {
+
+    private static final byte ACTIVE = 0;
+    private static final byte ADDED = 1;
+    private static final byte REMOVED = 2;
+    private static final byte FREE = 3;
+
+    // Item storage, indexed by id
+    private Object[] items = new Object[16];
+    private double[] bounds = new double[16 * 6];
+    private byte[] states = new byte[16];
+    private int[] freeIds = new int[16];
+    private int freeCount = 0;
+    private int nextId = 0;
+    private int size = 0;
+    private int removedCount = 0;
+
+    // Endpoints of every axis, encoded as (id << 1) | (1 if max, 0 if min)
+    private final int[][] endpoints = {new int[32], new int[32], new int[32]};
+    private int endpointCount = 0;
+
+    private final LongHashMap<Boolean> pairs = new LongHashMap<>();
+
+    /**
+     * Adds the specified prism. Its overlaps are reported by the next update.
+     * @param item the prism to add
+     * @return the id used to refer to the prism
+     */
+    public int add(@NotNull T item) {
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            id = nextId++;
+            if (id == items.length) {
+                items = Arrays.copyOf(items, id * 2);
+                bounds = Arrays.copyOf(bounds, id * 2 * 6);
+                states = Arrays.copyOf(states, id * 2);
+            }
+        }
+
+        items[id] = item;
+        states[id] = ADDED;
+
+        // Start beyond every other prism, so that the next update sorts the prism into place
+        Arrays.fill(bounds, id * 6, id * 6 + 6, Double.POSITIVE_INFINITY);
+
+        if (endpointCount + 2 > endpoints[0].length) {
+            for (int axis = 0; axis < 3; axis++) {
+                endpoints[axis] = Arrays.copyOf(endpoints[axis], endpoints[axis].length * 2);
+            }
+        }
+
+        for (int axis = 0; axis < 3; axis++) {
+            endpoints[axis][endpointCount] = id << 1;
+            endpoints[axis][endpointCount + 1] = (id << 1) | 1;
+        }
+        endpointCount += 2;
+
+        size++;
+        return id;
+    }
+
+    /**
+     * Removes the prism with the specified id. Its remaining overlaps are reported as ended by the next update.
+     * @param id the id of the prism
+     */
+    public void remove(int id) {
+        checkId(id);
+        states[id] = REMOVED;
+        removedCount++;
+        size--;
+    }
+
+    /**
+     * Returns the prism with the specified id
+     * @param id the id
+     * @return the prism
+     */
+    @SuppressWarnings("unchecked")
+    public @NotNull T item(int id) {
+        checkId(id);
+        return (T) items[id];
+    }
+
+    /**
+     * Returns the number of prisms
+     * @return the number of prisms
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of overlapping pairs as of the last update
+     * @return the number of overlapping pairs
+     */
+    public int pairCount() {
+        return pairs.size();
+    }
+
+    /**
+     * Re-reads the bounds of every prism, and reports the pairs that started or stopped overlapping since the last
+     * update to the specified listener. The listener must not modify this broadphase.
+     *
+     * @param listener the listener to report the pairs to
+     */
+    public void update(@NotNull PairListener<? super T> listener) {
+        // Re-read the bounds of every prism
+        for (int id = 0; id < nextId; id++) {
+            int offset = id * 6;
+
+            // A prism added since the last update takes part in this one
+            if (states[id] == ADDED) {
+                states[id] = ACTIVE;
+            }
+
+            switch (states[id]) {
+                case ACTIVE: {
+                    Area3dRectangularPrism prism = (Area3dRectangularPrism) items[id];
+                    bounds[offset] = prism.getMinX();
+                    bounds[offset + 1] = prism.getMinY();
+                    bounds[offset + 2] = prism.getMinZ();
+                    bounds[offset + 3] = prism.getMaxX();
+                    bounds[offset + 4] = prism.getMaxY();
+                    bounds[offset + 5] = prism.getMaxZ();
+                    break;
+                }
+                case REMOVED:
+                    // Invert the bounds, so that the prism is sorted past every other endpoint and ends all its pairs
+                    Arrays.fill(bounds, offset, offset + 3, Double.POSITIVE_INFINITY);
+                    Arrays.fill(bounds, offset + 3, offset + 6, Double.NEGATIVE_INFINITY);
+                    break;
+            }
+        }
+
+        for (int axis = 0; axis < 3; axis++) {
+            sortAxis(axis, listener);
+        }
+
+        if (removedCount > 0) {
+            compactRemoved();
+        }
+    }
+
+    private void sortAxis(int axis, PairListener<? super T> listener) {
+        int[] axisEndpoints = endpoints[axis];
+
+        for (int i = 1; i < endpointCount; i++) {
+            int endpoint = axisEndpoints[i];
+            double value = value(endpoint, axis);
+            boolean isMax = (endpoint & 1) != 0;
+
+            int j = i - 1;
+            while (j >= 0) {
+                int other = axisEndpoints[j];
+                double otherValue = value(other, axis);
+                boolean otherIsMax = (other & 1) != 0;
+
+                // Sort by value, with min endpoints before max endpoints
+                if (otherValue < value || (otherValue == value && (!otherIsMax || isMax))) {
+                    break;
+                }
+
+                int id = endpoint >>> 1;
+                int otherId = other >>> 1;
+
+                if (!isMax && otherIsMax) {
+                    // A min passes a max on its way down, so the prisms may have started overlapping
+                    if (overlaps(id, otherId) && pairs.put(pairKey(id, otherId), Boolean.TRUE) == null) {
+                        listener.pairStarted(item(id, otherId, true), item(id, otherId, false));
+                    }
+                } else if (isMax && !otherIsMax) {
+                    // A max passes a min on its way down, so the prisms stopped overlapping
+                    if (pairs.remove(pairKey(id, otherId)) != null) {
+                        listener.pairEnded(item(id, otherId, true), item(id, otherId, false));
+                    }
+                }
+
+                axisEndpoints[j + 1] = other;
+                j--;
+            }
+
+            axisEndpoints[j + 1] = endpoint;
+        }
+    }
+
+    private void compactRemoved() {
+        for (int axis = 0; axis < 3; axis++) {
+            int[] axisEndpoints = endpoints[axis];
+            int count = 0;
+
+            for (int i = 0; i < endpointCount; i++) {
+                if (states[axisEndpoints[i] >>> 1] != REMOVED) {
+                    axisEndpoints[count++] = axisEndpoints[i];
+                }
+            }
+        }
+        endpointCount -= removedCount * 2;
+
+        // Free the ids of the removed prisms
+        for (int id = 0; id < nextId; id++) {
+            if (states[id] != REMOVED) {
+                continue;
+            }
+
+            states[id] = FREE;
+            items[id] = null;
+
+            if (freeCount == freeIds.length) {
+                freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+            }
+            freeIds[freeCount++] = id;
+        }
+        removedCount = 0;
+    }
+
+    private double value(int endpoint, int axis) {
+        return bounds[(endpoint >>> 1) * 6 + axis + ((endpoint & 1) * 3)];
+    }
+
+    private boolean overlaps(int a, int b) {
+        if (states[a] != ACTIVE || states[b] != ACTIVE) {
+            return false;
+        }
+
+        int offsetA = a * 6;
+        int offsetB = b * 6;
+
+        return bounds[offsetA] <= bounds[offsetB + 3] && bounds[offsetB] <= bounds[offsetA + 3] &&
+                bounds[offsetA + 1] <= bounds[offsetB + 4] && bounds[offsetB + 1] <= bounds[offsetA + 4] &&
+                bounds[offsetA + 2] <= bounds[offsetB + 5] && bounds[offsetB + 2] <= bounds[offsetA + 5];
+    }
+
+    @SuppressWarnings("unchecked")
+    private T item(int a, int b, boolean first) {
+        return (T) items[first == (a < b) ? a : b];
+    }
+
+    private static long pairKey(int a, int b) {
+        return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+    }
+
+    private void checkId(int id) {
+        if (id < 0 || id >= nextId || (states[id] != ACTIVE && states[id] != ADDED)) {
+            throw new IllegalArgumentException("Invalid id " + id);
+        }
+    }
+
+    /**
+     * Listens to the pairs that start or stop overlapping during an update
+     * @param <T> the type of the prisms
+     */
+    public interface PairListener<T> {
+
+        /**
+         * Called when two prisms start overlapping
+         * @param a the first prism
+         * @param b the second prism
+         */
+        void pairStarted(@NotNull T a, @NotNull T b);
+
+        /**
+         * Called when two prisms stop overlapping, including when one of them was removed
+         * @param a the first prism
+         * @param b the second prism
+         */
+        void pairEnded(@NotNull T a, @NotNull T b);
+    }
+}
@@ -1,9 +1,15 @@
 package dev.emortal.rayfast.casting.combined;
 
 import dev.emortal.rayfast.area.Intersection;
+import dev.emortal.rayfast.area.Ray;
+import dev.emortal.rayfast.area.RayPacket;
 import dev.emortal.rayfast.area.area3d.Area3d;
 import dev.emortal.rayfast.area.area3d.Area3dLike;
+import dev.emortal.rayfast.broadphase.DynamicAabbTree;
+import dev.emortal.rayfast.broadphase.SpatialHash;
 import dev.emortal.rayfast.casting.grid.GridCast;
+import dev.emortal.rayfast.casting.grid.GridVisitor;
+import dev.emortal.rayfast.casting.grid.VoxelOccupancy;
 import dev.emortal.rayfast.util.FunctionalInterfaces;
 import dev.emortal.rayfast.util.VectorMathUtil;
 import dev.emortal.rayfast.vector.Vector;
@@ -21,16 +27,13 @@ import static dev.emortal.rayfast.util.FunctionalInterfaces.Vector3dToBoolean;
 
 public class CombinedCast {
 
-    private static final @NotNull Intersection<Vector3d> INTERSECTION_3_D_FORWARDS_ANY = Intersection.builder()
-            .direction(Intersection.Direction.FORWARDS)
-            .build(Intersection.Collector.ANY);
-
     private final double max;
     private final double min;
     private final double gridSize;
     private final boolean ordered;
     private final @Nullable FunctionalInterfaces.Vector3dArea3dToBoolean areaFunction;
     private final @Nullable Vector3dToBoolean gridFunction;
+    private final @Nullable VoxelOccupancy occupancy;
 
     @ApiStatus.Internal
     private CombinedCast(
@@ -39,7 +42,8 @@ public class CombinedCast {
             double gridSize,
             boolean ordered,
             @Nullable FunctionalInterfaces.Vector3dArea3dToBoolean areaFunction,
-            @Nullable Vector3dToBoolean gridFunction
+            @Nullable Vector3dToBoolean gridFunction,
+            @Nullable VoxelOccupancy occupancy
     ) {
         this.max = max;
         this.min = min;
@@ -47,6 +51,7 @@ public class CombinedCast {
         this.ordered = ordered;
         this.areaFunction = areaFunction;
         this.gridFunction = gridFunction;
+        this.occupancy = occupancy;
     }
 
     /**
@@ -82,6 +87,175 @@ public class CombinedCast {
         return hitResults;
     }
 
+    /**
+     * Applies this CombinedCast to the specified areas for every direction of a bundle of lines from the same pos, such
+     * as the pellets of a shotgun blast or the rays of an explosion.
+     * <br><br>
+     * The results of every line are the same as applying this CombinedCast to the line on its own, but the areas are
+     * walked once for the whole bundle, and an area is skipped for every line at once if the bundle misses its bounds.
+     * @param area3ds the area3ds to intersect
+     * @param pos the pos of every line
+     * @param dirs the dir of every line
+     * @return the list of all the hit results of every line, in the order of the dirs
+     */
+    public @NotNull List<List<HitResult>> apply(
+            @NotNull Collection<Area3dLike> area3ds,
+            @NotNull Vector3d pos,
+            @NotNull List<Vector3d> dirs
+    ) {
+        if (dirs.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        // Cache the squared distance to remove the sqrt operation when checking distance
+        double maxRange = max * max;
+
+        List<Ray> rays = new ArrayList<>(dirs.size());
+        List<Intersection<Vector3d>> intersections = new ArrayList<>(dirs.size());
+        List<Map<Area3d, Vector3d>> area3dVector3dMaps = new ArrayList<>(dirs.size());
+        double[] intermediateMaxRanges = new double[dirs.size()];
+
+        for (Vector3d dir : dirs) {
+            rays.add(Ray.of(pos, dir));
+            intersections.add(areaIntersection(dir));
+            area3dVector3dMaps.add(new HashMap<>());
+        }
+        Arrays.fill(intermediateMaxRanges, maxRange);
+
+        RayPacket packet = RayPacket.of(rays);
+        double[] box = new double[6];
+
+        // Do Area3ds first, testing the bounds of every area once for the whole bundle
+        for (Area3dLike area3dLike : area3ds) {
+            Area3d area3d = area3dLike.asArea3d();
+
+            if (packet.coherent() && area3d.boundingBox(box) &&
+                    !packet.mayIntersect(box[0], box[1], box[2], box[3], box[4], box[5], Intersection.Direction.FORWARDS)) {
+                continue;
+            }
+
+            for (int i = 0; i < packet.size(); i++) {
+                Vector3d intersection = area3d.lineIntersection(packet.ray(i), intersections.get(i));
+
+                if (intersection == null) {
+                    continue;
+                }
+
+                intermediateMaxRanges[i] = handleArea3d(area3d, intersection, pos, area3dVector3dMaps.get(i), intermediateMaxRanges[i]);
+            }
+        }
+
+        List<List<HitResult>> allHitResults = new ArrayList<>(dirs.size());
+
+        for (int i = 0; i < dirs.size(); i++) {
+            List<HitResult> hitResults = new ArrayList<>();
+            collectArea3ds(pos, area3dVector3dMaps.get(i), hitResults, maxRange);
+
+            // Now do grid cast
+            handleGridCast(pos, dirs.get(i), hitResults, intermediateMaxRanges[i]);
+
+            // Sort hit results if ordered
+            if (ordered) {
+                hitResults.sort((result1, result2) -> (int) Math.signum(result1.distanceSquared() - result2.distanceSquared()));
+            }
+
+            allHitResults.add(hitResults);
+        }
+
+        return allHitResults;
+    }
+
+    /**
+     * Applies this CombinedCast to the areas in the specified tree, using the pos and dir to specify the line.
+     * <br><br>
+     * Only the areas whose fattened box the line passes through are intersected.
+     * @param tree the tree of areas to intersect
+     * @param pos the line pos
+     * @param dir the line dir
+     * @return the list of all the hit results
+     */
+    public @NotNull List<HitResult> apply(
+            @NotNull DynamicAabbTree<?> tree,
+            @NotNull Vector3d pos,
+            @NotNull Vector3d dir
+    ) {
+        // Cache the squared distance to remove the sqrt operation when checking distance
+        double maxRange = max * max;
+
+        List<HitResult> hitResults = new ArrayList<>();
+
+        // Do Area3ds first
+        Map<Area3d, Vector3d> area3dVector3dMap = new HashMap<>();
+        double[] intermediateMaxRange = {maxRange};
+
+        tree.lineIntersections(Ray.of(pos, dir), areaIntersection(dir), (intersection, area3d) -> {
+            intermediateMaxRange[0] = handleArea3d(area3d, intersection, pos, area3dVector3dMap, intermediateMaxRange[0]);
+            return false;
+        });
+
+        collectArea3ds(pos, area3dVector3dMap, hitResults, maxRange);
+
+        // Now do grid cast
+        handleGridCast(pos, dir, hitResults, intermediateMaxRange[0]);
+
+        // Sort hit results if ordered
+        if (ordered) {
+            hitResults.sort((result1, result2) -> (int) Math.signum(result1.distanceSquared() - result2.distanceSquared()));
+        }
+
+        return hitResults;
+    }
+
+    /**
+     * Applies this CombinedCast to the areas in the specified spatial hash, using the pos and dir to specify the line.
+     * <br><br>
+     * Only the areas registered in the cells the line visits are intersected. Unlike the other overloads, the cells
+     * are walked in order and the walk stops as soon as a grid unit or an area that limits the cast is closer than
+     * the next cell, so areas beyond the limit of the cast are not included in the results.
+     * @param hash the spatial hash of areas to intersect
+     * @param pos the line pos
+     * @param dir the line dir
+     * @return the list of all the hit results
+     */
+    public @NotNull List<HitResult> apply(
+            @NotNull SpatialHash<?> hash,
+            @NotNull Vector3d pos,
+            @NotNull Vector3d dir
+    ) {
+        // Cache the squared distance to remove the sqrt operation when checking distance
+        double maxRange = max * max;
+
+        List<HitResult> hitResults = new ArrayList<>();
+
+        // Do grid cast first, so that the area walk can stop at the first grid unit that limits the cast
+        double[] intermediateMaxRange = {handleGridCast(pos, dir, hitResults, maxRange)};
+
+        Map<Area3d, Vector3d> area3dVector3dMap = new HashMap<>();
+
+        // Don't walk further than the grid unit that limits the cast
+        double length = Math.min(max, Math.sqrt(intermediateMaxRange[0])) / dir.magnitude();
+
+        hash.lineIntersections(pos.x(), pos.y(), pos.z(), dir.x(), dir.y(), dir.z(), length, areaIntersection(dir), (intersection, area3d) -> {
+            // Ignore areas beyond the current limit of the cast
+            if (VectorMathUtil.distanceSquared(pos, intersection) > intermediateMaxRange[0]) {
+                return true;
+            }
+
+            double previousMaxRange = intermediateMaxRange[0];
+            intermediateMaxRange[0] = handleArea3d(area3d, intersection, pos, area3dVector3dMap, previousMaxRange);
+            return intermediateMaxRange[0] < previousMaxRange;
+        });
+
+        collectArea3ds(pos, area3dVector3dMap, hitResults, intermediateMaxRange[0]);
+
+        // Sort hit results if ordered
+        if (ordered) {
+            hitResults.sort((result1, result2) -> (int) Math.signum(result1.distanceSquared() - result2.distanceSquared()));
+        }
+
+        return hitResults;
+    }
+
     private double handleArea3ds(
             @NotNull Collection<Area3dLike> area3ds,
             @NotNull Vector3d pos,
@@ -93,29 +267,66 @@ public class CombinedCast {
 
         double intermediateMaxRange = maxRange;
 
+        // Precompute the inverse direction once for every area
+        Ray ray = Ray.of(pos, dir);
+        Intersection<Vector3d> intersection3d = areaIntersection(dir);
+
         // Now intersect all the area3ds
         for (Area3dLike area3dLike : area3ds) {
             // Do the deed
             Area3d area3d = area3dLike.asArea3d();
 
-            Vector3d intersection = area3d.lineIntersection(pos, dir, INTERSECTION_3_D_FORWARDS_ANY);
+            Vector3d intersection = area3d.lineIntersection(ray, intersection3d);
 
             if (intersection == null) {
                 continue;
             }
 
-            // cache intersection position
-            area3dVector3dMap.put(area3d, intersection);
+            intermediateMaxRange = handleArea3d(area3d, intersection, pos, area3dVector3dMap, intermediateMaxRange);
+        }
 
-            // Continue if areaFunction specified not to cancel
-            if (areaFunction != null && !areaFunction.apply(intersection, area3d)) {
-                continue;
-            }
+        collectArea3ds(pos, area3dVector3dMap, hitResults, maxRange);
 
-            // Update max range
-            intermediateMaxRange = Math.max(min, Math.min(intermediateMaxRange, VectorMathUtil.distanceSquared(pos, intersection)));
+        return intermediateMaxRange;
+    }
+
+    /**
+     * Returns the intersection of the areas of a cast along the specified dir. The distance of every area is the
+     * distance to the nearest point of its surface in front of the line, and areas beyond the max distance are
+     * rejected before their intersection is computed.
+     */
+    private @NotNull Intersection<Vector3d> areaIntersection(@NotNull Vector3d dir) {
+        return Intersection.builder()
+                .direction(Intersection.Direction.FORWARDS)
+                .maxT(max / dir.magnitude())
+                .build(Intersection.Collector.NEAREST);
+    }
+
+    private double handleArea3d(
+            @NotNull Area3d area3d,
+            @NotNull Vector3d intersection,
+            @NotNull Vector3d pos,
+            @NotNull Map<Area3d, Vector3d> area3dVector3dMap,
+            final double maxRange
+    ) {
+        // cache intersection position
+        area3dVector3dMap.put(area3d, intersection);
+
+        // Continue if areaFunction specified not to cancel
+        if (areaFunction != null && !areaFunction.apply(intersection, area3d)) {
+            return maxRange;
         }
 
+        // Update max range
+        return Math.max(min, Math.min(maxRange, VectorMathUtil.distanceSquared(pos, intersection)));
+    }
+
+    private void collectArea3ds(
+            @NotNull Vector3d pos,
+            @NotNull Map<Area3d, Vector3d> area3dVector3dMap,
+            @NotNull List<HitResult> hitResults,
+            final double maxRange
+    ) {
         // Now collect all hit results
         area3dVector3dMap.forEach((area3d, vector3d) -> {
 
@@ -130,8 +341,6 @@ public class CombinedCast {
 
             hitResults.add(result);
         });
-
-        return intermediateMaxRange;
     }
 
     private double handleGridCast(
@@ -140,6 +349,10 @@ public class CombinedCast {
             @NotNull List<HitResult> hitResults,
             final double maxRange
     ) {
+        if (occupancy != null) {
+            return handleOccupiedGridCast(pos, dir, hitResults, maxRange, occupancy);
+        }
+
         double intermediateMaxRange = maxRange;
 
         // Create gridcast iterator
@@ -173,6 +386,50 @@ public class CombinedCast {
         return intermediateMaxRange;
     }
 
+    private double handleOccupiedGridCast(
+            @NotNull Vector3d pos,
+            @NotNull Vector3d dir,
+            @NotNull List<HitResult> hitResults,
+            final double maxRange,
+            @NotNull VoxelOccupancy occupancy
+    ) {
+        double[] intermediateMaxRange = {maxRange};
+        double dirLength = Math.sqrt(dir.x() * dir.x() + dir.y() * dir.y() + dir.z() * dir.z());
+
+        // Like the iterator, the length of the walk is in units of the direction, and the start cell is skipped
+        GridCast.traverse(Ray.of(pos, dir), gridSize, max * dirLength, occupancy, (cellX, cellY, cellZ, t, face) -> {
+            if (face == GridVisitor.FACE_NONE) {
+                return true;
+            }
+
+            // The coordinate of the axis of the entry face is exactly on the face
+            int axis = face >> 1;
+            double boundary = ((axis == 0 ? cellX : axis == 1 ? cellY : cellZ) + (face & 1)) * gridSize;
+            final Vector3d vector3d = Vector3d.of(
+                    axis == 0 ? boundary : pos.x() + dir.x() * t,
+                    axis == 1 ? boundary : pos.y() + dir.y() * t,
+                    axis == 2 ? boundary : pos.z() + dir.z() * t
+            );
+
+            double distanceSquared = VectorMathUtil.distanceSquared(pos, vector3d);
+
+            // Generate and add hit result
+            HitResult result = new HitResult(null, HitType.GRIDUNIT, vector3d, distanceSquared);
+
+            hitResults.add(result);
+
+            if (gridFunction == null || !gridFunction.apply(vector3d)) {
+                return true;
+            }
+
+            // Cap max range and stop gridcast
+            intermediateMaxRange[0] = Math.max(min, distanceSquared);
+            return false;
+        });
+
+        return intermediateMaxRange[0];
+    }
+
     /**
      * Returns a builder of the combined cast. This builder is used to determine the attributes of the combined cast
      * that is being built. It is advised to build CombinedCast objects once and reuse them whenever possible.
@@ -192,6 +449,7 @@ public class CombinedCast {
         private boolean ordered = false;
         private @Nullable FunctionalInterfaces.Vector3dArea3dToBoolean areaFunction;
         private @Nullable Vector3dToBoolean gridFunction;
+        private @Nullable VoxelOccupancy occupancy;
 
         /**
          * Sets the distance to terminate the cast at.
@@ -262,12 +520,24 @@ public class CombinedCast {
             return this;
         }
 
+        /**
+         * Sets the occupied grid units of this cast. With an occupancy, the gridcast only reports the occupied grid
+         * units, and crosses empty sections and bricks of the occupancy in a single step, which makes long casts
+         * through open space much cheaper. The occupancy must use the grid size of this cast.
+         * @param occupancy the occupied grid units, or null to report every grid unit
+         * @return the builder
+         */
+        public @NotNull Builder occupancy(@Nullable VoxelOccupancy occupancy) {
+            this.occupancy = occupancy;
+            return this;
+        }
+
         /**
          * Builds the {@link CombinedCast} object
          * @return the {@link CombinedCast} object
          */
         public @NotNull CombinedCast build() {
-            return new CombinedCast(min, max, gridSize, ordered, areaFunction, gridFunction);
+            return new CombinedCast(min, max, gridSize, ordered, areaFunction, gridFunction, occupancy);
         }
     }
 
@@ -1,12 +1,17 @@
 package dev.emortal.rayfast.casting.grid;
 
+import dev.emortal.rayfast.area.Ray;
 import dev.emortal.rayfast.vector.Vector3d;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 public class GridCast {
 
+    private static final int CELL_BITS = 21;
+    private static final long CELL_MASK = (1L << CELL_BITS) - 1;
+
     /**
      * Creates an iterator that iterates through blocks on a 3d 1x1 grid forever.
      *
@@ -89,10 +94,26 @@ public class GridCast {
         return new GridIterator(start.x(), start.y(), start.z(), dir.x(), dir.y(), dir.z(), gridSize, length);
     }
 
+    /**
+     * Creates an iterator that iterates through blocks on a 3d grid of the specified grid size, along the specified
+     * ray until its max length.
+     *
+     * @param ray the ray to iterate along
+     * @param gridSize the size of the grid
+     * @return the iterator
+     */
+    public static GridIterator createGridIterator(
+            Ray ray,
+            double gridSize
+    ) {
+        return new GridIterator(ray.posX(), ray.posY(), ray.posZ(), ray.dirX(), ray.dirY(), ray.dirZ(), gridSize, ray.maxT());
+    }
+
     /**
      * Creates an iterator that iterates through blocks on a 3d grid of the specified grid size, giving the exact
      * position that was hit when any grid unit was intersected. It does this until the total length exceeds the length
-     * specified.
+     * specified. The cell, entry face and line parameter of every hit are read from the iterator after
+     * {@link GridIterator#advance()}, without allocating.
      *
      * @param start iterator start position
      * @param dir iterator direction
@@ -112,7 +133,8 @@ public class GridCast {
     /**
      * Creates an iterator that iterates through blocks on a 3d grid of the specified grid size, giving the exact
      * position that was hit when any grid unit was intersected. It does this until the total length exceeds the length
-     * specified.
+     * specified. The cell, entry face and line parameter of every hit are read from the iterator after
+     * {@link GridIterator#advance()}, without allocating.
      *
      * @param startX iterator start position X
      * @param startY iterator start position Y
@@ -137,17 +159,595 @@ public class GridCast {
         return new ExactGridIterator(startX, startY, startZ, dirX, dirY, dirZ, gridSize, length);
     }
 
-    private static class GridIterator implements Iterator<Vector3d>, Iterable<Vector3d> {
+    /**
+     * Creates an iterator that iterates through blocks on a 3d grid of the specified grid size, giving the exact
+     * position that was hit when any grid unit was intersected. It does this along the specified ray until its max
+     * length. The cell, entry face and line parameter of every hit are read from the iterator after
+     * {@link GridIterator#advance()}, without allocating.
+     *
+     * @param ray the ray to iterate along
+     * @param gridSize the size of the grid
+     * @return the iterator
+     */
+    public static GridIterator createExactGridIterator(
+            Ray ray,
+            double gridSize
+    ) {
+        return new ExactGridIterator(ray.posX(), ray.posY(), ray.posZ(), ray.dirX(), ray.dirY(), ray.dirZ(), gridSize, ray.maxT());
+    }
+
+    /**
+     * Visits the cells of a 3d 1x1 grid along the specified ray, in order, starting with the cell that contains the ray
+     * position, until the visitor returns false or the walk exceeds the max length.
+     *
+     * @param ray the ray to walk along, which also stops at its own max length
+     * @param maxLength the maximum distance from the ray position to walk
+     * @param visitor the visitor of the cells
+     * @return true if the visitor stopped the walk, false if the walk exceeded the max length
+     */
+    public static boolean traverse(
+            @NotNull Ray ray,
+            double maxLength,
+            @NotNull GridVisitor visitor
+    ) {
+        return traverse(ray, 1.0, maxLength, visitor);
+    }
+
+    /**
+     * Visits the cells of a 3d grid of the specified grid size along the specified ray, in order, starting with the cell
+     * that contains the ray position, until the visitor returns false or the walk exceeds the max length.
+     * <br><br>
+     * Unlike the iterators, the walk is a single loop that passes primitive cell coordinates to the visitor, so it
+     * allocates nothing, and the JIT is able to inline the visitor into the loop.
+     *
+     * @param ray the ray to walk along, which also stops at its own max length
+     * @param gridSize the size of the grid
+     * @param maxLength the maximum distance from the ray position to walk
+     * @param visitor the visitor of the cells
+     * @return true if the visitor stopped the walk, false if the walk exceeded the max length
+     */
+    public static boolean traverse(
+            @NotNull Ray ray,
+            double gridSize,
+            double maxLength,
+            @NotNull GridVisitor visitor
+    ) {
+        double dirLength = Math.sqrt(ray.dirX() * ray.dirX() + ray.dirY() * ray.dirY() + ray.dirZ() * ray.dirZ());
+
+        return traverse(
+                ray.posX(), ray.posY(), ray.posZ(),
+                ray.dirX(), ray.dirY(), ray.dirZ(),
+                gridSize, Math.min(ray.maxT(), maxLength / dirLength),
+                visitor
+        );
+    }
 
-        protected double posX;
-        protected double posY;
-        protected double posZ;
+    private static boolean traverse(
+            double posX, double posY, double posZ,
+            double dirX, double dirY, double dirZ,
+            double gridSize, double maxT,
+            GridVisitor visitor
+    ) {
+        int cellX = (int) Math.floor(posX / gridSize);
+        int cellY = (int) Math.floor(posY / gridSize);
+        int cellZ = (int) Math.floor(posZ / gridSize);
+
+        if (!visitor.visit(cellX, cellY, cellZ, 0, GridVisitor.FACE_NONE)) {
+            return true;
+        }
+
+        int stepX = (int) Math.signum(dirX);
+        int stepY = (int) Math.signum(dirY);
+        int stepZ = (int) Math.signum(dirZ);
+
+        // The offset from the cell to the next boundary the line crosses, and the face it enters the next cell through
+        int boundaryX = dirX > 0 ? 1 : 0;
+        int boundaryY = dirY > 0 ? 1 : 0;
+        int boundaryZ = dirZ > 0 ? 1 : 0;
+        int faceX = dirX > 0 ? GridVisitor.FACE_NEGATIVE_X : GridVisitor.FACE_POSITIVE_X;
+        int faceY = dirY > 0 ? GridVisitor.FACE_NEGATIVE_Y : GridVisitor.FACE_POSITIVE_Y;
+        int faceZ = dirZ > 0 ? GridVisitor.FACE_NEGATIVE_Z : GridVisitor.FACE_POSITIVE_Z;
+
+        double invDirX = 1.0 / dirX;
+        double invDirY = 1.0 / dirY;
+        double invDirZ = 1.0 / dirZ;
+        double tMaxX = stepX == 0 ? Double.POSITIVE_INFINITY : ((cellX + boundaryX) * gridSize - posX) * invDirX;
+        double tMaxY = stepY == 0 ? Double.POSITIVE_INFINITY : ((cellY + boundaryY) * gridSize - posY) * invDirY;
+        double tMaxZ = stepZ == 0 ? Double.POSITIVE_INFINITY : ((cellZ + boundaryZ) * gridSize - posZ) * invDirZ;
+
+        // Axes the line does not move along are never crossed, even by an unlimited line
+        maxT = Math.min(maxT, Double.MAX_VALUE);
+
+        while (true) {
+            double t;
+            int face;
+
+            if (tMaxX <= tMaxY && tMaxX <= tMaxZ) {
+                t = tMaxX;
+                face = faceX;
+                cellX += stepX;
+                tMaxX = ((cellX + boundaryX) * gridSize - posX) * invDirX;
+            } else if (tMaxY <= tMaxZ) {
+                t = tMaxY;
+                face = faceY;
+                cellY += stepY;
+                tMaxY = ((cellY + boundaryY) * gridSize - posY) * invDirY;
+            } else {
+                t = tMaxZ;
+                face = faceZ;
+                cellZ += stepZ;
+                tMaxZ = ((cellZ + boundaryZ) * gridSize - posZ) * invDirZ;
+            }
+
+            if (!(t <= maxT)) {
+                return false;
+            }
+            if (!visitor.visit(cellX, cellY, cellZ, t, face)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Visits the occupied cells of a 3d 1x1 grid along the specified ray, in order, until the visitor returns false or
+     * the walk exceeds the max length. Empty sections and bricks of the occupancy are crossed in a single step.
+     *
+     * @param ray the ray to walk along, which also stops at its own max length
+     * @param maxLength the maximum distance from the ray position to walk
+     * @param occupancy the occupied cells of the grid
+     * @param visitor the visitor of the occupied cells
+     * @return true if the visitor stopped the walk, false if the walk exceeded the max length
+     */
+    public static boolean traverse(
+            @NotNull Ray ray,
+            double maxLength,
+            @NotNull VoxelOccupancy occupancy,
+            @NotNull GridVisitor visitor
+    ) {
+        return traverse(ray, 1.0, maxLength, occupancy, visitor);
+    }
+
+    /**
+     * Visits the occupied cells of a 3d grid of the specified grid size along the specified ray, in order, until the
+     * visitor returns false or the walk exceeds the max length.
+     * <br><br>
+     * The walk steps through the sections of the occupancy, and only descends into the bricks of a section that is not
+     * empty, and into the cells of a brick that is not empty, so a long walk through empty space takes one step per
+     * section. The occupied cells are visited with the same line parameter and entry face as by
+     * {@link #traverse(Ray, double, double, GridVisitor)}. The walk ends where the line leaves the bounds of the
+     * occupancy, even for an unlimited ray.
+     *
+     * @param ray the ray to walk along, which also stops at its own max length
+     * @param gridSize the size of the grid
+     * @param maxLength the maximum distance from the ray position to walk
+     * @param occupancy the occupied cells of the grid
+     * @param visitor the visitor of the occupied cells
+     * @return true if the visitor stopped the walk, false if the walk exceeded the max length
+     */
+    public static boolean traverse(
+            @NotNull Ray ray,
+            double gridSize,
+            double maxLength,
+            @NotNull VoxelOccupancy occupancy,
+            @NotNull GridVisitor visitor
+    ) {
+        double exit = occupancy.exit(ray, gridSize);
+
+        if (Double.isNaN(exit)) {
+            return false;
+        }
+
+        double dirLength = Math.sqrt(ray.dirX() * ray.dirX() + ray.dirY() * ray.dirY() + ray.dirZ() * ray.dirZ());
+
+        return traverse(
+                ray.posX(), ray.posY(), ray.posZ(),
+                ray.dirX(), ray.dirY(), ray.dirZ(),
+                gridSize, Math.min(exit, Math.min(ray.maxT(), maxLength / dirLength)),
+                occupancy, visitor
+        );
+    }
+
+    private static boolean traverse(
+            double posX, double posY, double posZ,
+            double dirX, double dirY, double dirZ,
+            double gridSize, double maxT,
+            VoxelOccupancy occupancy,
+            GridVisitor visitor
+    ) {
+        int cellX = (int) Math.floor(posX / gridSize);
+        int cellY = (int) Math.floor(posY / gridSize);
+        int cellZ = (int) Math.floor(posZ / gridSize);
+
+        int stepX = (int) Math.signum(dirX);
+        int stepY = (int) Math.signum(dirY);
+        int stepZ = (int) Math.signum(dirZ);
+        int faceX = dirX > 0 ? GridVisitor.FACE_NEGATIVE_X : GridVisitor.FACE_POSITIVE_X;
+        int faceY = dirY > 0 ? GridVisitor.FACE_NEGATIVE_Y : GridVisitor.FACE_POSITIVE_Y;
+        int faceZ = dirZ > 0 ? GridVisitor.FACE_NEGATIVE_Z : GridVisitor.FACE_POSITIVE_Z;
+        double invDirX = 1.0 / dirX;
+        double invDirY = 1.0 / dirY;
+        double invDirZ = 1.0 / dirZ;
+
+        // Axes the line does not move along are never crossed, even by an unlimited line
+        maxT = Math.min(maxT, Double.MAX_VALUE);
+
+        double t = 0;
+        int face = GridVisitor.FACE_NONE;
+
+        // The bitmaps of the section of the current cell, which are only looked up again when the walk leaves it
+        long[] section = null;
+        int sectionX = 0, sectionY = 0, sectionZ = 0;
+        boolean sectionValid = false;
+
+        while (true) {
+            if (!sectionValid || cellX >> 4 != sectionX || cellY >> 4 != sectionY || cellZ >> 4 != sectionZ) {
+                sectionX = cellX >> 4;
+                sectionY = cellY >> 4;
+                sectionZ = cellZ >> 4;
+                section = occupancy.section(sectionX, sectionY, sectionZ);
+                sectionValid = true;
+            }
+
+            // The size of the empty region of the current cell, in cells
+            int size;
+
+            if (section == null) {
+                size = VoxelOccupancy.SECTION_SIZE;
+            } else {
+                long cells = section[1 + ((cellX >> 2 & 3) | (cellY >> 2 & 3) << 2 | (cellZ >> 2 & 3) << 4)];
+
+                if (cells == 0) {
+                    size = VoxelOccupancy.BRICK_SIZE;
+                } else {
+                    if ((cells >>> ((cellX & 3) | (cellY & 3) << 2 | (cellZ & 3) << 4) & 1) != 0 &&
+                            !visitor.visit(cellX, cellY, cellZ, t, face)) {
+                        return true;
+                    }
+                    size = 1;
+                }
+            }
+
+            // Leave the region through the boundary the line crosses first
+            int minX = cellX & -size, minY = cellY & -size, minZ = cellZ & -size;
+            int maxX = minX + size - 1, maxY = minY + size - 1, maxZ = minZ + size - 1;
+
+            double tMaxX = stepX == 0 ? Double.POSITIVE_INFINITY : ((stepX > 0 ? maxX + 1 : minX) * gridSize - posX) * invDirX;
+            double tMaxY = stepY == 0 ? Double.POSITIVE_INFINITY : ((stepY > 0 ? maxY + 1 : minY) * gridSize - posY) * invDirY;
+            double tMaxZ = stepZ == 0 ? Double.POSITIVE_INFINITY : ((stepZ > 0 ? maxZ + 1 : minZ) * gridSize - posZ) * invDirZ;
+
+            int axis = tMaxX <= tMaxY && tMaxX <= tMaxZ ? 0 : tMaxY <= tMaxZ ? 1 : 2;
+            t = axis == 0 ? tMaxX : axis == 1 ? tMaxY : tMaxZ;
+
+            if (!(t <= maxT)) {
+                return false;
+            }
+
+            // Crossing a region of several cells also moves along the other axes, to the cells the line is in at t
+            if (axis == 0) {
+                face = faceX;
+                cellX = stepX > 0 ? maxX + 1 : minX - 1;
+                if (size > 1) {
+                    cellY = settle(minY, maxY, stepY, posY, dirY, invDirY, gridSize, t, false);
+                    cellZ = settle(minZ, maxZ, stepZ, posZ, dirZ, invDirZ, gridSize, t, false);
+                }
+            } else if (axis == 1) {
+                face = faceY;
+                cellY = stepY > 0 ? maxY + 1 : minY - 1;
+                if (size > 1) {
+                    cellX = settle(minX, maxX, stepX, posX, dirX, invDirX, gridSize, t, true);
+                    cellZ = settle(minZ, maxZ, stepZ, posZ, dirZ, invDirZ, gridSize, t, false);
+                }
+            } else {
+                face = faceZ;
+                cellZ = stepZ > 0 ? maxZ + 1 : minZ - 1;
+                if (size > 1) {
+                    cellX = settle(minX, maxX, stepX, posX, dirX, invDirX, gridSize, t, true);
+                    cellY = settle(minY, maxY, stepY, posY, dirY, invDirY, gridSize, t, true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the cell within [min, max] of an axis that the line is in when another axis is crossed at t. A boundary
+     * of the axis is crossed before t if its line parameter is lower, or equal and the axis comes first, which is the
+     * order the cell by cell walk crosses boundaries in, so both walks agree on every cell.
+     */
+    private static int settle(int min, int max, int step, double pos, double dir, double invDir, double gridSize, double t, boolean first) {
+        double estimate = Math.floor((pos + dir * t) / gridSize);
+        int cell = estimate >= max ? max : estimate > min ? (int) estimate : min;
+
+        if (step == 0) {
+            return cell;
+        }
+
+        int boundary = step > 0 ? 1 : 0;
+        int start = step > 0 ? min : max;
+        int end = step > 0 ? max : min;
+
+        // Move back while the line has not entered the cell yet, and on while it has already left it
+        while (cell != start && !crossed((cell + 1 - boundary) * gridSize, pos, invDir, t, first)) {
+            cell -= step;
+        }
+        while (cell != end && crossed((cell + boundary) * gridSize, pos, invDir, t, first)) {
+            cell += step;
+        }
+        return cell;
+    }
+
+    private static boolean crossed(double boundary, double pos, double invDir, double t, boolean first) {
+        double crossing = (boundary - pos) * invDir;
+        return crossing < t || (first && crossing == t);
+    }
+
+    /**
+     * Visits every cell of a 3d 1x1 grid that a box overlaps while it moves along the specified direction, once each,
+     * in the order the box first touches them, until the visitor returns false or the box has moved the max length.
+     *
+     * @param minX the min X of the box
+     * @param minY the min Y of the box
+     * @param minZ the min Z of the box
+     * @param maxX the max X of the box
+     * @param maxY the max Y of the box
+     * @param maxZ the max Z of the box
+     * @param dirX the direction X of the movement
+     * @param dirY the direction Y of the movement
+     * @param dirZ the direction Z of the movement
+     * @param maxLength the maximum distance to move the box
+     * @param visitor the visitor of the cells
+     * @return true if the visitor stopped the sweep, false if the box moved the max length
+     * @see #sweep(double, double, double, double, double, double, double, double, double, double, double, GridVisitor)
+     */
+    public static boolean sweep(
+            double minX, double minY, double minZ,
+            double maxX, double maxY, double maxZ,
+            double dirX, double dirY, double dirZ,
+            double maxLength,
+            @NotNull GridVisitor visitor
+    ) {
+        return sweep(minX, minY, minZ, maxX, maxY, maxZ, dirX, dirY, dirZ, 1.0, maxLength, visitor);
+    }
+
+    /**
+     * Visits every cell of a 3d grid of the specified grid size that a box overlaps while it moves along the specified
+     * direction, once each, in the order the box first touches them, until the visitor returns false or the box has
+     * moved the max length.
+     * <br><br>
+     * At line parameter t the box is moved by the direction times t. The cells the box overlaps at the start are
+     * visited first, with t 0 and {@link GridVisitor#FACE_NONE}. Every other cell is visited with the t where the box
+     * first touches it, and the face of the cell that the box touches first. A box overlaps a cell if their interiors
+     * overlap, so a box that only touches a cell with one of its sides does not overlap it. On an axis the box has no
+     * size along, it overlaps the cell its side is in, like the position of a line.
+     * <br><br>
+     * The sweep keeps the range of cells the box overlaps on every axis, and moves the ends of the ranges as the sides
+     * of the box cross the cell boundaries. Whenever the leading side of an axis crosses a boundary, the slice of new
+     * cells is visited. This visits every cell exactly once, without tracing the corners of the box as separate lines.
+     *
+     * @param minX the min X of the box
+     * @param minY the min Y of the box
+     * @param minZ the min Z of the box
+     * @param maxX the max X of the box
+     * @param maxY the max Y of the box
+     * @param maxZ the max Z of the box
+     * @param dirX the direction X of the movement
+     * @param dirY the direction Y of the movement
+     * @param dirZ the direction Z of the movement
+     * @param gridSize the size of the grid
+     * @param maxLength the maximum distance to move the box
+     * @param visitor the visitor of the cells
+     * @return true if the visitor stopped the sweep, false if the box moved the max length
+     */
+    public static boolean sweep(
+            double minX, double minY, double minZ,
+            double maxX, double maxY, double maxZ,
+            double dirX, double dirY, double dirZ,
+            double gridSize,
+            double maxLength,
+            @NotNull GridVisitor visitor
+    ) {
+        if (!(minX <= maxX && minY <= maxY && minZ <= maxZ)) {
+            throw new IllegalArgumentException("The min of a box must not be greater than its max");
+        }
+
+        // The range of cells the box overlaps on every axis
+        int lowX = (int) Math.floor(minX / gridSize);
+        int lowY = (int) Math.floor(minY / gridSize);
+        int lowZ = (int) Math.floor(minZ / gridSize);
+        int highX = Math.max(lowX, (int) Math.ceil(maxX / gridSize) - 1);
+        int highY = Math.max(lowY, (int) Math.ceil(maxY / gridSize) - 1);
+        int highZ = Math.max(lowZ, (int) Math.ceil(maxZ / gridSize) - 1);
+
+        if (!visitSlice(lowX, highX, lowY, highY, lowZ, highZ, 0, GridVisitor.FACE_NONE, visitor)) {
+            return true;
+        }
+
+        // The leading side of an axis enters the cells beyond the range, and the trailing side leaves the range
+        double leadX = dirX > 0 ? maxX : minX;
+        double leadY = dirY > 0 ? maxY : minY;
+        double leadZ = dirZ > 0 ? maxZ : minZ;
+        double trailX = dirX > 0 ? minX : maxX;
+        double trailY = dirY > 0 ? minY : maxY;
+        double trailZ = dirZ > 0 ? minZ : maxZ;
+        int faceX = dirX > 0 ? GridVisitor.FACE_NEGATIVE_X : GridVisitor.FACE_POSITIVE_X;
+        int faceY = dirY > 0 ? GridVisitor.FACE_NEGATIVE_Y : GridVisitor.FACE_POSITIVE_Y;
+        int faceZ = dirZ > 0 ? GridVisitor.FACE_NEGATIVE_Z : GridVisitor.FACE_POSITIVE_Z;
+
+        double invDirX = 1.0 / dirX;
+        double invDirY = 1.0 / dirY;
+        double invDirZ = 1.0 / dirZ;
+        double enterX = dirX > 0 ? ((highX + 1) * gridSize - leadX) * invDirX : dirX < 0 ? (lowX * gridSize - leadX) * invDirX : Double.POSITIVE_INFINITY;
+        double enterY = dirY > 0 ? ((highY + 1) * gridSize - leadY) * invDirY : dirY < 0 ? (lowY * gridSize - leadY) * invDirY : Double.POSITIVE_INFINITY;
+        double enterZ = dirZ > 0 ? ((highZ + 1) * gridSize - leadZ) * invDirZ : dirZ < 0 ? (lowZ * gridSize - leadZ) * invDirZ : Double.POSITIVE_INFINITY;
+        double leaveX = dirX > 0 ? ((lowX + 1) * gridSize - trailX) * invDirX : dirX < 0 ? (highX * gridSize - trailX) * invDirX : Double.POSITIVE_INFINITY;
+        double leaveY = dirY > 0 ? ((lowY + 1) * gridSize - trailY) * invDirY : dirY < 0 ? (highY * gridSize - trailY) * invDirY : Double.POSITIVE_INFINITY;
+        double leaveZ = dirZ > 0 ? ((lowZ + 1) * gridSize - trailZ) * invDirZ : dirZ < 0 ? (highZ * gridSize - trailZ) * invDirZ : Double.POSITIVE_INFINITY;
+
+        double dirLength = Math.sqrt(dirX * dirX + dirY * dirY + dirZ * dirZ);
+        double maxT = Math.min(maxLength / dirLength, Double.MAX_VALUE);
+
+        while (true) {
+            double enter = Math.min(Math.min(enterX, enterY), enterZ);
+            double leave = Math.min(Math.min(leaveX, leaveY), leaveZ);
+
+            if (!(enter <= maxT)) {
+                return false;
+            }
+
+            // Cells the box leaves at the same t as it enters others are only touched, so leaves go first. The range
+            // of a box without size on an axis is empty until its enter at the same t.
+            if (leave <= enter) {
+                if (leaveX == leave) {
+                    if (dirX > 0) {
+                        lowX++;
+                    } else {
+                        highX--;
+                    }
+                    leaveX = ((dirX > 0 ? lowX + 1 : highX) * gridSize - trailX) * invDirX;
+                } else if (leaveY == leave) {
+                    if (dirY > 0) {
+                        lowY++;
+                    } else {
+                        highY--;
+                    }
+                    leaveY = ((dirY > 0 ? lowY + 1 : highY) * gridSize - trailY) * invDirY;
+                } else {
+                    if (dirZ > 0) {
+                        lowZ++;
+                    } else {
+                        highZ--;
+                    }
+                    leaveZ = ((dirZ > 0 ? lowZ + 1 : highZ) * gridSize - trailZ) * invDirZ;
+                }
+                continue;
+            }
+
+            boolean visiting;
+
+            if (enterX == enter) {
+                int cellX = dirX > 0 ? ++highX : --lowX;
+                enterX = ((dirX > 0 ? highX + 1 : lowX) * gridSize - leadX) * invDirX;
+                visiting = visitSlice(cellX, cellX, lowY, highY, lowZ, highZ, enter, faceX, visitor);
+            } else if (enterY == enter) {
+                int cellY = dirY > 0 ? ++highY : --lowY;
+                enterY = ((dirY > 0 ? highY + 1 : lowY) * gridSize - leadY) * invDirY;
+                visiting = visitSlice(lowX, highX, cellY, cellY, lowZ, highZ, enter, faceY, visitor);
+            } else {
+                int cellZ = dirZ > 0 ? ++highZ : --lowZ;
+                enterZ = ((dirZ > 0 ? highZ + 1 : lowZ) * gridSize - leadZ) * invDirZ;
+                visiting = visitSlice(lowX, highX, lowY, highY, cellZ, cellZ, enter, faceZ, visitor);
+            }
+
+            if (!visiting) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Visits every cell of the specified ranges, and returns false as soon as the visitor does
+     */
+    private static boolean visitSlice(int lowX, int highX, int lowY, int highY, int lowZ, int highZ, double t, int face, GridVisitor visitor) {
+        for (int cellX = lowX; cellX <= highX; cellX++) {
+            for (int cellY = lowY; cellY <= highY; cellY++) {
+                for (int cellZ = lowZ; cellZ <= highZ; cellZ++) {
+                    if (!visitor.visit(cellX, cellY, cellZ, t, face)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Packs the specified cell coordinates into a long, 21 bits each, which supports roughly a million cells in every
+     * direction of the origin. Use {@link #unpackX(long)}, {@link #unpackY(long)} and {@link #unpackZ(long)} to read
+     * them back.
+     *
+     * @param cellX the cell X
+     * @param cellY the cell Y
+     * @param cellZ the cell Z
+     * @return the packed cell
+     */
+    public static long packCell(int cellX, int cellY, int cellZ) {
+        return ((cellX & CELL_MASK) << (CELL_BITS * 2)) | ((cellY & CELL_MASK) << CELL_BITS) | (cellZ & CELL_MASK);
+    }
+
+    /**
+     * @param cell the packed cell
+     * @return the X of the packed cell
+     */
+    public static int unpackX(long cell) {
+        return (int) (cell << (64 - CELL_BITS * 3) >> (64 - CELL_BITS));
+    }
+
+    /**
+     * @param cell the packed cell
+     * @return the Y of the packed cell
+     */
+    public static int unpackY(long cell) {
+        return (int) (cell << (64 - CELL_BITS * 2) >> (64 - CELL_BITS));
+    }
+
+    /**
+     * @param cell the packed cell
+     * @return the Z of the packed cell
+     */
+    public static int unpackZ(long cell) {
+        return (int) (cell << (64 - CELL_BITS) >> (64 - CELL_BITS));
+    }
+
+    /**
+     * Iterates through the cells of a grid along a line, in order, starting with the cell that contains the start
+     * position.
+     * <br><br>
+     * The iterator keeps the integer coordinates of the current cell, and the line parameter t where the line crosses
+     * the next cell boundary of every axis. Every step moves to the neighbouring cell along the axis whose boundary is
+     * crossed first. The boundaries are computed from the integer cell coordinates, so they do not drift over long
+     * lines, and the cells are exact in every octant.
+     * <br><br>
+     * {@link #next()} returns the min corner of every cell. {@link #advance()} moves to the next cell without
+     * allocating, after which the cell is read with {@link #cellX()}, {@link #cellY()}, {@link #cellZ()} or
+     * {@link #cell()}, and where the line entered it with {@link #t()}, {@link #face()} and {@link #entryX()},
+     * {@link #entryY()} and {@link #entryZ()}.
+     */
+    public static class GridIterator implements Iterator<Vector3d>, Iterable<Vector3d> {
+
+        protected final double startX;
+        protected final double startY;
+        protected final double startZ;
         protected final double dirX;
         protected final double dirY;
         protected final double dirZ;
         protected final double gridSize;
         protected final double length;
-        protected double currentLength = 0;
+
+        // The cell step of every axis, -1, 0 or 1, the offset from the cell to the next boundary it crosses, and the
+        // face it enters the next cell through
+        private final int stepX;
+        private final int stepY;
+        private final int stepZ;
+        private final int boundaryX;
+        private final int boundaryY;
+        private final int boundaryZ;
+        private final int faceX;
+        private final int faceY;
+        private final int faceZ;
+        private final double invDirX;
+        private final double invDirY;
+        private final double invDirZ;
+
+        protected int cellX;
+        protected int cellY;
+        protected int cellZ;
+        protected double t = 0;
+        protected int face = GridVisitor.FACE_NONE;
+        private boolean started;
+
+        // The line parameter where the line crosses the next boundary of every axis
+        private double tMaxX;
+        private double tMaxY;
+        private double tMaxZ;
 
         protected GridIterator(
                 double startX,
@@ -159,44 +759,176 @@ public class GridCast {
                 double gridSize,
                 double length
         ) {
-            this.posX = startX;
-            this.posY = startY;
-            this.posZ = startZ;
+            this.startX = startX;
+            this.startY = startY;
+            this.startZ = startZ;
             this.dirX = dirX;
             this.dirY = dirY;
             this.dirZ = dirZ;
             this.gridSize = gridSize;
-            this.length = length;
+            // Axes the line does not move along are never crossed, even by an unlimited line
+            this.length = Math.min(length, Double.MAX_VALUE);
+
+            this.stepX = (int) Math.signum(dirX);
+            this.stepY = (int) Math.signum(dirY);
+            this.stepZ = (int) Math.signum(dirZ);
+            this.boundaryX = dirX > 0 ? 1 : 0;
+            this.boundaryY = dirY > 0 ? 1 : 0;
+            this.boundaryZ = dirZ > 0 ? 1 : 0;
+            this.faceX = dirX > 0 ? GridVisitor.FACE_NEGATIVE_X : GridVisitor.FACE_POSITIVE_X;
+            this.faceY = dirY > 0 ? GridVisitor.FACE_NEGATIVE_Y : GridVisitor.FACE_POSITIVE_Y;
+            this.faceZ = dirZ > 0 ? GridVisitor.FACE_NEGATIVE_Z : GridVisitor.FACE_POSITIVE_Z;
+            this.invDirX = 1.0 / dirX;
+            this.invDirY = 1.0 / dirY;
+            this.invDirZ = 1.0 / dirZ;
+
+            this.cellX = (int) Math.floor(startX / gridSize);
+            this.cellY = (int) Math.floor(startY / gridSize);
+            this.cellZ = (int) Math.floor(startZ / gridSize);
+            this.tMaxX = crossing(cellX + boundaryX, startX, invDirX, stepX);
+            this.tMaxY = crossing(cellY + boundaryY, startY, invDirY, stepY);
+            this.tMaxZ = crossing(cellZ + boundaryZ, startZ, invDirZ, stepZ);
+        }
+
+        /**
+         * Returns the line parameter where the line crosses the specified boundary, or infinity if it never does
+         */
+        private double crossing(int boundary, double start, double invDir, int step) {
+            return step == 0 ? Double.POSITIVE_INFINITY : (boundary * gridSize - start) * invDir;
+        }
+
+        /**
+         * Moves to the next cell without allocating.
+         * @return true if the iterator moved to the next cell, false if it is beyond the length of the iterator
+         */
+        public boolean advance() {
+            if (!started) {
+                started = true;
+                return true;
+            }
+
+            if (tMaxX <= tMaxY && tMaxX <= tMaxZ) {
+                if (!(tMaxX <= length)) {
+                    return false;
+                }
+                t = tMaxX;
+                face = faceX;
+                cellX += stepX;
+                tMaxX = crossing(cellX + boundaryX, startX, invDirX, stepX);
+            } else if (tMaxY <= tMaxZ) {
+                if (!(tMaxY <= length)) {
+                    return false;
+                }
+                t = tMaxY;
+                face = faceY;
+                cellY += stepY;
+                tMaxY = crossing(cellY + boundaryY, startY, invDirY, stepY);
+            } else {
+                if (!(tMaxZ <= length)) {
+                    return false;
+                }
+                t = tMaxZ;
+                face = faceZ;
+                cellZ += stepZ;
+                tMaxZ = crossing(cellZ + boundaryZ, startZ, invDirZ, stepZ);
+            }
+            return true;
         }
 
         @Override
         public boolean hasNext() {
-            return currentLength < length;
+            return !started || Math.min(tMaxX, Math.min(tMaxY, tMaxZ)) <= length;
         }
 
         @Override
         public Vector3d next() {
-            // Find the length to the next block
-            double lengthX = (gridSize - (Math.abs(posX) % gridSize)) / Math.abs(dirX);
-            double lengthY = (gridSize - (Math.abs(posY) % gridSize)) / Math.abs(dirY);
-            double lengthZ = (gridSize - (Math.abs(posZ) % gridSize)) / Math.abs(dirZ);
+            if (!advance()) {
+                throw new NoSuchElementException();
+            }
+            return Vector3d.of(cellX * gridSize, cellY * gridSize, cellZ * gridSize);
+        }
 
-            // Find the lowest of all
-            double lowest = Math.min(lengthX, Math.min(lengthY, lengthZ));
+        /**
+         * @return the X of the current cell
+         */
+        public int cellX() {
+            return cellX;
+        }
 
-            // Cast to the next block
-            this.posX += dirX * lowest;
-            this.posY += dirY * lowest;
-            this.posZ += dirZ * lowest;
+        /**
+         * @return the Y of the current cell
+         */
+        public int cellY() {
+            return cellY;
+        }
+
+        /**
+         * @return the Z of the current cell
+         */
+        public int cellZ() {
+            return cellZ;
+        }
+
+        /**
+         * @return the current cell, packed with {@link GridCast#packCell(int, int, int)}
+         */
+        public long cell() {
+            return packCell(cellX, cellY, cellZ);
+        }
+
+        /**
+         * @return the line parameter where the line enters the current cell, 0 for the start cell
+         */
+        public double t() {
+            return t;
+        }
+
+        /**
+         * Returns the face the line enters the current cell through, numbered like the faces of {@link GridVisitor}.
+         * The axis of the face is {@code face >> 1}, and its outward normal points towards the positive side of the
+         * axis if {@code (face & 1) == 1}.
+         * @return the entry face, or {@link GridVisitor#FACE_NONE} for the start cell
+         */
+        public int face() {
+            return face;
+        }
+
+        /**
+         * @return the X where the line enters the current cell, exactly on the boundary if the cell is entered through
+         * an X face
+         */
+        public double entryX() {
+            return entry(startX, dirX, cellX, GridVisitor.FACE_NEGATIVE_X);
+        }
 
-            // Add length to current
-            currentLength += lowest;
+        /**
+         * @return the Y where the line enters the current cell, exactly on the boundary if the cell is entered through
+         * a Y face
+         */
+        public double entryY() {
+            return entry(startY, dirY, cellY, GridVisitor.FACE_NEGATIVE_Y);
+        }
+
+        /**
+         * @return the Z where the line enters the current cell, exactly on the boundary if the cell is entered through
+         * a Z face
+         */
+        public double entryZ() {
+            return entry(startZ, dirZ, cellZ, GridVisitor.FACE_NEGATIVE_Z);
+        }
 
-            return Vector3d.of(
-                    posX - posX % gridSize,
-                    posY - posY % gridSize,
-                    posZ - posZ % gridSize
-            );
+        /**
+         * Returns the coordinate of an axis where the line enters the current cell. The coordinate of the axis of the
+         * entry face is the face itself, rather than the rounded position along the line.
+         */
+        private double entry(double start, double dir, int cell, int negativeFace) {
+            if (face == negativeFace) {
+                return cell * gridSize;
+            }
+            if (face == negativeFace + 1) {
+                return (cell + 1) * gridSize;
+            }
+            return start + dir * t;
         }
 
         @Override
@@ -205,36 +937,23 @@ public class GridCast {
         }
     }
 
+    /**
+     * Iterates through the positions where a line crosses the cell boundaries of a grid, in order. Unlike a
+     * {@link GridIterator}, the cell that contains the start position is skipped, as it is not entered through a
+     * boundary. The cell, face and line parameter of every crossing are read from the accessors of the iterator.
+     */
     private static class ExactGridIterator extends GridIterator {
         protected ExactGridIterator(double startX, double startY, double startZ, double dirX, double dirY, double dirZ, double gridSize, double length) {
             super(startX, startY, startZ, dirX, dirY, dirZ, gridSize, length);
+            advance();
         }
 
         @Override
         public Vector3d next() {
-            // Find the length to the next block
-            double lengthX = (gridSize - (Math.abs(posX) % gridSize)) / Math.abs(dirX);
-            double lengthY = (gridSize - (Math.abs(posY) % gridSize)) / Math.abs(dirY);
-            double lengthZ = (gridSize - (Math.abs(posZ) % gridSize)) / Math.abs(dirZ);
-
-            // Find the lowest of all
-            double lowest = Math.min(lengthX, Math.min(lengthY, lengthZ));
-
-            // Cast to the next block
-            this.posX += dirX * lowest;
-            this.posY += dirY * lowest;
-            this.posZ += dirZ * lowest;
-
-            // Add length to current
-            currentLength += lowest;
-
-            return Vector3d.of(
-                    posX,
-                    posY,
-                    posZ
-            );
+            if (!advance()) {
+                throw new NoSuchElementException();
+            }
+            return Vector3d.of(entryX(), entryY(), entryZ());
         }
     }
-
-
 }
@@ -0,0 +1,32 @@
+package dev.emortal.rayfast.casting.grid;
+
+/**
+ * Visits the cells of a grid along a line, in order, from {@link GridCast#traverse}.
+ * <br><br>
+ * Every cell is entered through one of its faces. A face is identified by the axis and the sign of its outward normal,
+ * as {@code axis * 2 + (positive ? 1 : 0)} with axis 0, 1 and 2 for X, Y and Z, so a line moving towards positive X
+ * enters every cell through its {@link #FACE_NEGATIVE_X} face. The cell that contains the start of the line is not
+ * entered through a face, and is visited with {@link #FACE_NONE}.
+ */
+@FunctionalInterface
+public interface GridVisitor {
+
+    int FACE_NONE = -1;
+    int FACE_NEGATIVE_X = 0;
+    int FACE_POSITIVE_X = 1;
+    int FACE_NEGATIVE_Y = 2;
+    int FACE_POSITIVE_Y = 3;
+    int FACE_NEGATIVE_Z = 4;
+    int FACE_POSITIVE_Z = 5;
+
+    /**
+     * Visits a cell of the grid
+     * @param cellX the cell X
+     * @param cellY the cell Y
+     * @param cellZ the cell Z
+     * @param t the line parameter where the line enters the cell, 0 for the start cell
+     * @param face the face the line enters the cell through, or {@link #FACE_NONE} for the start cell
+     * @return true to continue to the next cell, false to stop
+     */
+    boolean visit(int cellX, int cellY, int cellZ, double t, int face);
+}
@@ -0,0 +1,181 @@
+package dev.emortal.rayfast.casting.grid;
+
+import dev.emortal.rayfast.area.Ray;
+import dev.emortal.rayfast.util.LongHashMap;
+
+/**
+ * The set of occupied cells of a grid, such as the solid blocks of a world, stored as bitmaps at three levels:
+ * sections of 16x16x16 cells, bricks of 4x4x4 cells, and single cells.
+ * <br><br>
+ * Only sections that contain an occupied cell are stored. Every stored section keeps one bit per brick that contains
+ * an occupied cell, and one 64 bit word per brick with one bit per cell. The traversals of {@link GridCast} that take an
+ * occupancy use the levels to cross an empty section or brick in a single step, and only visit the occupied cells.
+ * <br><br>
+ * Cells are referred to by their integer grid coordinates, like the cells of {@link GridVisitor}. This class is not
+ * thread safe, and must not be modified while it is being traversed.
+ */
+public final class VoxelOccupancy {
+
+    /**
+     * The number of cells along every axis of a section
+     */
+    public static final int SECTION_SIZE = 16;
+
+    /**
+     * The number of cells along every axis of a brick
+     */
+    public static final int BRICK_SIZE = 4;
+
+    // Every section is the brick bitmap, followed by the cell bitmap of every brick
+    private final LongHashMap<long[]> sections = new LongHashMap<>();
+
+    // Bounds of every cell that was ever occupied, which are not shrunk when cells are cleared
+    private int minX = Integer.MAX_VALUE;
+    private int minY = Integer.MAX_VALUE;
+    private int minZ = Integer.MAX_VALUE;
+    private int maxX = Integer.MIN_VALUE;
+    private int maxY = Integer.MIN_VALUE;
+    private int maxZ = Integer.MIN_VALUE;
+
+    /**
+     * Sets whether the specified cell is occupied
+     * @param cellX the cell X
+     * @param cellY the cell Y
+     * @param cellZ the cell Z
+     * @param occupied true if the cell is occupied, false if it is empty
+     */
+    public void set(int cellX, int cellY, int cellZ, boolean occupied) {
+        long key = GridCast.packCell(cellX >> 4, cellY >> 4, cellZ >> 4);
+        long[] section = sections.get(key);
+        int brick = brick(cellX, cellY, cellZ);
+        long bit = 1L << cell(cellX, cellY, cellZ);
+
+        if (occupied) {
+            if (section == null) {
+                section = new long[1 + 64];
+                sections.put(key, section);
+            }
+
+            section[0] |= 1L << brick;
+            section[1 + brick] |= bit;
+
+            minX = Math.min(minX, cellX);
+            minY = Math.min(minY, cellY);
+            minZ = Math.min(minZ, cellZ);
+            maxX = Math.max(maxX, cellX);
+            maxY = Math.max(maxY, cellY);
+            maxZ = Math.max(maxZ, cellZ);
+            return;
+        }
+
+        if (section == null) {
+            return;
+        }
+
+        section[1 + brick] &= ~bit;
+
+        if (section[1 + brick] == 0) {
+            section[0] &= ~(1L << brick);
+
+            if (section[0] == 0) {
+                sections.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the specified cell is occupied
+     * @param cellX the cell X
+     * @param cellY the cell Y
+     * @param cellZ the cell Z
+     * @return true if the cell is occupied, false otherwise
+     */
+    public boolean isOccupied(int cellX, int cellY, int cellZ) {
+        long[] section = section(cellX >> 4, cellY >> 4, cellZ >> 4);
+        return section != null && (section[1 + brick(cellX, cellY, cellZ)] >>> cell(cellX, cellY, cellZ) & 1) != 0;
+    }
+
+    /**
+     * Returns true if no cell of the specified brick is occupied. The brick of a cell is its coordinates divided by
+     * {@link #BRICK_SIZE}, rounded down.
+     * @param brickX the brick X
+     * @param brickY the brick Y
+     * @param brickZ the brick Z
+     * @return true if the brick is empty, false otherwise
+     */
+    public boolean isBrickEmpty(int brickX, int brickY, int brickZ) {
+        long[] section = section(brickX >> 2, brickY >> 2, brickZ >> 2);
+        return section == null || (section[0] >>> ((brickX & 3) | (brickY & 3) << 2 | (brickZ & 3) << 4) & 1) == 0;
+    }
+
+    /**
+     * Returns true if no cell of the specified section is occupied. The section of a cell is its coordinates divided by
+     * {@link #SECTION_SIZE}, rounded down.
+     * @param sectionX the section X
+     * @param sectionY the section Y
+     * @param sectionZ the section Z
+     * @return true if the section is empty, false otherwise
+     */
+    public boolean isSectionEmpty(int sectionX, int sectionY, int sectionZ) {
+        return section(sectionX, sectionY, sectionZ) == null;
+    }
+
+    /**
+     * @return the number of sections that contain an occupied cell
+     */
+    public int sectionCount() {
+        return sections.size();
+    }
+
+    /**
+     * Clears every cell
+     */
+    public void clear() {
+        sections.clear();
+        minX = minY = minZ = Integer.MAX_VALUE;
+        maxX = maxY = maxZ = Integer.MIN_VALUE;
+    }
+
+    /**
+     * Returns the bitmaps of the specified section, or null if it is empty
+     */
+    long[] section(int sectionX, int sectionY, int sectionZ) {
+        return sections.get(GridCast.packCell(sectionX, sectionY, sectionZ));
+    }
+
+    /**
+     * Returns the line parameter where a line leaves the bounds of every cell that was ever occupied, or NaN if it is
+     * never inside them at or after its position
+     */
+    double exit(Ray ray, double gridSize) {
+        if (minX > maxX) {
+            return Double.NaN;
+        }
+
+        double exit = Math.min(Math.min(
+                exit(ray.posX(), ray.invDirX(), minX * gridSize, (maxX + 1) * gridSize),
+                exit(ray.posY(), ray.invDirY(), minY * gridSize, (maxY + 1) * gridSize)),
+                exit(ray.posZ(), ray.invDirZ(), minZ * gridSize, (maxZ + 1) * gridSize)
+        );
+        return exit >= 0 ? exit : Double.NaN;
+    }
+
+    /**
+     * Returns the line parameter where a line leaves the slab of an axis, infinity if it stays inside of it, or NaN if
+     * it is never inside of it
+     */
+    private static double exit(double pos, double invDir, double min, double max) {
+        if (Math.abs(invDir) == Double.POSITIVE_INFINITY) {
+            return pos >= min && pos < max ? Double.POSITIVE_INFINITY : Double.NaN;
+        }
+        return ((invDir > 0 ? max : min) - pos) * invDir;
+    }
+
+    private static int brick(int cellX, int cellY, int cellZ) {
+        return (cellX >> 2 & 3) | (cellY >> 2 & 3) << 2 | (cellZ >> 2 & 3) << 4;
+    }
+
+    private static int cell(int cellX, int cellY, int cellZ) {
+        return (cellX & 3) | (cellY & 3) << 2 | (cellZ & 3) << 4;
+    }
+}
@@ -2,8 +2,12 @@ package dev.emortal.rayfast.util;
 
 
 import dev.emortal.rayfast.area.Intersection;
+import dev.emortal.rayfast.area.area2d.Area2d;
 import dev.emortal.rayfast.vector.Vector2d;
 import org.jetbrains.annotations.ApiStatus;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
 
 /**
  * Internal Intersection Utils.
@@ -46,56 +50,149 @@ public class Intersection2dUtils {
             double f, double g,
             double h, double i
     ) {
-        // Intersection maths
-        // See: https://www.desmos.com/calculator/grkbrmrmsu
-
-        // Find x & y
-        final double x = (a * d * f - b * c * f - a * d * h + b * c * h - a * i * f + c * i * f + a * h * g - c * h * g) /
-                (a * g - c * g - a * i + c * i - b * f + d * f + b * h - d * h);
-        final double y = - (g * x - i * x + i * f - h * g) / (-f + h);
+        double s = lineIntersectionT(direction, a, b, c, d, f, g, h, i);
 
-        // Assert that intersection was in bounds set by second line
-        if (isNotBetweenUnordered(x, f, h)) {
+        if (Double.isNaN(s)) {
             return null;
         }
 
-        if (isNotBetweenUnordered(y, h, i)) {
-            return null;
+        return Vector2d.of(a + (c - a) * s, b + (d - b) * s);
+    }
+
+    /**
+     * Finds the intersection of the same lines as
+     * {@link #lineIntersection(Intersection.Direction, double, double, double, double, double, double, double, double)},
+     * without allocating it.
+     *
+     * @return the parameter of the intersection along line A, where 0 is point 1 and 1 is point 2, or NaN if the lines
+     * do not intersect
+     */
+    @ApiStatus.Internal
+    public static double lineIntersectionT(
+            Intersection.Direction direction,
+
+            // Source Line
+            double a, double b,
+            double c, double d,
+
+            // Intersecting Line (Bounded)
+            double f, double g,
+            double h, double i
+    ) {
+        // Intersection maths, with both lines in parametric form:
+        // line A: (a, b) + s * (c - a, d - b)
+        // line B: (f, g) + u * (h - f, i - g)
+        final double dirAX = c - a;
+        final double dirAY = d - b;
+        final double dirBX = h - f;
+        final double dirBY = i - g;
+
+        final double denominator = dirAX * dirBY - dirAY * dirBX;
+
+        // Parallel lines never intersect
+        if (denominator == 0) {
+            return Double.NaN;
         }
 
+        final double offsetX = f - a;
+        final double offsetY = g - b;
+        final double s = (offsetX * dirBY - offsetY * dirBX) / denominator;
+        final double u = (offsetX * dirAY - offsetY * dirAX) / denominator;
+
+        // Assert that intersection was in bounds set by second line
+        if (u < 0 || u > 1) {
+            return Double.NaN;
+        }
+
+        // The dot product of the direction and the offset of the intersection has the sign of s
         switch (direction) {
             default:
-            case ANY: {
-                return Vector2d.of(x, y);
-            }
-            case FORWARDS: {
-                // Find dot
-                double dotProduct = (c - a) * (x - a) + (d - b) * (y - b);
+            case ANY:
+                return s;
+            case FORWARDS:
+                return s >= 0 ? s : Double.NaN;
+            case BACKWARDS:
+                return s <= 0 ? s : Double.NaN;
+        }
+    }
 
-                if (dotProduct >= 0) {
-                    return Vector2d.of(x, y);
-                }
+    /**
+     * Finds the distance, in multiples of the line direction, from the line position to the closest point of the
+     * specified box along the line, using the slab method.
+     * <br><br>
+     * The line is given by its position and its inverse direction, and is clipped to the interval [tMin, tMax].
+     *
+     * @return the smallest absolute line parameter within the box and the interval, or NaN if the line misses the box
+     */
+    @ApiStatus.Internal
+    public static double boxDistance(
+            // Line
+            double posX, double posY, // Position vector
+            double invDirX, double invDirY, // Inverse direction vector
+            // Box
+            double minX, double minY,
+            double maxX, double maxY,
+            // Interval
+            double tMin, double tMax
+    ) {
+        // X slab
+        if (Double.isInfinite(invDirX)) {
+            if (posX < minX || posX > maxX) {
+                return Double.NaN;
+            }
+        } else {
+            double t1 = (minX - posX) * invDirX;
+            double t2 = (maxX - posX) * invDirX;
+            tMin = Math.max(tMin, Math.min(t1, t2));
+            tMax = Math.min(tMax, Math.max(t1, t2));
+        }
 
-                return null;
+        // Y slab
+        if (Double.isInfinite(invDirY)) {
+            if (posY < minY || posY > maxY) {
+                return Double.NaN;
             }
-            case BACKWARDS: {
-                // Find dot
-                double dotProduct = (c - a) * (x - a) + (d - b) * (y - b);
+        } else {
+            double t1 = (minY - posY) * invDirY;
+            double t2 = (maxY - posY) * invDirY;
+            tMin = Math.max(tMin, Math.min(t1, t2));
+            tMax = Math.min(tMax, Math.max(t1, t2));
+        }
 
-                if (dotProduct <= 0) {
-                    return Vector2d.of(x, y);
-                }
+        if (tMin > tMax) {
+            return Double.NaN;
+        }
 
-                return null;
-            }
+        if (tMin <= 0 && tMax >= 0) {
+            return 0;
         }
+
+        return Math.min(Math.abs(tMin), Math.abs(tMax));
     }
 
+    /**
+     * Returns the number of intersections in the result of a count intersection with the specified area.
+     * <br><br>
+     * Areas that do not know the count collector return another result, so the intersections of those areas are
+     * collected and counted instead.
+     *
+     * @return the number of intersections between the line and the area
+     */
     @ApiStatus.Internal
-    private static boolean isNotBetweenUnordered(double number, double compare1, double compare2) {
-        if (compare1 > compare2) {
-            return !(number >= compare2) || !(number <= compare1);
+    public static int count(
+            @Nullable Object result, Area2d area,
+            double posX, double posY, double dirX, double dirY,
+            Intersection<?> intersection
+    ) {
+        if (result == null) {
+            return 0;
         }
-        return !(number >= compare1) || !(number <= compare2);
+
+        if (result instanceof Integer) {
+            return (Integer) result;
+        }
+
+        Object all = area.lineIntersection(posX, posY, dirX, dirY, intersection.withCollector(Intersection.Collector.ALL));
+        return all instanceof Collection ? ((Collection<?>) all).size() : 0;
     }
 }
@@ -2,8 +2,13 @@ package dev.emortal.rayfast.util;
 
 
 import dev.emortal.rayfast.area.Intersection;
+import dev.emortal.rayfast.area.Ray;
+import dev.emortal.rayfast.area.area3d.Area3d;
 import dev.emortal.rayfast.vector.Vector3d;
 import org.jetbrains.annotations.ApiStatus;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
 
 /**
  * Internal Intersection Utils.
@@ -65,6 +70,115 @@ public class Intersection3dUtils {
         return vector;
     }
 
+    /**
+     * Finds the line parameter at which the specified line enters the specified box, using the slab method.
+     * <br><br>
+     * The line is given by its position and its inverse direction, and is clipped to the interval [tMin, tMax].
+     *
+     * @return the entry parameter clipped to the interval, or NaN if the line misses the box within the interval
+     */
+    @ApiStatus.Internal
+    public static double boxEntry(
+            // Line
+            double posX, double posY, double posZ, // Position vector
+            double invDirX, double invDirY, double invDirZ, // Inverse direction vector
+            // Box
+            double minX, double minY, double minZ,
+            double maxX, double maxY, double maxZ,
+            // Interval
+            double tMin, double tMax
+    ) {
+        // X slab
+        if (Double.isInfinite(invDirX)) {
+            if (posX < minX || posX > maxX) {
+                return Double.NaN;
+            }
+        } else {
+            double t1 = (minX - posX) * invDirX;
+            double t2 = (maxX - posX) * invDirX;
+            tMin = Math.max(tMin, Math.min(t1, t2));
+            tMax = Math.min(tMax, Math.max(t1, t2));
+        }
+
+        // Y slab
+        if (Double.isInfinite(invDirY)) {
+            if (posY < minY || posY > maxY) {
+                return Double.NaN;
+            }
+        } else {
+            double t1 = (minY - posY) * invDirY;
+            double t2 = (maxY - posY) * invDirY;
+            tMin = Math.max(tMin, Math.min(t1, t2));
+            tMax = Math.min(tMax, Math.max(t1, t2));
+        }
+
+        // Z slab
+        if (Double.isInfinite(invDirZ)) {
+            if (posZ < minZ || posZ > maxZ) {
+                return Double.NaN;
+            }
+        } else {
+            double t1 = (minZ - posZ) * invDirZ;
+            double t2 = (maxZ - posZ) * invDirZ;
+            tMin = Math.max(tMin, Math.min(t1, t2));
+            tMax = Math.min(tMax, Math.max(t1, t2));
+        }
+
+        return tMin <= tMax ? tMin : Double.NaN;
+    }
+
+    /**
+     * Finds the distance, in multiples of the line direction, from the line position to the closest point of the
+     * specified box along the line, using the slab method.
+     * <br><br>
+     * The line is given by its position and its inverse direction, and is clipped to the interval [tMin, tMax].
+     *
+     * @return the smallest absolute line parameter within the box and the interval, or NaN if the line misses the box
+     */
+    @ApiStatus.Internal
+    public static double boxDistance(
+            // Line
+            double posX, double posY, double posZ, // Position vector
+            double invDirX, double invDirY, double invDirZ, // Inverse direction vector
+            // Box
+            double minX, double minY, double minZ,
+            double maxX, double maxY, double maxZ,
+            // Interval
+            double tMin, double tMax
+    ) {
+        double entry = boxEntry(posX, posY, posZ, invDirX, invDirY, invDirZ, minX, minY, minZ, maxX, maxY, maxZ, tMin, tMax);
+
+        if (Double.isNaN(entry) || entry >= 0) {
+            return entry;
+        }
+
+        // The line enters the box behind its position, so the closest point is the exit or the position itself
+        double exit = -boxEntry(posX, posY, posZ, -invDirX, -invDirY, -invDirZ, minX, minY, minZ, maxX, maxY, maxZ, -tMax, -tMin);
+        return exit >= 0 ? 0 : -exit;
+    }
+
+    /**
+     * Returns the number of intersections in the result of a count intersection with the specified area.
+     * <br><br>
+     * Areas that do not know the count collector return another result, so the intersections of those areas are
+     * collected and counted instead.
+     *
+     * @return the number of intersections between the ray and the area
+     */
+    @ApiStatus.Internal
+    public static int count(@Nullable Object result, Area3d area, Ray ray, Intersection<?> intersection) {
+        if (result == null) {
+            return 0;
+        }
+
+        if (result instanceof Integer) {
+            return (Integer) result;
+        }
+
+        Object all = area.lineIntersection(ray, intersection.withCollector(Intersection.Collector.ALL));
+        return all instanceof Collection ? ((Collection<?>) all).size() : 0;
+    }
+
     @ApiStatus.Internal
     private static boolean isBetweenUnordered(double number, double compare1, double compare2) {
         if (compare1 > compare2) {
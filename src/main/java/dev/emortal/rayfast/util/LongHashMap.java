@@ -0,0 +1,149 @@
+package dev.emortal.rayfast.util;
+
+import org.jetbrains.annotations.ApiStatus;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Internal open addressing hash map with primitive long keys, which avoids boxing the keys on every lookup.
+ *
+ * INTERNAL ONLY.
+ * If any issues arise using this class, that's on you.
+ *
+ * @param <V> the type of the values, which may not be null
+ */
+@ApiStatus.Internal
+public final class LongHashMap<V> {
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    public LongHashMap() {
+        this(16);
+    }
+
+    public LongHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public @Nullable V get(long key) {
+        int slot = slot(key);
+
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                return (V) values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public @Nullable V put(long key, @NotNull V value) {
+        int slot = slot(key);
+
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                V previous = (V) values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+
+        if (++size * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public @Nullable V remove(long key) {
+        int slot = slot(key);
+
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                V previous = (V) values[slot];
+                shiftBack(slot);
+                size--;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        return null;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    private void shiftBack(int gap) {
+        // Move following entries of the probe sequence into the gap, so that lookups never stop early
+        int slot = gap;
+
+        while (true) {
+            slot = (slot + 1) & mask;
+
+            if (values[slot] == null) {
+                values[gap] = null;
+                return;
+            }
+
+            int ideal = slot(keys[slot]);
+
+            // Only move the entry if its ideal slot is not between the gap and its current slot
+            if (((slot - ideal) & mask) >= ((slot - gap) & mask)) {
+                keys[gap] = keys[slot];
+                values[gap] = values[slot];
+                gap = slot;
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] == null) {
+                continue;
+            }
+
+            int slot = slot(oldKeys[i]);
+            while (values[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    private int slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+}
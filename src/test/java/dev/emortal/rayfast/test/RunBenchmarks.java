@@ -1,19 +1,32 @@
 package dev.emortal.rayfast.test;
 
 import dev.emortal.rayfast.area.Intersection;
+import dev.emortal.rayfast.area.Ray;
 import dev.emortal.rayfast.area.area2d.Area2d;
 import dev.emortal.rayfast.area.area2d.Area2dPolygon;
+import dev.emortal.rayfast.area.area2d.Area2dRectangle;
 import dev.emortal.rayfast.area.area3d.Area3d;
+import dev.emortal.rayfast.area.area3d.Area3dBvh;
 import dev.emortal.rayfast.area.area3d.Area3dLike;
 import dev.emortal.rayfast.area.area3d.Area3dRectangularPrism;
+import dev.emortal.rayfast.broadphase.DynamicAabbTree;
+import dev.emortal.rayfast.broadphase.LooseOctree;
+import dev.emortal.rayfast.broadphase.SweepAndPrune;
+import dev.emortal.rayfast.broadphase.SpatialHash;
 import dev.emortal.rayfast.casting.combined.CombinedCast;
 import dev.emortal.rayfast.casting.grid.GridCast;
+import dev.emortal.rayfast.vector.Vector;
 import dev.emortal.rayfast.vector.Vector2d;
 import dev.emortal.rayfast.vector.Vector3d;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -137,6 +150,12 @@ public class RunBenchmarks {
 
         benchmarkArea2d();
         benchmarkArea2d();
+        benchmarkIndexedArea2d();
+        benchmarkIndexedArea3d();
+        benchmarkDynamicAabbTree();
+        benchmarkSpatialHash();
+        benchmarkLooseOctree();
+        benchmarkSweepAndPrune();
         benchmarkBlocks();
         benchmarkCombinedCast();
     }
@@ -158,6 +177,38 @@ public class RunBenchmarks {
         }
 
         System.out.println("took " + (System.currentTimeMillis() - startMillis) + "ms to iterate over " + i + " grid units (1x1 cubes)");
+
+        startMillis = System.currentTimeMillis();
+
+        int[] visited = {0};
+        GridCast.traverse(
+                Ray.of(Math.random(), Math.random(), Math.random(), Math.random(), Math.random(), Math.random()),
+                100_000,
+                (cellX, cellY, cellZ, t, face) -> {
+                    visited[0]++;
+                    return true;
+                }
+        );
+
+        System.out.println("took " + (System.currentTimeMillis() - startMillis) + "ms to traverse " + visited[0] + " grid units (1x1 cubes)");
+
+        startMillis = System.currentTimeMillis();
+
+        int[] swept = {0};
+        for (int j = 0; j < 100_000; j++) {
+            double x = Math.random() * 100, y = Math.random() * 100, z = Math.random() * 100;
+            GridCast.sweep(
+                    x, y, z, x + 0.6, y + 1.8, z + 0.6,
+                    Math.random() - 0.5, Math.random() - 0.5, Math.random() - 0.5,
+                    1,
+                    (cellX, cellY, cellZ, t, face) -> {
+                        swept[0]++;
+                        return true;
+                    }
+            );
+        }
+
+        System.out.println("took " + (System.currentTimeMillis() - startMillis) + "ms to sweep 100_000 entity boxes over " + swept[0] + " grid units (1x1 cubes)");
     }
 
     private static void benchmarkArea3d() {
@@ -209,6 +260,316 @@ public class RunBenchmarks {
         }
     }
 
+    private static void benchmarkIndexedArea2d() {
+        List<Area2d> rectangles = new ArrayList<>();
+
+        for (int i = 0; i < 10_000; i++) {
+            double minX = Math.random() * 200, minY = Math.random() * 200;
+            double maxX = minX + Math.random() * 2, maxY = minY + Math.random() * 2;
+
+            rectangles.add(new Area2dRectangle() {
+                @Override
+                public double getMinX() {
+                    return minX;
+                }
+
+                @Override
+                public double getMinY() {
+                    return minY;
+                }
+
+                @Override
+                public double getMaxX() {
+                    return maxX;
+                }
+
+                @Override
+                public double getMaxY() {
+                    return maxY;
+                }
+            });
+        }
+
+        Map<String, Area2d> areas = new LinkedHashMap<>();
+        areas.put("combined", Area2d.combined(rectangles));
+        areas.put("combinedIndexed", Area2d.combinedIndexed(rectangles));
+
+        Intersection<Vector2d> nearest = Intersection.builder()
+                .direction(Intersection.Direction.FORWARDS)
+                .build(Intersection.Collector.NEAREST);
+
+        double[] lines = new double[10_000 * 4];
+        for (int i = 0; i < lines.length; i += 4) {
+            lines[i] = Math.random() * 200;
+            lines[i + 1] = Math.random() * 200;
+            lines[i + 2] = Math.random() - 0.5;
+            lines[i + 3] = Math.random() - 0.5;
+        }
+
+        Vector2d[] expected = null;
+
+        for (Map.Entry<String, Area2d> entry : areas.entrySet()) {
+            long millis = System.currentTimeMillis();
+            Vector2d[] results = new Vector2d[lines.length / 4];
+
+            for (int i = 0; i < lines.length; i += 4) {
+                results[i / 4] = entry.getValue().lineIntersection(lines[i], lines[i + 1], lines[i + 2], lines[i + 3], nearest);
+            }
+
+            System.out.println("took " + (System.currentTimeMillis() - millis) + "ms to find the nearest of 10_000 rectangles for 10_000 lines (" + entry.getKey() + ", " + hits(results) + " hits)");
+
+            if (expected == null) {
+                expected = results;
+            } else {
+                checkSame(entry.getKey(), expected, results);
+            }
+        }
+    }
+
+    private static void benchmarkIndexedArea3d() {
+        List<Area3d> prisms = new ArrayList<>();
+
+        for (int i = 0; i < 10_000; i++) {
+            prisms.add(randomPrism(200, 2));
+        }
+
+        long millis = System.currentTimeMillis();
+        Area3d indexed = Area3d.combinedIndexed(prisms);
+        System.out.println("took " + (System.currentTimeMillis() - millis) + "ms to build a bvh over 10_000 rectangular prisms");
+
+        Map<String, Area3d> areas = new LinkedHashMap<>();
+        areas.put("combined", Area3d.combined(prisms));
+        areas.put("combinedIndexed", indexed);
+        areas.put("quantized bvh", Area3dBvh.builder().layout(Area3dBvh.Layout.QUANTIZED).build(prisms));
+        areas.put("float bvh", Area3dBvh.builder().layout(Area3dBvh.Layout.FLOAT).build(prisms));
+
+        Intersection<Vector3d> nearest = Intersection.builder()
+                .direction(Intersection.Direction.FORWARDS)
+                .build(Intersection.Collector.NEAREST);
+
+        Ray[] rays = randomRays(1000, 200, Double.POSITIVE_INFINITY);
+        Vector3d[] expected = null;
+
+        for (Map.Entry<String, Area3d> entry : areas.entrySet()) {
+            // Warm up
+            intersectRays(entry.getValue(), rays, nearest);
+
+            millis = System.currentTimeMillis();
+            Vector3d[] results = intersectRays(entry.getValue(), rays, nearest);
+
+            System.out.println("took " + (System.currentTimeMillis() - millis) + "ms to find the nearest of 10_000 rectangular prisms for 1000 rays (" + entry.getKey() + ", " + hits(results) + " hits)");
+
+            // Every index must find the same intersections as the linear combined area
+            if (expected == null) {
+                expected = results;
+            } else {
+                checkSame(entry.getKey(), expected, results);
+            }
+        }
+    }
+
+    private static void benchmarkDynamicAabbTree() {
+        DynamicAabbTree<MovingPrism> tree = new DynamicAabbTree<>();
+        MovingPrism[] prisms = new MovingPrism[10_000];
+        int[] proxies = new int[prisms.length];
+
+        for (int i = 0; i < prisms.length; i++) {
+            prisms[i] = MovingPrism.random(200, 1);
+            proxies[i] = tree.insert(prisms[i]);
+        }
+
+        Ray[] rays = randomRays(1000, 200, 50);
+        long moveNanos = 0, treeNanos = 0, bruteNanos = 0;
+        int treeHits = 0, bruteHits = 0;
+
+        for (int round = 0; round < 10; round++) {
+            long nanos = System.nanoTime();
+
+            for (int i = 0; i < prisms.length; i++) {
+                double dx = Math.random() - 0.5, dy = Math.random() - 0.5, dz = Math.random() - 0.5;
+                prisms[i].move(dx, dy, dz);
+                tree.move(proxies[i], dx, dy, dz);
+            }
+
+            moveNanos += System.nanoTime() - nanos;
+
+            for (int i = 0; i < rays.length; i++) {
+                nanos = System.nanoTime();
+                int[] hits = {0};
+
+                tree.lineIntersections(rays[i], Intersection.ANY_3D, (vector, area3d) -> {
+                    hits[0]++;
+                    return false;
+                });
+
+                treeNanos += System.nanoTime() - nanos;
+                nanos = System.nanoTime();
+                int bruteForce = 0;
+
+                for (MovingPrism prism : prisms) {
+                    if (prism.lineIntersection(rays[i], Intersection.ANY_3D) != null) {
+                        bruteForce++;
+                    }
+                }
+
+                bruteNanos += System.nanoTime() - nanos;
+                checkSame("dynamic aabb tree ray " + i, bruteForce, hits[0]);
+                treeHits += hits[0];
+                bruteHits += bruteForce;
+            }
+        }
+
+        System.out.println("took " + moveNanos / 1_000_000 + "ms to move 10_000 rectangular prisms 10 times in a dynamic aabb tree");
+        System.out.println("took " + treeNanos / 1_000_000 + "ms to intersect 10 x 1000 rays with a dynamic aabb tree of 10_000 moving rectangular prisms (" + treeHits + " hits)");
+        System.out.println("took " + bruteNanos / 1_000_000 + "ms to intersect 10 x 1000 rays with every one of 10_000 moving rectangular prisms (" + bruteHits + " hits)");
+    }
+
+    private static void benchmarkSpatialHash() {
+        SpatialHash<Area3dRectangularPrism> hash = new SpatialHash<>(4);
+        List<Area3dRectangularPrism> prisms = new ArrayList<>();
+
+        for (int i = 0; i < 10_000; i++) {
+            Area3dRectangularPrism prism = randomPrism(200, 2);
+            prisms.add(prism);
+            hash.insert(prism);
+        }
+
+        Ray[] rays = randomRays(10_000, 200, 50);
+        int[] expected = new int[rays.length];
+        int bruteHits = 0;
+
+        long millis = System.currentTimeMillis();
+
+        for (int i = 0; i < rays.length; i++) {
+            for (Area3dRectangularPrism prism : prisms) {
+                if (prism.lineIntersection(rays[i], Intersection.ANY_3D) != null) {
+                    expected[i]++;
+                    bruteHits++;
+                }
+            }
+        }
+
+        System.out.println("took " + (System.currentTimeMillis() - millis) + "ms to intersect 10_000 rays with every one of 10_000 rectangular prisms (" + bruteHits + " hits)");
+
+        millis = System.currentTimeMillis();
+        int[] results = new int[rays.length];
+
+        for (int i = 0; i < rays.length; i++) {
+            int ray = i;
+
+            hash.lineIntersections(rays[i], Intersection.ANY_3D, (vector, area3d) -> {
+                results[ray]++;
+                return false;
+            });
+        }
+
+        System.out.println("took " + (System.currentTimeMillis() - millis) + "ms to intersect 10_000 rays with a spatial hash of 10_000 rectangular prisms (" + Arrays.stream(results).sum() + " hits)");
+
+        for (int i = 0; i < rays.length; i++) {
+            checkSame("spatial hash ray " + i, expected[i], results[i]);
+        }
+    }
+
+    private static void benchmarkLooseOctree() {
+        LooseOctree<Area3dRectangularPrism> octree = new LooseOctree<>(100, 100, 100, 128, 8);
+        List<Area3dRectangularPrism> prisms = new ArrayList<>();
+
+        for (int i = 0; i < 10_000; i++) {
+            Area3dRectangularPrism prism = randomPrism(200, 4);
+            prisms.add(prism);
+            octree.insert(prism);
+        }
+
+        double[] points = new double[20_000 * 3];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = Math.random() * 200;
+        }
+
+        long millis = System.currentTimeMillis();
+        boolean[] expected = new boolean[points.length / 3];
+
+        for (int i = 0; i < points.length; i += 3) {
+            for (Area3dRectangularPrism prism : prisms) {
+                if (prism.containsPoint(points[i], points[i + 1], points[i + 2])) {
+                    expected[i / 3] = true;
+                    break;
+                }
+            }
+        }
+
+        System.out.println("took " + (System.currentTimeMillis() - millis) + "ms to find 20_000 points in every one of 10_000 rectangular prisms");
+
+        millis = System.currentTimeMillis();
+        boolean[] results = new boolean[points.length / 3];
+        int inside = 0;
+
+        for (int i = 0; i < points.length; i += 3) {
+            if (results[i / 3] = octree.containsPoint(points[i], points[i + 1], points[i + 2])) {
+                inside++;
+            }
+        }
+
+        System.out.println("took " + (System.currentTimeMillis() - millis) + "ms to find 20_000 points in a loose octree of 10_000 rectangular prisms (" + inside + " inside)");
+
+        for (int i = 0; i < results.length; i++) {
+            checkSame("loose octree point " + i, expected[i] ? 1 : 0, results[i] ? 1 : 0);
+        }
+    }
+
+    private static void benchmarkSweepAndPrune() {
+        SweepAndPrune<MovingPrism> sweep = new SweepAndPrune<>();
+        MovingPrism[] prisms = new MovingPrism[2000];
+
+        for (int i = 0; i < prisms.length; i++) {
+            prisms[i] = MovingPrism.random(100, 2);
+            sweep.add(prisms[i]);
+        }
+
+        SweepAndPrune.PairListener<MovingPrism> listener = new SweepAndPrune.PairListener<>() {
+            @Override
+            public void pairStarted(@NotNull MovingPrism a, @NotNull MovingPrism b) {
+            }
+
+            @Override
+            public void pairEnded(@NotNull MovingPrism a, @NotNull MovingPrism b) {
+            }
+        };
+
+        long millis = System.currentTimeMillis();
+        sweep.update(listener);
+        System.out.println("took " + (System.currentTimeMillis() - millis) + "ms to sort 2000 rectangular prisms with sweep and prune");
+
+        long sweepNanos = 0, bruteNanos = 0;
+
+        for (int round = 0; round < 20; round++) {
+            for (MovingPrism prism : prisms) {
+                prism.move(Math.random() - 0.5, Math.random() - 0.5, Math.random() - 0.5);
+            }
+
+            long start = System.nanoTime();
+            int bruteForce = 0;
+
+            for (int i = 0; i < prisms.length; i++) {
+                for (int j = i + 1; j < prisms.length; j++) {
+                    if (prisms[i].overlaps(prisms[j])) {
+                        bruteForce++;
+                    }
+                }
+            }
+
+            bruteNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            sweep.update(listener);
+            sweepNanos += System.nanoTime() - start;
+
+            checkSame("sweep and prune round " + round, bruteForce, sweep.pairCount());
+        }
+
+        System.out.println("took " + bruteNanos / 1_000_000 + "ms to find the overlapping pairs of 2000 moving rectangular prisms 20 times by testing every pair");
+        System.out.println("took " + sweepNanos / 1_000_000 + "ms to find the overlapping pairs of 2000 moving rectangular prisms 20 times with sweep and prune (" + sweep.pairCount() + " pairs)");
+    }
+
     private static void benchmarkCombinedCast() {
         final CombinedCast combinedCast = CombinedCast.builder()
                 .gridSize(1.0)
@@ -239,4 +600,173 @@ public class RunBenchmarks {
             System.out.println("took " + (System.currentTimeMillis() - millis) + "ms to do " + amount + " combined casts with 100 entities and 100 block range");
         }
     }
+
+    private static Vector3d[] intersectRays(Area3d area3d, Ray[] rays, Intersection<Vector3d> intersection) {
+        Vector3d[] results = new Vector3d[rays.length];
+
+        for (int i = 0; i < rays.length; i++) {
+            results[i] = area3d.lineIntersection(rays[i], intersection);
+        }
+
+        return results;
+    }
+
+    private static int hits(Object[] results) {
+        int hits = 0;
+
+        for (Object result : results) {
+            if (result != null) {
+                hits++;
+            }
+        }
+
+        return hits;
+    }
+
+    /**
+     * Throws if the results of a benchmark differ from the expected results, as these benchmarks also compare every
+     * index to its linear equivalent
+     */
+    private static void checkSame(String name, Vector<?>[] expected, Vector<?>[] results) {
+        for (int i = 0; i < expected.length; i++) {
+            if (!same(expected[i], results[i])) {
+                throw new IllegalStateException(name + " found " + results[i] + " instead of " + expected[i] + " for query " + i);
+            }
+        }
+    }
+
+    private static void checkSame(String name, long expected, long result) {
+        if (expected != result) {
+            throw new IllegalStateException(name + " found " + result + " instead of " + expected);
+        }
+    }
+
+    private static boolean same(@Nullable Vector<?> a, @Nullable Vector<?> b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+
+        for (int i = 0; i < a.getDimensions(); i++) {
+            if (a.get(i) != b.get(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static Ray[] randomRays(int amount, double range, double maxLength) {
+        Ray[] rays = new Ray[amount];
+
+        for (int i = 0; i < amount; i++) {
+            rays[i] = Ray.of(
+                    Math.random() * range, Math.random() * range, Math.random() * range,
+                    Math.random() - 0.5, Math.random() - 0.5, Math.random() - 0.5,
+                    maxLength
+            );
+        }
+
+        return rays;
+    }
+
+    private static Area3dRectangularPrism randomPrism(double range, double maxSize) {
+        double minX = Math.random() * range, minY = Math.random() * range, minZ = Math.random() * range;
+        double maxX = minX + Math.random() * maxSize, maxY = minY + Math.random() * maxSize, maxZ = minZ + Math.random() * maxSize;
+
+        return new Area3dRectangularPrism() {
+            @Override
+            public double getMinX() {
+                return minX;
+            }
+
+            @Override
+            public double getMinY() {
+                return minY;
+            }
+
+            @Override
+            public double getMinZ() {
+                return minZ;
+            }
+
+            @Override
+            public double getMaxX() {
+                return maxX;
+            }
+
+            @Override
+            public double getMaxY() {
+                return maxY;
+            }
+
+            @Override
+            public double getMaxZ() {
+                return maxZ;
+            }
+        };
+    }
+
+    /**
+     * A rectangular prism that moves, like the bounding box of an entity.
+     */
+    private static class MovingPrism implements Area3dRectangularPrism {
+        private double minX, minY, minZ;
+        private double maxX, maxY, maxZ;
+
+        private static MovingPrism random(double range, double size) {
+            MovingPrism prism = new MovingPrism();
+            prism.minX = Math.random() * range;
+            prism.minY = Math.random() * range;
+            prism.minZ = Math.random() * range;
+            prism.maxX = prism.minX + size;
+            prism.maxY = prism.minY + size;
+            prism.maxZ = prism.minZ + size;
+            return prism;
+        }
+
+        private boolean overlaps(MovingPrism other) {
+            return minX <= other.maxX && other.minX <= maxX &&
+                    minY <= other.maxY && other.minY <= maxY &&
+                    minZ <= other.maxZ && other.minZ <= maxZ;
+        }
+
+        private void move(double x, double y, double z) {
+            minX += x;
+            minY += y;
+            minZ += z;
+            maxX += x;
+            maxY += y;
+            maxZ += z;
+        }
+
+        @Override
+        public double getMinX() {
+            return minX;
+        }
+
+        @Override
+        public double getMinY() {
+            return minY;
+        }
+
+        @Override
+        public double getMinZ() {
+            return minZ;
+        }
+
+        @Override
+        public double getMaxX() {
+            return maxX;
+        }
+
+        @Override
+        public double getMaxY() {
+            return maxY;
+        }
+
+        @Override
+        public double getMaxZ() {
+            return maxZ;
+        }
+    }
 }